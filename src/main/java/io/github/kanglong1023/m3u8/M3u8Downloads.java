@@ -2,6 +2,7 @@ package io.github.kanglong1023.m3u8;
 
 import io.github.kanglong1023.m3u8.core.*;
 import io.github.kanglong1023.m3u8.http.HttpRequestManager;
+import io.github.kanglong1023.m3u8.http.RouteKey;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestManagerConfig;
 import io.github.kanglong1023.m3u8.http.pool.PoolConfig;
 import io.github.kanglong1023.m3u8.http.response.FileDownloadOptions;
@@ -9,7 +10,6 @@ import io.github.kanglong1023.m3u8.util.CollUtil;
 import io.github.kanglong1023.m3u8.util.Preconditions;
 import io.github.kanglong1023.m3u8.util.ThreadUtil;
 import io.github.kanglong1023.m3u8.util.Utils;
-import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.ListUtils;
@@ -206,8 +206,14 @@ public final class M3u8Downloads {
 
     public static M3u8Executor startExecutor(HttpRequestManagerConfig managerConfig,
                                              TsDownloadOptionsSelector optionsSelector) {
+        return startExecutor(managerConfig, optionsSelector, null);
+    }
+
+    public static M3u8Executor startExecutor(HttpRequestManagerConfig managerConfig,
+                                             TsDownloadOptionsSelector optionsSelector,
+                                             M3u8ExecutorConfig executorConfig) {
         HttpRequestManager requestManager = HttpRequestManager.getInstance(managerConfig);
-        return new M3u8Executor(requestManager, optionsSelector);
+        return new M3u8Executor(requestManager, optionsSelector, executorConfig);
     }
 
     public static M3u8Download newDownload(String url, String fileNameOrFilePath, M3u8HttpHeader... headers) {
@@ -443,7 +449,7 @@ public final class M3u8Downloads {
 
             private final List<M3u8Download> downloadSnapshots;
 
-            private final Map<RouteGroupKey, Set<M3u8Download>> downloadRouteGroup;
+            private final Map<RouteKey, Set<M3u8Download>> downloadRouteGroup;
 
             private OptionsSnapshot(List<M3u8Download> allDownloads) {
                 this(allDownloads, false, false);
@@ -453,9 +459,9 @@ public final class M3u8Downloads {
                                     boolean ifAsyncSink, boolean useBufferPool) {
 
                 // consider master list variantStreamInf ？
-                Map<RouteGroupKey, Set<M3u8Download>> downloadRouteGroup = CollUtil.newLinkedHashMap();
+                Map<RouteKey, Set<M3u8Download>> downloadRouteGroup = CollUtil.newLinkedHashMap();
                 for (M3u8Download download : allDownloads) {
-                    RouteGroupKey key = new RouteGroupKey(download.getUri());
+                    RouteKey key = RouteKey.of(download.getUri());
                     downloadRouteGroup.computeIfAbsent(key, k -> CollUtil.newHashSet()).add(download);
                 }
 
@@ -480,12 +486,12 @@ public final class M3u8Downloads {
 
                 this.downloadSnapshots.add(m3u8Download);
 
-                RouteGroupKey routeGroupKey = new RouteGroupKey(m3u8Download.getUri());
-                Set<M3u8Download> m3u8Downloads = this.downloadRouteGroup.get(routeGroupKey);
+                RouteKey routeKey = RouteKey.of(m3u8Download.getUri());
+                Set<M3u8Download> m3u8Downloads = this.downloadRouteGroup.get(routeKey);
                 if (CollectionUtils.isNotEmpty(m3u8Downloads)) {
                     m3u8Downloads.remove(m3u8Download);
                     if (CollectionUtils.isEmpty(m3u8Downloads)) {
-                        this.downloadRouteGroup.remove(routeGroupKey);
+                        this.downloadRouteGroup.remove(routeKey);
                     }
                 }
             }
@@ -522,23 +528,6 @@ public final class M3u8Downloads {
             public Set<M3u8Download> getMaxRouteSizeOfRemainedDownloads() {
                 return this.downloadRouteGroup.values().stream().max(Comparator.comparing(Set::size)).orElse(Collections.emptySet());
             }
-
-            @EqualsAndHashCode
-            private static class RouteGroupKey {
-
-                private final int port;
-
-                private final String host;
-
-                private final String schema;
-
-                private RouteGroupKey(URI uri) {
-                    Preconditions.checkNotNull(uri);
-                    this.host = uri.getHost();
-                    this.port = uri.getPort();
-                    this.schema = uri.getScheme();
-                }
-            }
         }
     }
 
@@ -1,7 +1,9 @@
 package io.github.kanglong1023.m3u8.core;
 
+import io.github.kanglong1023.m3u8.core.TsDownloadPlanner.TsDownloadPlanListener;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestConfig;
 import io.github.kanglong1023.m3u8.util.CollUtil;
+import io.github.kanglong1023.m3u8.util.FutureUtil;
 import io.github.kanglong1023.m3u8.util.Utils;
 import io.github.kanglong1023.m3u8.util.VideoUtil;
 import io.github.kanglong1023.m3u8.util.function.Try;
@@ -21,6 +23,9 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
@@ -34,6 +39,14 @@ public class M3u8Download {
 
     public static final String m3u8StoreName = "m3u8Index.xml";
 
+    public static final String tsIndexName = "tsIndex.bin";
+
+    public static final String tsJournalName = "tsJournal.bin";
+
+    public static final String tsPackName = "tsPack.bin";
+
+    public static final String tsPackIndexName = "tsPackIndex.bin";
+
     public static final String unFinishedTsExtension = "progress";
 
     private final URI uri;
@@ -54,7 +67,22 @@ public class M3u8Download {
 
     private final LongAdder finishedTsDownloads = new LongAdder();
 
-    private final List<TsDownload> tsDownloads = CollUtil.newArrayList();
+    // sum of EXTINF, of planned ts, of finished ts and of ts downloaded in this run
+    private final DoubleAdder totalDuration = new DoubleAdder();
+
+    private final DoubleAdder finishedDuration = new DoubleAdder();
+
+    private final DoubleAdder downloadedDuration = new DoubleAdder();
+
+    // appended while recording live playlist
+    private final List<TsDownload> tsDownloads = CollUtil.newCopyOnWriteArrayList();
+
+    private volatile TsDownloadPlanner tsDownloadPlanner;
+
+    // guarded by this, prepared ahead of resolving, taken by resolveTsDownloadsAsync
+    private TsDownloadPlanner preparedTsDownloadPlanner;
+
+    private volatile TsDownloadPlanListener tsDownloadPlanListener;
 
     private final M3u8DownloadListener.M3u8DownloadListeners downloadListener;
 
@@ -84,7 +112,9 @@ public class M3u8Download {
             } else {
                 checkAndCreateDir(workHome, "workHome");
             }
-            Path tsSavePath = checkAndCreateDir(workHome.resolve(Utils.mainName(this.fileName)), "tsDir");
+            // tsDir is created when resolving, a queued download holds no directory
+            Path tsSavePath = workHome.resolve(Utils.mainName(this.fileName));
+            m3u8Check(Files.notExists(tsSavePath) || Files.isDirectory(tsSavePath), "tsDir is not a directory: %s", tsSavePath);
             Path tsFileTest = tsSavePath.resolve("1234567890-1234567890-1234567890" + "." + unFinishedTsExtension);
             m3u8Check(!Utils.isFileNameTooLong(tsFileTest.toString()), "tsDir too long: %s", tsSavePath);
             this.tsDir = tsSavePath;
@@ -113,19 +143,164 @@ public class M3u8Download {
     }
 
     public List<TsDownload> resolveTsDownloads(BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter) {
+        checkNotNull(bytesResponseGetter);
+
+        List<TsDownload> newDownloads = CollUtil.newArrayList();
+        CompletableFuture<Void> future = resolveTsDownloadsAsync(bytesResponseGetter.andThen(CompletableFuture::completedFuture),
+                Runnable::run, null, new TsDownloadPlanListener() {
+                    @Override
+                    public void newTsDownload(TsDownload tsDownload) {
+                        newDownloads.add(tsDownload);
+                    }
+                });
+        FutureUtil.getUnwrapped(future);
+        return newDownloads;
+    }
+
+    /**
+     * fetch playlists and secret keys ahead of {@link #resolveTsDownloadsAsync}, e.g. while the download is queued,
+     * see {@link TsDownloadPlanner#prepareAsync()}. the arguments should be the same as resolving.
+     */
+    public CompletableFuture<Void> prepareAsync(BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter,
+                                                Executor executor, M3u8SecretKeyCache secretKeyCache) {
+        TsDownloadPlanner tsDownloadPlanner;
+        synchronized (this) {
+            tsDownloadPlanner = this.preparedTsDownloadPlanner;
+            if (null == tsDownloadPlanner) {
+                Try.run(() -> checkAndCreateDir(tsDir, "tsDir")).get();
+                tsDownloadPlanner = new TsDownloadPlanner(this, bytesResponseGetter, executor, secretKeyCache);
+                this.preparedTsDownloadPlanner = tsDownloadPlanner;
+            }
+        }
+        return FutureUtil.disinterest(tsDownloadPlanner.prepareAsync());
+    }
+
+    /**
+     * ts downloads are emitted to the planListener while planning, see {@link TsDownloadPlanner#planAsync(TsDownloadPlanListener)}
+     */
+    public CompletableFuture<Void> resolveTsDownloadsAsync(BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter,
+                                                           Executor executor, M3u8SecretKeyCache secretKeyCache,
+                                                           TsDownloadPlanListener planListener) {
+        return resolveTsDownloadsAsync(bytesResponseGetter, null, executor, secretKeyCache, planListener);
+    }
+
+    /**
+     * @param contentLengthGetter nullable, probes lengths of ts if merged in place, see {@link M3u8DownloadBuilder#mergeInPlace()}
+     */
+    public CompletableFuture<Void> resolveTsDownloadsAsync(BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter,
+                                                           BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter,
+                                                           Executor executor, M3u8SecretKeyCache secretKeyCache,
+                                                           TsDownloadPlanListener planListener) {
+        checkNotNull(planListener);
+
+        Try.run(() -> checkAndCreateDir(tsDir, "tsDir")).get();
 
         notifyDownloadStart();
-        TsDownloadPlanner tsDownloadPlanner = new TsDownloadPlanner(this, bytesResponseGetter);
+        TsDownloadPlanner tsDownloadPlanner;
+        synchronized (this) {
+            tsDownloadPlanner = this.preparedTsDownloadPlanner;
+            this.preparedTsDownloadPlanner = null;
+        }
+        if (null == tsDownloadPlanner) {
+            tsDownloadPlanner = new TsDownloadPlanner(this, bytesResponseGetter, executor, secretKeyCache);
+        }
 
-        List<TsDownload> downloads = tsDownloadPlanner.plan();
-        List<TsDownload> newDownloads = downloads.stream().filter(TsDownload::isNew).collect(Collectors.toList());
+        LongAdder newDownloads = new LongAdder();
+        TsDownloadPlanListener listener = new TsDownloadPlanListener() {
+            @Override
+            public void planned(List<TsDownload> tsDownloads) {
+                M3u8Download.this.tsDownloads.clear();
+                M3u8Download.this.tsDownloads.addAll(tsDownloads);
+                tsDownloads.forEach(t -> totalDuration.add(durationOf(t)));
+                planListener.planned(tsDownloads);
+            }
 
-        this.tsDownloads.clear();
-        this.tsDownloads.addAll(downloads);
+            @Override
+            public void reloaded(List<TsDownload> tsDownloads) {
+                M3u8Download.this.tsDownloads.addAll(tsDownloads);
+                tsDownloads.forEach(t -> totalDuration.add(durationOf(t)));
+                planListener.reloaded(tsDownloads);
+            }
 
-        log.info("resolved {} ts downloads, {} need to download: {}", downloads.size(), newDownloads.size(), this.identity);
+            @Override
+            public void newTsDownload(TsDownload tsDownload) {
+                newDownloads.increment();
+                planListener.newTsDownload(tsDownload);
+            }
+        };
+        this.tsDownloadPlanner = tsDownloadPlanner;
+        this.tsDownloadPlanListener = listener;
 
-        return newDownloads;
+        return tsDownloadPlanner.planAsync(listener, contentLengthGetter).thenAccept(downloads -> log.info("resolved {} ts downloads, {} need to download: {}",
+                downloads.size(), newDownloads.sum(), this.identity));
+    }
+
+    /**
+     * reload live playlist after resolved, new ts downloads are emitted to the planListener
+     * of {@link #resolveTsDownloadsAsync}
+     */
+    public CompletableFuture<List<TsDownload>> reloadTsDownloadsAsync() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        m3u8Check(Objects.nonNull(tsDownloadPlanner), "not resolved: %s", this.identity);
+        return tsDownloadPlanner.reloadAsync(this.tsDownloadPlanListener);
+    }
+
+    public boolean isPlaylistEnded() {
+        M3u8Resolver m3u8Resolver = getM3u8Resolver();
+        return Objects.isNull(m3u8Resolver) || m3u8Resolver.isEndList();
+    }
+
+    /**
+     * target duration of the final playlist, null if absent
+     */
+    public Duration getTargetDuration() {
+        M3u8Resolver m3u8Resolver = getM3u8Resolver();
+        if (Objects.isNull(m3u8Resolver) || m3u8Resolver.getTargetDuration() <= 0) {
+            return null;
+        }
+        return Duration.ofSeconds(m3u8Resolver.getTargetDuration());
+    }
+
+    /**
+     * a ts failed, planning is failed if it is still waiting, see {@link TsDownloadPlanner#abort(Throwable)}
+     */
+    void abortPlanning(Throwable cause) {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        if (null != tsDownloadPlanner) {
+            tsDownloadPlanner.abort(cause);
+        }
+    }
+
+    /**
+     * stop recording completed ts, called when ts downloading is finished
+     */
+    void closeTsIndex() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        if (null != tsDownloadPlanner) {
+            tsDownloadPlanner.closeTsIndex();
+        }
+    }
+
+    /**
+     * the target file being written while merged in place
+     */
+    Path getMergeInPlaceFilePath() {
+        return this.targetFileDir.resolve(this.fileName + "." + unFinishedTsExtension);
+    }
+
+    private TsMergeLayout getMergeLayout() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        return null == tsDownloadPlanner ? null : tsDownloadPlanner.getMergeLayout();
+    }
+
+    private TsPackFile getPackFile() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        return null == tsDownloadPlanner ? null : tsDownloadPlanner.getPackFile();
+    }
+
+    private M3u8Resolver getM3u8Resolver() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        return null == tsDownloadPlanner ? null : tsDownloadPlanner.getM3u8Resolver();
     }
 
     private void notifyDownloadStart() {
@@ -133,6 +308,9 @@ public class M3u8Download {
         this.failedTsDownloads.reset();
         this.readingTsDownloads.clear();
         this.finishedTsDownloads.reset();
+        this.totalDuration.reset();
+        this.finishedDuration.reset();
+        this.downloadedDuration.reset();
 
         this.downloadListener.start(this);
     }
@@ -149,8 +327,25 @@ public class M3u8Download {
         }
 
         // cal fileSize
-        long totalSizeOfAllTsFiles = downloadList.stream().mapToLong(d -> Try.ofCallable(() -> checkPositive(Files.size(d.getFinalFilePath()),
-                format("file(%s) size", d.getFinalFilePath()))).get()).sum();
+        TsPackFile packFile = getPackFile();
+        TsMergeLayout mergeLayout = getMergeLayout();
+        List<TsDownload> sortedDownloads = downloadList.stream()
+                .sorted(Comparator.comparing(TsDownload::getSequence)).collect(Collectors.toList());
+        int[] packRows = null;
+        long totalSizeOfAllTsFiles;
+        if (null != mergeLayout) {
+            totalSizeOfAllTsFiles = mergeLayout.getTotalSize();
+        } else if (null != packFile) {
+            packRows = sortedDownloads.stream().mapToInt(TsDownload::getRow).toArray();
+            totalSizeOfAllTsFiles = 0;
+            for (TsDownload tsDownload : sortedDownloads) {
+                m3u8Check(packFile.contains(tsDownload.getRow()), "ts is absent in %s: %s", packFile.getPackPath(), tsDownload.getUri());
+                totalSizeOfAllTsFiles += packFile.getLength(tsDownload.getRow());
+            }
+        } else {
+            totalSizeOfAllTsFiles = downloadList.stream().mapToLong(d -> Try.ofCallable(() -> checkPositive(Files.size(d.getFinalFilePath()),
+                    format("file(%s) size", d.getFinalFilePath()))).get()).sum();
+        }
         String totalSize = Utils.bytesFormat(totalSizeOfAllTsFiles, 3);
 
         // cal duration
@@ -166,17 +361,35 @@ public class M3u8Download {
         Path targetFile = targetFileDir.resolve(fileName);
         m3u8Check(Files.notExists(targetFile), "targetFile is exists：%s", targetFile);
 
-        List<Path> tsFiles = downloadList.stream()
-                .sorted(Comparator.comparing(TsDownload::getSequence))
-                .map(TsDownload::getFinalFilePath).collect(Collectors.toList());
+        List<Path> tsFiles = sortedDownloads.stream().map(TsDownload::getFinalFilePath).collect(Collectors.toList());
 
         // merge
-        if (this.m3u8DownloadOptions.isMergeWithoutConvertToMp4()) {
+        if (null != mergeLayout) {
+            // ts is already in place
+            Path mergedFile = mergeLayout.getFilePath();
+            Try.run(mergeLayout::truncate).get();
+            long mergedSize = Try.ofCallable(() -> Files.size(mergedFile)).get();
+            m3u8Check(mergedSize == mergeLayout.getTotalSize(), "size of merged file(%s) is %s, expect %s",
+                    mergedFile, mergedSize, mergeLayout.getTotalSize());
+            Try.run(() -> Files.move(mergedFile, targetFile)).get();
+        } else if (null != packFile && !this.m3u8DownloadOptions.isMergeWithoutConvertToMp4()) {
+            // merge regions of the pack into mp4
+            long[] offsets = new long[packRows.length], lengths = new long[packRows.length];
+            for (int i = 0; i < packRows.length; i++) {
+                offsets[i] = packFile.getOffset(packRows[i]);
+                lengths[i] = packFile.getLength(packRows[i]);
+            }
+            m3u8Check(VideoUtil.convertToMp4(targetFile, packFile.getPackPath(), offsets, lengths), "merge failed");
+        } else if (this.m3u8DownloadOptions.isMergeWithoutConvertToMp4()) {
             // merge into large ts
             try (FileChannel fileChannel = FileChannel.open(targetFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-                for (Path ts : tsFiles) {
-                    try (FileChannel inputStreamChannel = FileChannel.open(ts, StandardOpenOption.READ)) {
-                        inputStreamChannel.transferTo(0, inputStreamChannel.size(), fileChannel);
+                if (null != packFile) {
+                    packFile.transferTo(packRows, fileChannel);
+                } else {
+                    for (Path ts : tsFiles) {
+                        try (FileChannel inputStreamChannel = FileChannel.open(ts, StandardOpenOption.READ)) {
+                            inputStreamChannel.transferTo(0, inputStreamChannel.size(), fileChannel);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -269,9 +482,50 @@ public class M3u8Download {
             this.failedTsDownloads.increment();
         } else {
             this.finishedTsDownloads.increment();
+            double duration = durationOf(tsDownload);
+            this.finishedDuration.add(duration);
+            if (tsDownload.getDownloadStage() != TsDownload.TsDownloadStage.COMPLETED_IN_CACHE) {
+                this.downloadedDuration.add(duration);
+            }
         }
     }
 
+    public void OnRetryTsDownload(TsDownload tsDownload) {
+        this.failedTsDownloads.decrement();
+    }
+
+    /**
+     * EXTINF of the ts not finished yet. before planned, that of the playlist resolved ahead, -1 if unknown
+     */
+    public double getRemainingDurationInSeconds() {
+        TsDownloadPlanner tsDownloadPlanner = this.tsDownloadPlanner;
+        if (null == tsDownloadPlanner) {
+            synchronized (this) {
+                tsDownloadPlanner = this.preparedTsDownloadPlanner;
+            }
+        }
+        if (null == tsDownloadPlanner) {
+            return -1;
+        }
+        if (this.tsDownloads.isEmpty()) {
+            return tsDownloadPlanner.getDurationInSeconds();
+        }
+        return Math.max(0, this.totalDuration.sum() - this.finishedDuration.sum());
+    }
+
+    /**
+     * bytes per second of EXTINF observed in this run, -1 if no ts downloaded yet
+     */
+    public double getObservedBitrate() {
+        double downloadedDuration = this.downloadedDuration.sum();
+        return downloadedDuration <= 0 ? -1 : getDownloadBytes() / downloadedDuration;
+    }
+
+    private static double durationOf(TsDownload tsDownload) {
+        Double duration = tsDownload.getDurationInSeconds();
+        return null == duration ? 0 : duration;
+    }
+
     public long getInstantReadingAndRemainedCount() {
         return getTsDownloadsCount() - getFinishedTsDownloads() - getFailedTsDownloads();
     }
@@ -0,0 +1,225 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.util.CollUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * admission control of M3u8Downloads: at most maxActiveDownloads are started, the others wait in the queue
+ * in order of priority and submission, and the next one is started as an active one is released.
+ * <p>
+ * the limit is counted over active downloads of the same or higher priority, so an urgent download is admitted
+ * at once instead of waiting for lower ones, which yield their connections to it in the ts scheduler.
+ * <p>
+ * the first lookAhead downloads of the queue are handed to the preparer once, so they could be resolved
+ * while the active ones are transferring.
+ * <p>
+ * if largestRemainingWorkFirst, the one with the most remaining work among them is admitted first. a download
+ * is passed over at most lookAhead times, so the one whose work is unknown is not starved.
+ */
+@Slf4j
+final class M3u8DownloadAdmission {
+
+    private final int maxActiveDownloads;
+
+    private final int lookAhead;
+
+    // nullable
+    private final Consumer<M3u8Download> preparer;
+
+    private final boolean largestRemainingWorkFirst;
+
+    // guarded by this
+    private final NavigableSet<Admission> queue = new TreeSet<>(Comparator.<Admission>comparingInt(a -> a.priority)
+            .reversed().thenComparingLong(a -> a.sequence));
+
+    // guarded by this
+    private final Map<M3u8Download, Admission> queued = CollUtil.newHashMap();
+
+    // guarded by this
+    private final Map<M3u8Download, Admission> active = CollUtil.newHashMap();
+
+    // guarded by this
+    private long sequence;
+
+    M3u8DownloadAdmission(int maxActiveDownloads) {
+        this(maxActiveDownloads, 0, null, false);
+    }
+
+    /**
+     * @param preparer nullable, called without holding any lock, it must not throw
+     */
+    M3u8DownloadAdmission(int maxActiveDownloads, int lookAhead, Consumer<M3u8Download> preparer,
+                          boolean largestRemainingWorkFirst) {
+        this.preparer = preparer;
+        this.largestRemainingWorkFirst = largestRemainingWorkFirst;
+        this.lookAhead = null == preparer ? 0 : checkNonNegative(lookAhead, "lookAhead");
+        this.maxActiveDownloads = checkPositive(maxActiveDownloads, "maxActiveDownloads");
+    }
+
+    /**
+     * @param starter starts the download once admitted, called without holding any lock. it must not throw,
+     *                the download is released when it is finished or failed
+     */
+    void submit(M3u8Download m3u8Download, Runnable starter) {
+        checkNotNull(m3u8Download);
+        checkNotNull(starter);
+        synchronized (this) {
+            if (queued.containsKey(m3u8Download) || active.containsKey(m3u8Download)) {
+                log.warn("already submitted: {}", m3u8Download.getIdentity());
+                return;
+            }
+            Admission admission = new Admission(m3u8Download, starter, sequence++);
+            queued.put(m3u8Download, admission);
+            queue.add(admission);
+        }
+        admit();
+    }
+
+    /**
+     * release an active download, or remove a queued one
+     */
+    void release(M3u8Download m3u8Download) {
+        synchronized (this) {
+            if (null == active.remove(m3u8Download)) {
+                Admission admission = queued.remove(m3u8Download);
+                if (null != admission) {
+                    queue.remove(admission);
+                }
+                return;
+            }
+        }
+        admit();
+    }
+
+    synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    private void admit() {
+        while (true) {
+            Admission admission;
+            synchronized (this) {
+                if (queue.isEmpty() || activeCountOfPriority(queue.first().priority) >= maxActiveDownloads) {
+                    break;
+                }
+                admission = pollNext();
+                queued.remove(admission.m3u8Download);
+                active.put(admission.m3u8Download, admission);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("admit download: {}", admission.m3u8Download.getIdentity());
+            }
+            admission.starter.run();
+        }
+        for (M3u8Download m3u8Download : pollLookAhead()) {
+            if (log.isDebugEnabled()) {
+                log.debug("prepare download: {}", m3u8Download.getIdentity());
+            }
+            preparer.accept(m3u8Download);
+        }
+    }
+
+    /**
+     * active downloads of the priority or higher
+     */
+    private int activeCountOfPriority(int priority) {
+        int count = 0;
+        for (Admission admission : active.values()) {
+            if (admission.priority >= priority) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Admission pollNext() {
+        if (!largestRemainingWorkFirst || queue.size() <= 1) {
+            return queue.pollFirst();
+        }
+        // the work is compared within the same priority
+        int priority = queue.first().priority;
+        List<Admission> candidates = CollUtil.newArrayList();
+        for (Admission admission : queue) {
+            if (candidates.size() >= Math.max(1, lookAhead) || admission.priority != priority) {
+                break;
+            }
+            candidates.add(admission);
+        }
+        double[] works = RemainingWork.estimate(candidates.stream().map(a -> a.m3u8Download).collect(Collectors.toList()));
+        int selected = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (candidates.get(i).bypasses >= lookAhead) {
+                selected = i;
+                break;
+            }
+            if (works[i] > works[selected]) {
+                selected = i;
+            }
+        }
+        for (int i = 0; i < selected; i++) {
+            candidates.get(i).bypasses++;
+        }
+        Admission admission = candidates.get(selected);
+        queue.remove(admission);
+        return admission;
+    }
+
+    private synchronized List<M3u8Download> pollLookAhead() {
+        List<M3u8Download> downloads = Collections.emptyList();
+        int count = 0;
+        for (Admission admission : queue) {
+            if (count++ >= lookAhead) {
+                break;
+            }
+            if (admission.prepared) {
+                continue;
+            }
+            admission.prepared = true;
+            if (downloads.isEmpty()) {
+                downloads = CollUtil.newArrayList();
+            }
+            downloads.add(admission.m3u8Download);
+        }
+        return downloads;
+    }
+
+    private static class Admission {
+
+        final long sequence;
+
+        final int priority;
+
+        final Runnable starter;
+
+        final M3u8Download m3u8Download;
+
+        boolean prepared;
+
+        int bypasses;
+
+        Admission(M3u8Download m3u8Download, Runnable starter, long sequence) {
+            this.starter = starter;
+            this.sequence = sequence;
+            this.m3u8Download = m3u8Download;
+            this.priority = m3u8Download.getM3u8DownloadOptions().getPriority();
+        }
+    }
+
+}
@@ -9,6 +9,7 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URI;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +34,24 @@ public final class M3u8DownloadBuilder {
 
     private boolean mergeWithoutConvertToMp4;
 
+    private boolean mergeInPlace;
+
+    private boolean packTs;
+
+    private boolean recordLive;
+
+    private Duration maxRecordDuration;
+
+    private VariantSelector variantSelector;
+
+    private long maxByteRangeCoalesceSize = 8 * 1024 * 1024;
+
+    private int weight = 1;
+
+    private long maxBytesPerSecond;
+
+    private int priority;
+
     private M3u8HttpRequestConfigStrategy specRequestConfigStrategy;
 
     private OptionsForApplyTsCache optionsForApplyTsCache = OptionsForApplyTsCache.SANITY_CHECK;
@@ -84,6 +103,80 @@ public final class M3u8DownloadBuilder {
         return this;
     }
 
+    /**
+     * same as {@link #mergeWithoutConvertToMp4()}, ts is written into its region of the preallocated target file
+     * directly, so the merge step disappears. sizes of ts are known by byte ranges or probed by HEAD, it falls back
+     * to ts files if any size is unknown, the playlist is encrypted or live is recorded
+     */
+    public M3u8DownloadBuilder mergeInPlace() {
+        this.mergeInPlace = true;
+        this.mergeWithoutConvertToMp4 = true;
+        return this;
+    }
+
+    /**
+     * append ts into a pack file in tsDir as they complete, instead of a file per ts, so that a long playlist
+     * does not leave thousands of small files. it is unavailable if merged in place or live is recorded,
+     * and the ts cache based on filename is not applied
+     */
+    public M3u8DownloadBuilder packTs() {
+        this.packTs = true;
+        return this;
+    }
+
+    /**
+     * keep reloading the playlist until EXT-X-ENDLIST appears, if it is a live playlist
+     */
+    public M3u8DownloadBuilder recordLive() {
+        this.recordLive = true;
+        return this;
+    }
+
+    /**
+     * same as {@link #recordLive()}, stop reloading after maxRecordDuration
+     */
+    public M3u8DownloadBuilder recordLive(Duration maxRecordDuration) {
+        checkNotNull(maxRecordDuration);
+        checkArgument(!maxRecordDuration.isNegative() && !maxRecordDuration.isZero(), "maxRecordDuration must be positive");
+        this.recordLive = true;
+        this.maxRecordDuration = maxRecordDuration;
+        return this;
+    }
+
+    /**
+     * contiguous unencrypted EXT-X-BYTERANGE sub-ranges are downloaded in one request up to the size,
+     * 0 means never coalesce, default is 8MB
+     */
+    public M3u8DownloadBuilder setMaxByteRangeCoalesceSize(long maxByteRangeCoalesceSize) {
+        this.maxByteRangeCoalesceSize = checkNonNegative(maxByteRangeCoalesceSize, "maxByteRangeCoalesceSize");
+        return this;
+    }
+
+    /**
+     * share of connections against other downloads on the same route, default is 1
+     */
+    public M3u8DownloadBuilder setWeight(int weight) {
+        this.weight = checkPositive(weight, "weight");
+        return this;
+    }
+
+    /**
+     * max bytes per second read by ts downloads, in addition to the limit of executor, default is unlimited
+     */
+    public M3u8DownloadBuilder setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = checkPositive(maxBytesPerSecond, "maxBytesPerSecond");
+        return this;
+    }
+
+    /**
+     * higher goes first in executor queue, and gets ts released before lower ones on the same route,
+     * default is 0, the lowest
+     */
+    public M3u8DownloadBuilder setPriority(int priority) {
+        this.priority = checkNonNegative(priority, "priority");
+        return this;
+    }
+
     public M3u8DownloadBuilder startOver() {
         this.optionsForApplyTsCache = OptionsForApplyTsCache.START_OVER;
         return this;
@@ -104,6 +197,14 @@ public final class M3u8DownloadBuilder {
         return this;
     }
 
+    /**
+     * selects the variant stream of master playlist, default is the first one
+     */
+    public M3u8DownloadBuilder setVariantSelector(VariantSelector variantSelector) {
+        this.variantSelector = checkNotNull(variantSelector);
+        return this;
+    }
+
     public M3u8DownloadBuilder addListener(M3u8DownloadListener m3u8DownloadListener) {
         this.listeners.add(checkNotNull(m3u8DownloadListener));
         return this;
@@ -194,7 +295,9 @@ public final class M3u8DownloadBuilder {
         }
 
         M3u8DownloadOptions options = new M3u8DownloadOptions(this.deleteTsOnComplete,
-                this.mergeWithoutConvertToMp4, optionsForApplyTsCache, configStrategy);
+                this.mergeWithoutConvertToMp4, this.mergeInPlace, this.packTs, optionsForApplyTsCache, configStrategy,
+                this.variantSelector, this.recordLive, this.maxRecordDuration, this.maxByteRangeCoalesceSize,
+                this.weight, this.maxBytesPerSecond, this.priority);
 
         return new M3u8Download(uri, fileName, workHome, targetFileDir, listeners, options);
     }
@@ -2,6 +2,8 @@ package io.github.kanglong1023.m3u8.core;
 
 import lombok.Getter;
 
+import java.time.Duration;
+
 @Getter
 class M3u8DownloadOptions {
 
@@ -9,16 +11,73 @@ class M3u8DownloadOptions {
 
     private final boolean mergeWithoutConvertToMp4;
 
+    /**
+     * ts is written into its region of the target file directly, no merge step is needed
+     */
+    private final boolean mergeInPlace;
+
+    /**
+     * ts is appended into a pack file instead of a file per ts
+     */
+    private final boolean packTs;
+
     private final OptionsForApplyTsCache optionsForApplyTsCache;
 
     private final M3u8HttpRequestConfigStrategy m3u8HttpRequestConfigStrategy;
 
+    private final VariantSelector variantSelector;
+
+    private final boolean recordLive;
+
+    /**
+     * nullable, max duration of recording live playlist
+     */
+    private final Duration maxRecordDuration;
+
+    /**
+     * max bytes of contiguous EXT-X-BYTERANGE sub-ranges coalesced into one request
+     */
+    private final long maxByteRangeCoalesceSize;
+
+    /**
+     * share of connections against other downloads on the same route
+     */
+    private final int weight;
+
+    /**
+     * max bytes per second read by ts downloads of this download, non-positive means unlimited
+     */
+    private final long maxBytesPerSecond;
+
+    /**
+     * higher goes first in executor queue and ts scheduling, 0 is the lowest
+     */
+    private final int priority;
+
     M3u8DownloadOptions(boolean deleteTsOnComplete,
                         boolean mergeWithoutConvertToMp4,
+                        boolean mergeInPlace,
+                        boolean packTs,
                         OptionsForApplyTsCache optionsForApplyTsCache,
-                        M3u8HttpRequestConfigStrategy m3u8HttpRequestConfigStrategy) {
+                        M3u8HttpRequestConfigStrategy m3u8HttpRequestConfigStrategy,
+                        VariantSelector variantSelector,
+                        boolean recordLive,
+                        Duration maxRecordDuration,
+                        long maxByteRangeCoalesceSize,
+                        int weight,
+                        long maxBytesPerSecond,
+                        int priority) {
+        this.weight = weight;
+        this.priority = priority;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxByteRangeCoalesceSize = maxByteRangeCoalesceSize;
+        this.recordLive = recordLive;
+        this.variantSelector = variantSelector;
+        this.maxRecordDuration = maxRecordDuration;
         this.deleteTsOnComplete = deleteTsOnComplete;
         this.optionsForApplyTsCache = optionsForApplyTsCache;
+        this.packTs = packTs;
+        this.mergeInPlace = mergeInPlace;
         this.mergeWithoutConvertToMp4 = mergeWithoutConvertToMp4;
         this.m3u8HttpRequestConfigStrategy = m3u8HttpRequestConfigStrategy;
     }
@@ -1,10 +1,13 @@
 package io.github.kanglong1023.m3u8.core;
 
+import io.github.kanglong1023.m3u8.core.TsDownloadPlanner.TsDownloadPlanListener;
 import io.github.kanglong1023.m3u8.http.DecryptionKey;
 import io.github.kanglong1023.m3u8.http.HttpRequestManager;
+import io.github.kanglong1023.m3u8.http.component.BandwidthLimiter;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestConfig;
 import io.github.kanglong1023.m3u8.http.response.FileDownloadOptions;
 import io.github.kanglong1023.m3u8.http.response.FileDownloadPostProcessor;
+import io.github.kanglong1023.m3u8.http.response.sink.FileRegionAllocator;
 import io.github.kanglong1023.m3u8.util.CollUtil;
 import io.github.kanglong1023.m3u8.util.FutureUtil;
 import io.github.kanglong1023.m3u8.util.function.CheckedRunnable;
@@ -12,11 +15,16 @@ import io.github.kanglong1023.m3u8.util.function.Try;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 
+import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -27,8 +35,8 @@ import static io.github.kanglong1023.m3u8.util.FutureUtil.disinterest;
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 import static io.github.kanglong1023.m3u8.util.ThreadUtil.newFixedScheduledThreadPool;
 import static io.github.kanglong1023.m3u8.util.ThreadUtil.newFixedThreadPool;
+import static java.lang.String.format;
 import static java.util.Optional.ofNullable;
-import static org.apache.commons.collections4.ListUtils.emptyIfNull;
 import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 
 @Slf4j
@@ -44,25 +52,66 @@ public class M3u8Executor {
 
     private final TsDownloadOptionsSelector optionsSelector;
 
+    // shared by all downloads, each key is fetched once
+    private final M3u8SecretKeyCache secretKeyCache;
+
+    private final TsDownloadScheduler tsDownloadScheduler;
+
+    // nullable
+    private final BandwidthLimiter bandwidthLimiter;
+
+    private final double hedgePercentile;
+
+    private final double maxHedgeRatio;
+
+    private final M3u8DownloadAdmission admission;
+
     public M3u8Executor(HttpRequestManager requestManager) {
         this(requestManager, null);
     }
 
     public M3u8Executor(HttpRequestManager requestManager, TsDownloadOptionsSelector optionsSelector) {
+        this(requestManager, optionsSelector, null);
+    }
+
+    public M3u8Executor(HttpRequestManager requestManager, TsDownloadOptionsSelector optionsSelector,
+                        M3u8ExecutorConfig executorConfig) {
         final int queueSize = 1_000;
         final String executorNameFormat = "m3u8-executor";
         final String schedulerNameFormat = "m3u8-scheduler";
         final int nThreads = Runtime.getRuntime().availableProcessors();
 
         this.requestManager = checkNotNull(requestManager);
-        this.progressScheduler = new M3u8ExecutorProgress();
+        this.secretKeyCache = new M3u8SecretKeyCache();
+        this.progressScheduler = new M3u8ExecutorProgress(requestManager::getRouteConcurrencyLimits,
+                () -> format("active=%s, queued=%s", getActiveDownloadCount(), getQueuedDownloadCount()));
         this.executor = newFixedThreadPool(nThreads, queueSize, executorNameFormat, false);
         this.scheduler = newFixedScheduledThreadPool(1, schedulerNameFormat, true);
         this.optionsSelector = defaultIfNull(optionsSelector, optionsSelector(true, true));
 
+        executorConfig = defaultIfNull(executorConfig, M3u8ExecutorConfig.DEFAULT);
+        int maxInFlightPerRoute = executorConfig.getMaxInFlightPerRoute();
+        if (maxInFlightPerRoute <= 0) {
+            maxInFlightPerRoute = requestManager.getManagerConfig().getMaxConnPerRoute();
+        }
+        this.tsDownloadScheduler = new TsDownloadScheduler(maxInFlightPerRoute, executorConfig.getMaxInFlightPerDownload(),
+                requestManager::getRouteConcurrencyLimit, requestManager.getRouteCircuitBreaker(), scheduler,
+                executorConfig.isLargestRemainingWorkFirst(), executorConfig.isStrictPriority());
+
+        this.admission = new M3u8DownloadAdmission(executorConfig.getMaxActiveDownloads(),
+                executorConfig.getLookAheadDownloads(), this::prepare, executorConfig.isLargestRemainingWorkFirst());
+
+        this.maxHedgeRatio = executorConfig.getMaxHedgeRatio();
+        this.hedgePercentile = executorConfig.getHedgePercentile();
+
+        long maxBytesPerSecond = executorConfig.getMaxBytesPerSecond();
+        this.bandwidthLimiter = maxBytesPerSecond > 0 ? new BandwidthLimiter(maxBytesPerSecond) : null;
+
         this.scheduler.scheduleWithFixedDelay(progressScheduler, 1, 1, TimeUnit.SECONDS);
 
-        log.info("{} threads={}, queueSize={}", executorNameFormat, nThreads, queueSize);
+        log.info("{} threads={}, queueSize={}, maxActiveDownloads={}, maxInFlightPerRoute={}, maxInFlightPerDownload={}, maxBytesPerSecond={}",
+                executorNameFormat, nThreads, queueSize, executorConfig.getMaxActiveDownloads(), maxInFlightPerRoute,
+                executorConfig.getMaxInFlightPerDownload(), maxBytesPerSecond);
     }
 
     public void shutdownAwaitMills(long awaitMills) {
@@ -100,25 +149,60 @@ public class M3u8Executor {
         return disinterest(FutureUtil.allOfColl(futures));
     }
 
+    /**
+     * the download is queued until admitted within maxActiveDownloads, it is removed from the queue if the returned
+     * future is cancelled
+     */
     public CompletableFuture<M3u8Download> execute(M3u8Download m3u8Download) {
 
         checkNotNull(m3u8Download);
 
         CompletableFuture<M3u8Download> future = new CompletableFuture<>();
 
-        this.executor.execute(new M3u8DownloadRunner(m3u8Download, future));
+        this.admission.submit(m3u8Download, () -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                this.executor.execute(new M3u8DownloadRunner(m3u8Download, future));
+            } catch (Throwable th) {
+                log.error(th.getMessage(), th);
+                future.completeExceptionally(th);
+            }
+        });
+
+        future.whenComplete((v, th) -> this.admission.release(m3u8Download));
 
         return future;
     }
 
-    private CompletableFuture<Void> downloadTs(List<TsDownload> tsDownloads, FileDownloadOptions options) {
-        tsDownloads = emptyIfNull(tsDownloads);
-
-        List<CompletableFuture<Path>> downloadFileFutureList = CollUtil.newArrayListWithCapacity(tsDownloads.size());
+    /**
+     * downloads admitted and not finished yet
+     */
+    public int getActiveDownloadCount() {
+        return this.admission.getActiveCount();
+    }
 
-        tsDownloads.forEach(d -> downloadFileFutureList.add(downloadTs(d, options)));
+    /**
+     * downloads waiting for admission
+     */
+    public int getQueuedDownloadCount() {
+        return this.admission.getQueuedCount();
+    }
 
-        return disinterest(FutureUtil.allOfColl(downloadFileFutureList));
+    /**
+     * resolve a queued download ahead, it is resolved again when admitted if failed
+     */
+    private void prepare(M3u8Download m3u8Download) {
+        try {
+            m3u8Download.prepareAsync(bytesResponseGetter(), executor, secretKeyCache).whenComplete((v, th) -> {
+                if (null != th) {
+                    log.warn("prepare {} error: {}", m3u8Download.getIdentity(), FutureUtil.unwrap(th).getMessage());
+                }
+            });
+        } catch (Throwable th) {
+            log.warn("prepare {} error: {}", m3u8Download.getIdentity(), th.getMessage());
+        }
     }
 
     private DecryptionKey convertKey(M3u8SecretKey m3u8SecretKey) {
@@ -129,14 +213,14 @@ public class M3u8Executor {
         return new DecryptionKey(m3u8SecretKey.getKey(), m3u8SecretKey.getMethod(), m3u8SecretKey.getInitVector());
     }
 
-    private CompletableFuture<Path> downloadTs(TsDownload tsDownload, FileDownloadOptions options) {
-        URI uri = tsDownload.getUri();
-        Path filePath = tsDownload.getFilePath();
-        M3u8Download m3u8Download = tsDownload.getM3u8Download();
-        DecryptionKey decryptionKey = convertKey(tsDownload.getM3u8SecretKey());
-        M3u8DownloadOptions m3u8DownloadOptions = m3u8Download.getM3u8DownloadOptions();
-        HttpRequestConfig requestConfig = ofNullable(m3u8DownloadOptions.getM3u8HttpRequestConfigStrategy())
-                .map(s -> s.getConfig(REQ_FOR_TS, uri)).orElse(null);
+    /**
+     * @param hedger nullable, no hedging if null. the ts merged in place or packed is not hedged, its region
+     *               is written by a single request
+     */
+    private CompletableFuture<Path> downloadTs(TsDownload tsDownload, FileDownloadOptions options, TsHedger hedger) {
+        if (null != hedger && !tsDownload.isWrittenIntoSharedFile()) {
+            return new HedgedTsDownload(tsDownload, options, hedger).start();
+        }
 
         FileDownloadPostProcessor fileDownloadPostProcessor = new FileDownloadPostProcessor() {
 
@@ -152,8 +236,8 @@ public class M3u8Executor {
             }
 
             @Override
-            public void afterDownloadComplete() {
-                tsDownload.complete();
+            public void afterDownloadComplete(long fileSize, long checksum) {
+                tsDownload.complete(fileSize, checksum);
             }
 
             @Override
@@ -162,19 +246,57 @@ public class M3u8Executor {
             }
         };
 
-        return this.requestManager.downloadFile(uri, filePath, m3u8Download.getIdentity(),
+        return requestTs(tsDownload, tsDownload.getFilePath(), options, fileDownloadPostProcessor);
+    }
+
+    private CompletableFuture<Path> requestTs(TsDownload tsDownload, Path filePath, FileDownloadOptions options,
+                                              FileDownloadPostProcessor fileDownloadPostProcessor) {
+        URI uri = tsDownload.getUri();
+        M3u8Download m3u8Download = tsDownload.getM3u8Download();
+        DecryptionKey decryptionKey = convertKey(tsDownload.getM3u8SecretKey());
+        M3u8DownloadOptions m3u8DownloadOptions = m3u8Download.getM3u8DownloadOptions();
+        HttpRequestConfig requestConfig = ofNullable(m3u8DownloadOptions.getM3u8HttpRequestConfigStrategy())
+                .map(s -> s.getConfig(REQ_FOR_TS, uri)).orElse(null);
+
+        long mergeOffset = tsDownload.getMergeOffset();
+        if (mergeOffset >= 0) {
+            return this.requestManager.downloadFileRegion(uri, tsDownload.getByteRange(), filePath, mergeOffset,
+                    tsDownload::getMergeLength, m3u8Download.getIdentity(), options, requestConfig, fileDownloadPostProcessor);
+        }
+
+        FileRegionAllocator packAllocator = tsDownload.getPackAllocator();
+        if (null != packAllocator) {
+            return this.requestManager.downloadFile(uri, tsDownload.getByteRange(), filePath, packAllocator,
+                    m3u8Download.getIdentity(), options, decryptionKey, requestConfig, fileDownloadPostProcessor);
+        }
+
+        return this.requestManager.downloadFile(uri, tsDownload.getByteRange(), filePath, m3u8Download.getIdentity(),
                 options, decryptionKey, requestConfig, fileDownloadPostProcessor);
 
     }
 
-    private BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter() {
-        return (uri, cfg) -> {
-            try {
-                return this.requestManager.getBytes(uri, cfg).get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
-            }
-        };
+    /**
+     * throttled by the limiter of executor, and the limiter of download under it if present
+     */
+    private FileDownloadOptions withBandwidthLimiter(M3u8Download m3u8Download, FileDownloadOptions options) {
+        long maxBytesPerSecond = m3u8Download.getM3u8DownloadOptions().getMaxBytesPerSecond();
+        BandwidthLimiter limiter = maxBytesPerSecond > 0 ?
+                new BandwidthLimiter(maxBytesPerSecond, bandwidthLimiter) : bandwidthLimiter;
+        if (null == limiter) {
+            return options;
+        }
+        return FileDownloadOptions.defaultOptionsIfNull(options).withBandwidthLimiter(limiter);
+    }
+
+    private BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter() {
+        return this.requestManager::getBytes;
+    }
+
+    /**
+     * lengths are probed within the windows of the download, as ts are downloaded
+     */
+    private BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter(M3u8Download m3u8Download) {
+        return (uri, config) -> tsDownloadScheduler.submit(m3u8Download, uri, () -> requestManager.getContentLength(uri, config));
     }
 
     private class M3u8DownloadRunner implements Runnable {
@@ -190,23 +312,67 @@ public class M3u8Executor {
 
         @Override
         public void run() {
+            CompletableFuture<Void> downloadTsFuture = new CompletableFuture<>();
             try {
 
-                // resolve m3u8
-                List<TsDownload> tsDownloads = m3u8Download.resolveTsDownloads(bytesResponseGetter());
+                // resolve m3u8 and download ts as soon as planned, the runner thread would not wait for network
+                Queue<CompletableFuture<Path>> downloadFileFutureList = new ConcurrentLinkedQueue<>();
+                m3u8Download.resolveTsDownloadsAsync(bytesResponseGetter(), contentLengthGetter(m3u8Download), executor, secretKeyCache, new TsDownloadPlanListener() {
 
-                FileDownloadOptions options = optionsSelector.getDownloadOptions(m3u8Download, tsDownloads);
+                    private FileDownloadOptions options;
 
-                log.info("identity={} downloadOptions={}", m3u8Download.getIdentity(), options);
+                    @Override
+                    public void planned(List<TsDownload> tsDownloads) {
+                        options = withBandwidthLimiter(m3u8Download,
+                                optionsSelector.getDownloadOptions(m3u8Download, tsDownloads));
 
-                // download ts
-                CompletableFuture<Void> downloadTsFuture = downloadTs(tsDownloads, options);
+                        log.info("identity={} downloadOptions={}", m3u8Download.getIdentity(), options);
 
-                // process scheduler
-                progressScheduler.addM3u8(m3u8Download, downloadTsFuture);
+                        FileDownloadOptions downloadOptions = options;
+                        TsHedger hedger = hedgePercentile > 0 ? new TsHedger(hedgePercentile, maxHedgeRatio) : null;
+                        tsDownloadScheduler.register(m3u8Download, t -> downloadTs(t, downloadOptions, hedger));
+
+                        // process scheduler
+                        progressScheduler.addM3u8(m3u8Download, downloadTsFuture);
+                    }
+
+                    @Override
+                    public void newTsDownload(TsDownload tsDownload) {
+                        // download ts within the in-flight window
+                        CompletableFuture<Path> downloadFileFuture = tsDownloadScheduler.submit(tsDownload);
+                        // e.g. the ts merged in place after the failed one are never placed
+                        downloadFileFuture.whenComplete((p, th) -> {
+                            if (null != th) {
+                                m3u8Download.abortPlanning(FutureUtil.unwrap(th));
+                            }
+                        });
+                        downloadFileFutureList.add(downloadFileFuture);
+                    }
+                }).whenComplete((v, th) -> {
+                    if (null != th) {
+                        downloadTsFuture.completeExceptionally(FutureUtil.unwrap(th));
+                        return;
+                    }
+
+                    // record live playlist
+                    CompletableFuture<Void> liveFuture = CompletableFuture.completedFuture(null);
+                    if (m3u8Download.getM3u8DownloadOptions().isRecordLive() && !m3u8Download.isPlaylistEnded()) {
+                        liveFuture = new LivePlaylistRecorder(m3u8Download).start();
+                    }
+
+                    liveFuture.thenCompose(r -> FutureUtil.allOfColl(downloadFileFutureList)).whenComplete((r, ex) -> {
+                        if (null != ex) {
+                            downloadTsFuture.completeExceptionally(ex);
+                        } else {
+                            downloadTsFuture.complete(null);
+                        }
+                    });
+                });
 
                 // merge ts
                 downloadTsFuture.whenCompleteAsync((v, th) -> {
+                    tsDownloadScheduler.unregister(m3u8Download);
+                    m3u8Download.closeTsIndex();
                     if (null != th) {
                         log.error(th.getMessage(), th);
                     } else {
@@ -223,12 +389,358 @@ public class M3u8Executor {
 
             } catch (Throwable th) {
                 log.error(th.getMessage(), th);
+                downloadTsFuture.completeExceptionally(th);
                 future.completeExceptionally(th);
             }
         }
 
     }
 
+    /**
+     * requests a ts, and requests it again into a sibling file if it takes longer than the hedge delay.
+     * the first completed request wins, the other is cancelled and the ts is completed after it is settled,
+     * so its file is never written by both.
+     */
+    private class HedgedTsDownload {
+
+        final TsHedger hedger;
+
+        final TsDownload tsDownload;
+
+        final FileDownloadOptions options;
+
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+
+        // guarded by this
+        Attempt primary;
+
+        // guarded by this, nullable
+        Attempt hedge;
+
+        // guarded by this
+        boolean settled;
+
+        HedgedTsDownload(TsDownload tsDownload, FileDownloadOptions options, TsHedger hedger) {
+            this.hedger = hedger;
+            this.options = options;
+            this.tsDownload = tsDownload;
+        }
+
+        CompletableFuture<Path> start() {
+            hedger.onRequest();
+            Attempt primary = new Attempt(false, tsDownload.getFilePath());
+            synchronized (this) {
+                this.primary = primary;
+            }
+            primary.start();
+
+            long hedgeDelayNanos = hedger.getHedgeDelayNanos();
+            if (hedgeDelayNanos > 0) {
+                try {
+                    scheduler.schedule(this::startHedge, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException ignored) {
+                }
+            }
+            return future;
+        }
+
+        private void startHedge() {
+            Attempt hedge;
+            synchronized (this) {
+                if (settled || primary.done || !hedger.tryAcquireHedge()) {
+                    return;
+                }
+                Path filePath = tsDownload.getFilePath();
+                hedge = this.hedge = new Attempt(true, filePath.resolveSibling(filePath.getFileName() + ".hedge"));
+            }
+            log.info("hedge ts after {}ms, hedges={}: {}", TimeUnit.NANOSECONDS.toMillis(hedger.getHedgeDelayNanos()),
+                    hedger.getHedges(), tsDownload.getUri());
+            hedge.start();
+        }
+
+        private void onDone(Attempt attempt, Throwable th) {
+            Attempt other;
+            synchronized (this) {
+                attempt.done = true;
+                other = attempt.hedge ? primary : hedge;
+                if (settled) {
+                    return;
+                }
+                // wait for the other
+                if (null != th && null != other && !other.done) {
+                    return;
+                }
+                settled = true;
+            }
+
+            if (null != other && !other.done) {
+                other.cancel();
+            }
+            CompletableFuture<Void> otherSettled = null == other ? CompletableFuture.completedFuture(null) : other.settled;
+            otherSettled.whenComplete((v, e) -> {
+                try {
+                    if (null == th) {
+                        win(attempt);
+                    } else {
+                        lose(th);
+                    }
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        }
+
+        private void win(Attempt attempt) throws IOException {
+            Path filePath = tsDownload.getFilePath();
+            Path hedgePath = filePath.resolveSibling(filePath.getFileName() + ".hedge");
+            if (attempt.hedge) {
+                Files.move(hedgePath, filePath, StandardCopyOption.REPLACE_EXISTING);
+                // bytes of the download were counted by the primary already
+                tsDownload.resetReadBytes(attempt.contentLength, attempt.readBytes);
+            } else {
+                Files.deleteIfExists(hedgePath);
+            }
+            hedger.onCompleted(System.nanoTime() - attempt.startNanos);
+            tsDownload.complete(attempt.fileSize, attempt.checksum);
+            future.complete(filePath);
+        }
+
+        private void lose(Throwable th) throws IOException {
+            Path filePath = tsDownload.getFilePath();
+            Files.deleteIfExists(filePath.resolveSibling(filePath.getFileName() + ".hedge"));
+            tsDownload.failed();
+            future.completeExceptionally(FutureUtil.unwrap(th));
+        }
+
+        private class Attempt implements FileDownloadPostProcessor {
+
+            final boolean hedge;
+
+            final Path filePath;
+
+            // completed after the last request is completed or failed, and its file is closed
+            volatile CompletableFuture<Void> settled = CompletableFuture.completedFuture(null);
+
+            long startNanos;
+
+            // null before started
+            volatile CompletableFuture<Path> request;
+
+            // the request of the file, null before requested
+            volatile CompletableFuture<Path> download;
+
+            // written guarded by HedgedTsDownload.this
+            volatile boolean cancelled;
+
+            // guarded by HedgedTsDownload.this
+            boolean done;
+
+            volatile long contentLength = -1;
+
+            volatile long readBytes;
+
+            volatile long fileSize = -1;
+
+            volatile long checksum = -1;
+
+            Attempt(boolean hedge, Path filePath) {
+                this.hedge = hedge;
+                this.filePath = filePath;
+            }
+
+            void start() {
+                startNanos = System.nanoTime();
+                CompletableFuture<Path> request;
+                if (hedge) {
+                    // within the windows of the scheduler as the ts, it goes before the ts waiting
+                    request = tsDownloadScheduler.submit(tsDownload.getM3u8Download(), tsDownload.getUri(), this::download);
+                } else {
+                    // the primary is started by the scheduler already
+                    request = download();
+                }
+                this.request = request;
+                synchronized (HedgedTsDownload.this) {
+                    if (cancelled) {
+                        request.cancel(false);
+                    }
+                }
+                request.whenComplete((path, th) -> onDone(this, th));
+            }
+
+            /**
+             * called again if the request is requeued by the scheduler, the last one is settled then
+             */
+            private CompletableFuture<Path> download() {
+                CompletableFuture<Void> settled = new CompletableFuture<>();
+                synchronized (HedgedTsDownload.this) {
+                    if (cancelled) {
+                        return FutureUtil.failed(new CancellationException("attempt is cancelled: " + tsDownload.getUri()));
+                    }
+                    this.settled = settled;
+                }
+                CompletableFuture<Path> download;
+                try {
+                    download = requestTs(tsDownload, filePath, options, this);
+                } catch (Throwable th) {
+                    download = FutureUtil.failed(th);
+                    settled.complete(null);
+                }
+                this.download = download;
+                synchronized (HedgedTsDownload.this) {
+                    if (cancelled) {
+                        download.cancel(false);
+                    }
+                }
+                return download;
+            }
+
+            /**
+             * the file may be still written until {@link #settled} is completed
+             */
+            void cancel() {
+                synchronized (HedgedTsDownload.this) {
+                    cancelled = true;
+                }
+                CompletableFuture<Path> download = this.download;
+                if (null != download) {
+                    download.cancel(false);
+                }
+                CompletableFuture<Path> request = this.request;
+                if (null != request) {
+                    request.cancel(false);
+                }
+            }
+
+            @Override
+            public void startDownload(Long contentLength, boolean reStart) {
+                this.contentLength = defaultIfNull(contentLength, -1L);
+                this.readBytes = 0;
+                // progress of the primary only, the hedge is counted if it wins
+                if (!hedge && !cancelled) {
+                    tsDownload.startRead(this.contentLength, reStart);
+                }
+            }
+
+            @Override
+            public void afterReadBytes(int size, boolean end) {
+                this.readBytes += size;
+                if (!hedge && !cancelled) {
+                    tsDownload.readBytes(size, end);
+                }
+            }
+
+            @Override
+            public void afterDownloadComplete(long fileSize, long checksum) {
+                this.fileSize = fileSize;
+                this.checksum = checksum;
+                this.settled.complete(null);
+            }
+
+            @Override
+            public void afterDownloadFailed() {
+                this.settled.complete(null);
+            }
+        }
+    }
+
+    /**
+     * reloads the live playlist at the target duration cadence, stops on EXT-X-ENDLIST, max record duration,
+     * consecutive reload failures or the playlist is not updated for a long time
+     */
+    private class LivePlaylistRecorder implements Runnable {
+
+        static final int maxReloadFailures = 3;
+
+        static final int maxStalledTargetDurations = 3;
+
+        final M3u8Download m3u8Download;
+
+        final Long deadlineNanos;
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        int reloadFailures;
+
+        long lastUpdateNanos;
+
+        LivePlaylistRecorder(M3u8Download m3u8Download) {
+            this.m3u8Download = checkNotNull(m3u8Download);
+            this.lastUpdateNanos = System.nanoTime();
+            this.deadlineNanos = ofNullable(m3u8Download.getM3u8DownloadOptions().getMaxRecordDuration())
+                    .map(d -> lastUpdateNanos + d.toNanos()).orElse(null);
+        }
+
+        CompletableFuture<Void> start() {
+            log.info("start recording live playlist, targetDuration={}: {}", targetDuration(), m3u8Download.getIdentity());
+            scheduleReload(targetDuration().toNanos());
+            return future;
+        }
+
+        @Override
+        public void run() {
+            if (null != deadlineNanos && System.nanoTime() - deadlineNanos >= 0) {
+                finish("max record duration reached");
+                return;
+            }
+            m3u8Download.reloadTsDownloadsAsync().whenComplete((tsDownloads, th) -> {
+                long targetNanos = targetDuration().toNanos();
+                if (null != th) {
+                    if (++reloadFailures >= maxReloadFailures) {
+                        log.error("reload live playlist failed {} times: {}", reloadFailures, m3u8Download.getIdentity(), th);
+                        finish("reload failed");
+                        return;
+                    }
+                    log.warn("reload live playlist failed: {}, {}", m3u8Download.getIdentity(), FutureUtil.unwrap(th).getMessage());
+                    scheduleReload(targetNanos / 2);
+                    return;
+                }
+                reloadFailures = 0;
+
+                long now = System.nanoTime();
+                if (CollectionUtils.isNotEmpty(tsDownloads)) {
+                    lastUpdateNanos = now;
+                    log.info("live playlist append {} ts: {}", tsDownloads.size(), m3u8Download.getIdentity());
+                }
+                if (m3u8Download.isPlaylistEnded()) {
+                    finish("playlist ended");
+                    return;
+                }
+                if (CollectionUtils.isEmpty(tsDownloads)) {
+                    if (now - lastUpdateNanos > maxStalledTargetDurations * targetNanos) {
+                        finish("playlist not updated");
+                        return;
+                    }
+                    // unchanged, retry at half the target duration
+                    scheduleReload(targetNanos / 2);
+                    return;
+                }
+                scheduleReload(targetNanos);
+            });
+        }
+
+        void scheduleReload(long delayNanos) {
+            if (null != deadlineNanos) {
+                delayNanos = Math.max(0, Math.min(delayNanos, deadlineNanos - System.nanoTime()));
+            }
+            try {
+                scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+
+        void finish(String reason) {
+            log.info("stop recording live playlist({}), {} ts: {}", reason,
+                    m3u8Download.getTsDownloadsCount(), m3u8Download.getIdentity());
+            future.complete(null);
+        }
+
+        Duration targetDuration() {
+            return defaultIfNull(m3u8Download.getTargetDuration(), Duration.ofSeconds(10));
+        }
+
+    }
+
 }
 
 
@@ -0,0 +1,229 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.util.Preconditions;
+
+public final class M3u8ExecutorConfig {
+
+    public static final M3u8ExecutorConfig DEFAULT = custom().build();
+
+    private final int maxInFlightPerRoute;
+
+    private final int maxInFlightPerDownload;
+
+    private final long maxBytesPerSecond;
+
+    private final double hedgePercentile;
+
+    private final double maxHedgeRatio;
+
+    private final int maxActiveDownloads;
+
+    private final int lookAheadDownloads;
+
+    private final boolean largestRemainingWorkFirst;
+
+    private final boolean strictPriority;
+
+    private M3u8ExecutorConfig(int maxInFlightPerRoute, int maxInFlightPerDownload, long maxBytesPerSecond,
+                               double hedgePercentile, double maxHedgeRatio, int maxActiveDownloads,
+                               int lookAheadDownloads, boolean largestRemainingWorkFirst, boolean strictPriority) {
+        this.strictPriority = strictPriority;
+        this.largestRemainingWorkFirst = largestRemainingWorkFirst;
+        this.lookAheadDownloads = lookAheadDownloads;
+        this.maxActiveDownloads = maxActiveDownloads;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.hedgePercentile = hedgePercentile;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxInFlightPerRoute = maxInFlightPerRoute;
+        this.maxInFlightPerDownload = maxInFlightPerDownload;
+    }
+
+    /**
+     * max ts requests in flight to the same route, non-positive means maxConnPerRoute of HttpRequestManagerConfig
+     */
+    public int getMaxInFlightPerRoute() {
+        return maxInFlightPerRoute;
+    }
+
+    /**
+     * max ts requests in flight of a M3u8Download
+     */
+    public int getMaxInFlightPerDownload() {
+        return maxInFlightPerDownload;
+    }
+
+    /**
+     * max bytes per second read by all ts downloads, non-positive means unlimited
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * a ts taking longer than the percentile of latencies of its download is requested again on another
+     * connection, the first completed one is kept. non-positive means no hedging
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * max hedged requests as a fraction of ts requests of a download
+     */
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * max M3u8Downloads resolving or downloading at the same time, the others are queued until admitted.
+     * it is counted over downloads of the same or higher priority, a higher one is not held by lower ones
+     */
+    public int getMaxActiveDownloads() {
+        return maxActiveDownloads;
+    }
+
+    /**
+     * the first queued M3u8Downloads resolved ahead, so they could start downloading ts as soon as admitted.
+     * 0 means no look-ahead
+     */
+    public int getLookAheadDownloads() {
+        return lookAheadDownloads;
+    }
+
+    /**
+     * the queued M3u8Download with the most remaining work among the look-ahead ones is admitted first, and active
+     * downloads share connections in proportion to their remaining work, estimated by EXTINF and observed bitrate.
+     * it shortens the time of a batch, otherwise downloads are admitted in order of submission
+     */
+    public boolean isLargestRemainingWorkFirst() {
+        return largestRemainingWorkFirst;
+    }
+
+    /**
+     * priority of M3u8Downloads in ts scheduling. strict: ts of higher ones on the same route are released first.
+     * weighted: the share of connections is doubled for each level of priority
+     */
+    public boolean isStrictPriority() {
+        return strictPriority;
+    }
+
+    @Override
+    public String toString() {
+        return "M3u8ExecutorConfig{" +
+                "maxInFlightPerRoute=" + maxInFlightPerRoute +
+                ", maxInFlightPerDownload=" + maxInFlightPerDownload +
+                ", maxBytesPerSecond=" + maxBytesPerSecond +
+                ", hedgePercentile=" + hedgePercentile +
+                ", maxHedgeRatio=" + maxHedgeRatio +
+                ", maxActiveDownloads=" + maxActiveDownloads +
+                ", lookAheadDownloads=" + lookAheadDownloads +
+                ", largestRemainingWorkFirst=" + largestRemainingWorkFirst +
+                ", strictPriority=" + strictPriority +
+                '}';
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int maxInFlightPerRoute;
+
+        private int maxInFlightPerDownload;
+
+        private long maxBytesPerSecond;
+
+        private double hedgePercentile;
+
+        private double maxHedgeRatio;
+
+        private int maxActiveDownloads;
+
+        private int lookAheadDownloads;
+
+        private boolean largestRemainingWorkFirst;
+
+        private boolean strictPriority;
+
+        Builder() {
+            super();
+
+            this.maxInFlightPerRoute = 0;
+            this.maxInFlightPerDownload = 64;
+            this.maxBytesPerSecond = 0;
+            this.hedgePercentile = 0;
+            this.maxHedgeRatio = 0.05;
+            this.maxActiveDownloads = 16;
+            this.lookAheadDownloads = 2;
+            this.largestRemainingWorkFirst = false;
+            this.strictPriority = true;
+        }
+
+        public Builder maxInFlightPerRoute(final int maxInFlightPerRoute) {
+            Preconditions.checkPositive(maxInFlightPerRoute, "maxInFlightPerRoute");
+            this.maxInFlightPerRoute = maxInFlightPerRoute;
+            return this;
+        }
+
+        public Builder maxInFlightPerDownload(final int maxInFlightPerDownload) {
+            Preconditions.checkPositive(maxInFlightPerDownload, "maxInFlightPerDownload");
+            this.maxInFlightPerDownload = maxInFlightPerDownload;
+            return this;
+        }
+
+        public Builder maxBytesPerSecond(final long maxBytesPerSecond) {
+            Preconditions.checkPositive(maxBytesPerSecond, "maxBytesPerSecond");
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public Builder hedgePercentile(final double hedgePercentile) {
+            Preconditions.checkArgument(hedgePercentile > 0 && hedgePercentile < 1, "hedgePercentile must be in (0, 1)");
+            this.hedgePercentile = hedgePercentile;
+            return this;
+        }
+
+        public Builder maxHedgeRatio(final double maxHedgeRatio) {
+            Preconditions.checkArgument(maxHedgeRatio > 0 && maxHedgeRatio <= 1, "maxHedgeRatio must be in (0, 1]");
+            this.maxHedgeRatio = maxHedgeRatio;
+            return this;
+        }
+
+        public Builder maxActiveDownloads(final int maxActiveDownloads) {
+            Preconditions.checkPositive(maxActiveDownloads, "maxActiveDownloads");
+            this.maxActiveDownloads = maxActiveDownloads;
+            return this;
+        }
+
+        public Builder lookAheadDownloads(final int lookAheadDownloads) {
+            Preconditions.checkNonNegative(lookAheadDownloads, "lookAheadDownloads");
+            this.lookAheadDownloads = lookAheadDownloads;
+            return this;
+        }
+
+        public Builder largestRemainingWorkFirst(final boolean largestRemainingWorkFirst) {
+            this.largestRemainingWorkFirst = largestRemainingWorkFirst;
+            return this;
+        }
+
+        public Builder strictPriority(final boolean strictPriority) {
+            this.strictPriority = strictPriority;
+            return this;
+        }
+
+        public M3u8ExecutorConfig build() {
+            return new M3u8ExecutorConfig(
+                    this.maxInFlightPerRoute,
+                    this.maxInFlightPerDownload,
+                    this.maxBytesPerSecond,
+                    this.hedgePercentile,
+                    this.maxHedgeRatio,
+                    this.maxActiveDownloads,
+                    this.lookAheadDownloads,
+                    this.largestRemainingWorkFirst,
+                    this.strictPriority);
+        }
+    }
+
+}
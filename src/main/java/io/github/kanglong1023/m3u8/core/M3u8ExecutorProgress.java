@@ -5,14 +5,17 @@ import io.github.kanglong1023.m3u8.util.TextTableFormat;
 import io.github.kanglong1023.m3u8.util.Utils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.MapUtils;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 import static io.github.kanglong1023.m3u8.util.Utils.bytesFormat;
@@ -31,7 +34,21 @@ public class M3u8ExecutorProgress implements Runnable {
 
     private final List<M3u8Progress> m3u8Progresses = CollUtil.newCopyOnWriteArrayList();
 
+    // nullable
+    private final Supplier<Map<String, Integer>> routeLimitsSupplier;
+
+    // nullable
+    private final Supplier<String> downloadsSupplier;
+
     public M3u8ExecutorProgress() {
+        this(null, null);
+    }
+
+    /**
+     * @param routeLimitsSupplier nullable, concurrency limits of routes
+     * @param downloadsSupplier   nullable, active and queued downloads of executor
+     */
+    public M3u8ExecutorProgress(Supplier<Map<String, Integer>> routeLimitsSupplier, Supplier<String> downloadsSupplier) {
         StringBuilder out = new StringBuilder();
         TextTableFormat tableFormat = TextTableFormat.textTableFormat(out);
         tableFormat.setTitles("idx", "name", "seconds", "speed", "avgSpeed", "progress", "downloadSize", "estimatedTime",
@@ -40,6 +57,8 @@ public class M3u8ExecutorProgress implements Runnable {
 
         this.out = out;
         this.tableFormat = tableFormat;
+        this.routeLimitsSupplier = routeLimitsSupplier;
+        this.downloadsSupplier = downloadsSupplier;
     }
 
     @Override
@@ -95,8 +114,11 @@ public class M3u8ExecutorProgress implements Runnable {
             String output = this.out.toString();
             if (begin) {
                 String speed = bytesFormat(readBytes, 3);
-                String content = format("Running for %s seconds\tspeed %s/s\tList %s M3u8 download tasks: \n%s",
-                        seconds, speed, m3u8Progresses.size(), output);
+                Map<String, Integer> routeLimits = null == routeLimitsSupplier ? null : routeLimitsSupplier.get();
+                String limits = MapUtils.isEmpty(routeLimits) ? "" : format("\trouteLimits %s", routeLimits);
+                String downloads = null == downloadsSupplier ? "" : format("\tdownloads %s", downloadsSupplier.get());
+                String content = format("Running for %s seconds\tspeed %s/s%s%s\tList %s M3u8 download tasks: \n%s",
+                        seconds, speed, downloads, limits, m3u8Progresses.size(), output);
                 log.info(content);
             } else {
                 String content = format("Continue %s seconds: \n%s", seconds, output);
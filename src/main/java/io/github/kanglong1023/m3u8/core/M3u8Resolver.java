@@ -2,8 +2,10 @@ package io.github.kanglong1023.m3u8.core;
 
 import io.github.kanglong1023.m3u8.http.config.HttpRequestConfig;
 import io.github.kanglong1023.m3u8.util.CollUtil;
+import io.github.kanglong1023.m3u8.util.FutureUtil;
 import io.github.kanglong1023.m3u8.util.Preconditions;
 import io.github.kanglong1023.m3u8.util.Utils;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
@@ -11,6 +13,7 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
+import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.net.URI;
@@ -20,8 +23,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
-import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static io.github.kanglong1023.m3u8.core.M3u8HttpRequestType.*;
@@ -35,7 +39,14 @@ public class M3u8Resolver {
 
     private final M3u8HttpRequestConfigStrategy requestConfigStrategy;
 
-    private final BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter;
+    private final Executor executor;
+
+    private final M3u8SecretKeyCache secretKeyCache;
+
+    @Setter
+    private VariantSelector variantSelector = VariantSelector.first();
+
+    private final BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter;
 
     // ----------- result ------------ //
 
@@ -43,77 +54,145 @@ public class M3u8Resolver {
 
     private URI masterM3u8Uri;
 
-    private String finalM3u8Content;
+    @Getter(AccessLevel.NONE)
+    private ByteBuffer finalM3u8Content;
 
-    private String masterM3u8Content;
+    @Getter(AccessLevel.NONE)
+    private ByteBuffer masterM3u8Content;
 
     private List<MediaSegment> mediaSegments;
 
+    // ----------- live ------------ //
+
+    private boolean endList;
+
+    /**
+     * seconds, -1 if absent
+     */
+    private long targetDuration = -1;
+
+    private int lastSequence = -1;
+
+    @Getter(AccessLevel.NONE)
+    private MediaSegmentKey finalSegmentKey;
+
     public M3u8Resolver(URI m3u8Uri, M3u8HttpRequestConfigStrategy requestConfigStrategy,
                         BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter) {
+        this(m3u8Uri, requestConfigStrategy,
+                checkNotNull(bytesResponseGetter).andThen(CompletableFuture::completedFuture), Runnable::run, null);
+    }
+
+    /**
+     * @param executor       executes the parsing after playlist is fetched
+     * @param secretKeyCache nullable, may be shared between resolvers
+     */
+    public M3u8Resolver(URI m3u8Uri, M3u8HttpRequestConfigStrategy requestConfigStrategy,
+                        BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter,
+                        Executor executor, M3u8SecretKeyCache secretKeyCache) {
         this.m3u8Uri = checkNotNull(m3u8Uri);
+        this.executor = checkNotNull(executor);
+        this.secretKeyCache = ObjectUtils.defaultIfNull(secretKeyCache, new M3u8SecretKeyCache());
         this.requestConfigStrategy = requestConfigStrategy;
         this.bytesResponseGetter = checkNotNull(bytesResponseGetter);
     }
 
     public Map<MediaSegment, M3u8SecretKey> fetchSecretKey(List<MediaSegment> segments) {
-        segments = segments.stream().filter(s -> Objects.nonNull(s.getKey())).collect(Collectors.toList());
-        if (CollectionUtils.isEmpty(segments)) {
-            return Collections.emptyMap();
-        }
+        return FutureUtil.getUnwrapped(fetchSecretKeyAsync(segments));
+    }
 
-        Map<MediaSegmentKey, M3u8SecretKey> cache = CollUtil.newHashMap();
-        Map<MediaSegment, M3u8SecretKey> result = CollUtil.newLinkedHashMap();
-        for (MediaSegment segment : segments) {
-            MediaSegmentKey key = segment.getKey();
-            if (Objects.isNull(key)) {
-                continue;
-            }
-            if (cache.containsKey(key)) {
-                result.put(segment, cache.get(key).copy());
-                continue;
-            }
-            if (Objects.equals("NONE", key.getMethod())) {
-                result.put(segment, M3u8SecretKey.NONE);
-                continue;
-            }
-            if (Objects.equals("AES-128", key.getMethod())) {
-                String iv = key.getIv();
-                URI keyUri = key.getUri();
-                String keyFormat = key.getKeyFormat();
-                m3u8CheckNotNull(keyUri, "key uri is null: %s", key);
-
-                String keyMethod = "AES-128";
-                byte[] keyBytes = new byte[16];
-                HttpRequestConfig requestConfig = getConfig(REQ_FOR_KEY, keyUri);
-                ByteBuffer byteBuffer = bytesResponseGetter.apply(keyUri, requestConfig);
-                if (byteBuffer.remaining() >= 16) {
-                    byteBuffer.get(keyBytes);
-                } else {
-                    m3u8Exception("keyBytes len < 16: %s", key);
-                }
+    public CompletableFuture<Map<MediaSegment, M3u8SecretKey>> fetchSecretKeyAsync(List<MediaSegment> segments) {
+        Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> futures = fetchSecretKeysAsync(segments);
+        if (MapUtils.isEmpty(futures)) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
 
-                byte[] initVector = new byte[16];
-                if (StringUtils.isBlank(keyFormat) || Objects.equals("identity", keyFormat)) {
-                    if (StringUtils.isBlank(iv)) {
-                        Integer sequence = segment.getSequence();
-                        if (Objects.nonNull(sequence)) {
-                            initVector = sequenceToBytes(sequence);
-                        }
-                    } else if (iv.startsWith("0x") || iv.startsWith("0X")) {
-                        initVector = Utils.parseHexadecimal(iv);
-                    }
-                    M3u8SecretKey m3u8SecretKey = new M3u8SecretKey(keyBytes, initVector, keyMethod);
-                    cache.put(key, m3u8SecretKey);
-                    result.put(segment, m3u8SecretKey);
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<MediaSegment, M3u8SecretKey> result = CollUtil.newLinkedHashMap();
+            Map<MediaSegmentKey, M3u8SecretKey> firstUsed = CollUtil.newHashMap();
+            for (MediaSegment segment : segments) {
+                MediaSegmentKey key = segment.getKey();
+                if (Objects.isNull(key)) {
                     continue;
+                }
+                M3u8SecretKey secretKey = futures.get(key).join();
+                if (M3u8SecretKey.NONE == secretKey || null == firstUsed.putIfAbsent(key, secretKey)) {
+                    result.put(segment, secretKey);
                 } else {
-                    m3u8Exception("unSupported keyFormat: %s", key);
+                    result.put(segment, secretKey.copy());
                 }
             }
+            return result;
+        });
+    }
+
+    /**
+     * distinct keys of segments are fetched concurrently, the future of a key which is cached or needs no fetching
+     * is completed at once, so the segments of it need not wait for the others.
+     *
+     * @return futures by distinct key, in order of first use
+     */
+    public Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> fetchSecretKeysAsync(List<MediaSegment> segments) {
+        // the first segment of each distinct key
+        Map<MediaSegmentKey, MediaSegment> distinctKeys = CollUtil.newLinkedHashMap();
+        for (MediaSegment segment : segments) {
+            if (Objects.nonNull(segment.getKey())) {
+                distinctKeys.putIfAbsent(segment.getKey(), segment);
+            }
+        }
+        if (distinctKeys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> futures = CollUtil.newLinkedHashMap();
+        for (Map.Entry<MediaSegmentKey, MediaSegment> entry : distinctKeys.entrySet()) {
+            MediaSegmentKey key = entry.getKey();
+            futures.put(key, fetchSecretKey(key, entry.getValue()));
+        }
+        return futures;
+    }
+
+    private CompletableFuture<M3u8SecretKey> fetchSecretKey(MediaSegmentKey key, MediaSegment segment) {
+        if (Objects.equals("NONE", key.getMethod())) {
+            return CompletableFuture.completedFuture(M3u8SecretKey.NONE);
+        }
+        if (!Objects.equals("AES-128", key.getMethod())) {
             m3u8Exception("unSupported key method: %s", key);
         }
-        return result;
+
+        String iv = key.getIv();
+        URI keyUri = key.getUri();
+        String keyFormat = key.getKeyFormat();
+        m3u8CheckNotNull(keyUri, "key uri is null: %s", key);
+        if (StringUtils.isNotBlank(keyFormat) && !Objects.equals("identity", keyFormat)) {
+            m3u8Exception("unSupported keyFormat: %s", key);
+        }
+
+        String keyMethod = "AES-128";
+        return secretKeyCache.get(keyUri, this::fetchKeyBytes).thenApply(keyBytes -> {
+            byte[] initVector = new byte[16];
+            if (StringUtils.isBlank(iv)) {
+                Integer sequence = segment.getSequence();
+                if (Objects.nonNull(sequence)) {
+                    initVector = sequenceToBytes(sequence);
+                }
+            } else if (iv.startsWith("0x") || iv.startsWith("0X")) {
+                initVector = Utils.parseHexadecimal(iv);
+            }
+            return new M3u8SecretKey(keyBytes, initVector, keyMethod);
+        });
+    }
+
+    private CompletableFuture<byte[]> fetchKeyBytes(URI keyUri) {
+        HttpRequestConfig requestConfig = getConfig(REQ_FOR_KEY, keyUri);
+        return getBytes(keyUri, requestConfig).thenApply(byteBuffer -> {
+            byte[] keyBytes = new byte[16];
+            if (byteBuffer.remaining() >= 16) {
+                byteBuffer.get(keyBytes);
+            } else {
+                m3u8Exception("keyBytes len < 16: %s", keyUri);
+            }
+            return keyBytes;
+        });
     }
 
     public byte[] sequenceToBytes(Integer sequence) {
@@ -140,144 +219,50 @@ public class M3u8Resolver {
     }
 
     public void resolve() {
-        doResolve(this.m3u8Uri, null, false);
+        FutureUtil.getUnwrapped(resolveAsync());
+    }
+
+    /**
+     * playlists are fetched without blocking, parsing runs on the executor
+     */
+    public CompletableFuture<Void> resolveAsync() {
+        return doResolve(this.m3u8Uri, null, false);
     }
 
-    private void doResolve(URI m3u8Uri, MediaSegmentKey segmentKey, final boolean secondaryStream) {
+    private CompletableFuture<Void> doResolve(URI m3u8Uri, MediaSegmentKey segmentKey, final boolean secondaryStream) {
         Preconditions.checkNotNull(m3u8Uri);
 
-        Supplier<String> m3u8ContentSupplier = () -> {
-            HttpRequestConfig requestConfig = getConfig(secondaryStream ?
-                    REQ_FOR_VARIANT_PLAYLIST : REQ_FOR_M3U8_CONTENT, m3u8Uri);
-            return bytesResponseGetter.andThen(
-                    buffer -> new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
-                            buffer.remaining(), StandardCharsets.UTF_8)).apply(m3u8Uri, requestConfig);
-        };
+        HttpRequestConfig requestConfig = getConfig(secondaryStream ?
+                REQ_FOR_VARIANT_PLAYLIST : REQ_FOR_M3U8_CONTENT, m3u8Uri);
 
+        return getBytes(m3u8Uri, requestConfig)
+                .thenComposeAsync(m3u8Content -> onContent(m3u8Uri, m3u8Content, segmentKey, secondaryStream), executor);
+    }
+
+    private CompletableFuture<Void> onContent(URI m3u8Uri, ByteBuffer m3u8Content,
+                                              MediaSegmentKey segmentKey, final boolean secondaryStream) {
         String url = m3u8Uri.toString();
-        String m3u8Content = m3u8ContentSupplier.get();
-        log.info("{} get content: \n{}", url, m3u8Content);
-
-        String[] lineAry = m3u8Content.split("\\n");
-        m3u8Check(lineAry[0].startsWith("#EXTM3U"), "not m3u8: %s", url);
-
-        int sequenceNumber = 0;
-        String variantStreamInf = null, extInf = null;
-        List<MediaSegment> mediaSegments = CollUtil.newArrayList();
-        Map<URI, Map<String, String>> variantStreamUriAttrMap = CollUtil.newLinkedHashMap();
-        for (String line : lineAry) {
-            line = line.trim();
-            // ignore blank and comments
-            if (StringUtils.isBlank(line) || (line.startsWith("#") && !line.startsWith("#EXT"))) {
-                continue;
-            }
-            // version
-            if (line.startsWith("#EXT-X-VERSION")) {
-                String[] strAry = line.split(":");
-                if (strAry.length == 2 && strAry[1].length() > 0) {
-                    int version = Integer.parseInt(strAry[1].trim());
-                    if (version > 3) {
-                        log.warn("compatible version is HLS 3, the current HLS version is {}, some functions are not supported", version);
-                    }
-                }
-                continue;
-            }
-            // variant stream
-            // check secondaryStream prevent circle error
-            if (!secondaryStream && line.startsWith("#EXT-X-STREAM-INF")) {
-                variantStreamInf = line;
-                continue;
-            }
-            // sequence
-            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE")) {
-                String[] strAry = line.split(":");
-                if (strAry.length == 2 && strAry[1].length() > 0) {
-                    sequenceNumber = Integer.parseInt(strAry[1].trim());
-                }
-                continue;
-            }
-            // key
-            if (line.startsWith("#EXT-X-KEY") || line.startsWith("#EXT-X-SESSION-KEY")) {
-                segmentKey = resolveKey(line);
-                continue;
-            }
-            // media segment
-            if (line.startsWith("#EXTINF")) {
-                extInf = line;
-                continue;
-            }
-            // uri
-            if (!line.startsWith("#")) {
-                // variant stream uri
-                if (null != variantStreamInf) {
-                    URI variantStream = URI.create(line);
-                    Map<String, String> attrMap = CollUtil.newLinkedHashMap();
-                    if (!variantStream.isAbsolute()) {
-                        variantStream = m3u8Uri.resolve(variantStream);
-                    }
-
-                    String attrString;
-                    int index = variantStreamInf.indexOf(':');
-                    if (index > 0 && index < variantStreamInf.length() - 1
-                            && (attrString = variantStreamInf.substring(index + 1)).length() > 0) {
-                        String[] attrAry = attrString.split(",");
-                        if (attrAry.length > 0) {
-                            for (int i = 0; i < attrAry.length; i++) {
-                                attrAry[i] = attrAry[i].trim();
-                                String[] attr = attrAry[i].split("=");
-                                if (attr.length == 2 && attr[1].length() > 0) {
-                                    attrMap.put(attr[0].trim(), removeQuotes(attr[1]));
-                                }
-                            }
-                        }
-                    }
-                    variantStreamUriAttrMap.put(variantStream, attrMap);
-                    variantStreamInf = null;
-                    continue;
-                }
-                // ts
-                if (null != extInf) {
-                    URI mediaUri = URI.create(line);
-                    if (!mediaUri.isAbsolute()) {
-                        mediaUri = m3u8Uri.resolve(mediaUri);
-                    }
-                    String attrString;
-                    Double durationInSeconds = null;
-                    int index = extInf.indexOf(':');
-                    if (index > 0 && index < extInf.length() - 1
-                            && (attrString = extInf.substring(index + 1)).length() > 0) {
-                        String[] attrAry = attrString.split(",");
-                        if (attrAry.length > 0) {
-                            durationInSeconds = Double.valueOf(attrAry[0].trim());
-                        }
-                    }
-                    extInf = null;
-
-                    MediaSegment mediaSegment = new MediaSegment();
-                    mediaSegment.setUri(mediaUri);
-                    mediaSegment.setKey(segmentKey);
-                    mediaSegment.setSequence(sequenceNumber++);
-                    mediaSegment.setDurationInSeconds(durationInSeconds);
-
-                    mediaSegments.add(mediaSegment);
-                    continue;
-                }
-                log.debug("ignore uri={}", line);
-            }
+        M3u8PlaylistParser parser = new M3u8PlaylistParser(m3u8Uri, m3u8Content, segmentKey, secondaryStream).parse();
+        log.info("{} get content: {} bytes, {} lines", url, m3u8Content.remaining(), parser.getLineCount());
+        if (log.isDebugEnabled()) {
+            log.debug("{} content: \n{}", url, decodeContent(m3u8Content));
         }
 
+        List<MediaSegment> mediaSegments = parser.getMediaSegments();
+        Map<URI, Map<String, String>> variantStreamUriAttrMap = parser.getVariantStreamUriAttrMap();
+
         if (MapUtils.isNotEmpty(variantStreamUriAttrMap)) {
             log.info("variant playlist: \n{}", variantStreamUriAttrMap);
-            URI matchedUri = selectVariantStreamUri(variantStreamUriAttrMap);
-            m3u8Check(Objects.nonNull(matchedUri), "select null variant stream uri");
+            VariantStream matched = selectVariantStream(variantStreamUriAttrMap);
+            m3u8Check(Objects.nonNull(matched), "select null variant stream uri");
+            URI matchedUri = matched.getUri();
 
             this.masterM3u8Uri = m3u8Uri;
             this.masterM3u8Content = m3u8Content;
             String matchedUrl = matchedUri.toString();
-            log.info("variant playlist match {}", matchedUrl);
+            log.info("variant playlist match {}: {}", matchedUrl, matched);
 
-            doResolve(matchedUri, segmentKey, true);
-            return;
+            return doResolve(matchedUri, parser.getSegmentKey(), true);
         }
 
         if (CollectionUtils.isNotEmpty(mediaSegments)) {
@@ -288,15 +273,76 @@ public class M3u8Resolver {
             this.finalM3u8Content = m3u8Content;
 
             this.mediaSegments = mediaSegments;
-            return;
+
+            this.finalSegmentKey = segmentKey;
+            this.endList = parser.isEndList();
+            this.targetDuration = parser.getTargetDuration();
+            this.lastSequence = mediaSegments.get(mediaSegments.size() - 1).getSequence();
+            return CompletableFuture.completedFuture(null);
         }
 
         log.warn("resolve empty mediaSegments");
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * reload the final playlist of live stream, should be called after resolved and not concurrently
+     *
+     * @return media segments whose sequence is greater than the last resolved one
+     */
+    public CompletableFuture<List<MediaSegment>> reloadAsync() {
+        URI finalM3u8Uri = this.finalM3u8Uri;
+        m3u8Check(Objects.nonNull(finalM3u8Uri), "m3u8 is not resolved: %s", this.m3u8Uri);
+
+        boolean secondaryStream = Objects.nonNull(this.masterM3u8Uri);
+        HttpRequestConfig requestConfig = getConfig(secondaryStream ?
+                REQ_FOR_VARIANT_PLAYLIST : REQ_FOR_M3U8_CONTENT, finalM3u8Uri);
+
+        return getBytes(finalM3u8Uri, requestConfig)
+                .thenApplyAsync(m3u8Content -> onReload(finalM3u8Uri, m3u8Content, secondaryStream), executor);
+    }
+
+    private List<MediaSegment> onReload(URI m3u8Uri, ByteBuffer m3u8Content, final boolean secondaryStream) {
+        M3u8PlaylistParser parser = new M3u8PlaylistParser(m3u8Uri, m3u8Content, finalSegmentKey, secondaryStream).parse();
+        List<MediaSegment> mediaSegments = parser.getMediaSegments();
+
+        this.finalM3u8Content = m3u8Content;
+        this.endList = parser.isEndList();
+        if (parser.getTargetDuration() > 0) {
+            this.targetDuration = parser.getTargetDuration();
+        }
+
+        int lastSequence = this.lastSequence;
+        List<MediaSegment> newSegments = mediaSegments.stream()
+                .filter(s -> s.getSequence() > lastSequence).collect(Collectors.toList());
+        if (CollectionUtils.isNotEmpty(newSegments)) {
+            int firstSequence = newSegments.get(0).getSequence();
+            if (firstSequence > lastSequence + 1) {
+                log.warn("live playlist missed sequence {} to {}, reload is too slow: {}",
+                        lastSequence + 1, firstSequence - 1, m3u8Uri);
+            }
+            this.mediaSegments = mediaSegments;
+            this.lastSequence = newSegments.get(newSegments.size() - 1).getSequence();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("{} reload: {} new segments, endList={}", m3u8Uri, newSegments.size(), this.endList);
+        }
+        return newSegments;
     }
 
-    private URI selectVariantStreamUri(Map<URI, Map<String, String>> variantStreamUriAttrMap) {
-        // default is the first one, support selector ?
-        return variantStreamUriAttrMap.entrySet().iterator().next().getKey();
+    private CompletableFuture<ByteBuffer> getBytes(URI uri, HttpRequestConfig requestConfig) {
+        try {
+            return bytesResponseGetter.apply(uri, requestConfig);
+        } catch (Throwable th) {
+            return FutureUtil.failed(th);
+        }
+    }
+
+    private VariantStream selectVariantStream(Map<URI, Map<String, String>> variantStreamUriAttrMap) {
+        List<VariantStream> variantStreams = variantStreamUriAttrMap.entrySet().stream()
+                .map(e -> new VariantStream(e.getKey(), e.getValue())).collect(Collectors.toList());
+        return ObjectUtils.defaultIfNull(this.variantSelector, VariantSelector.first()).select(variantStreams);
     }
 
     private HttpRequestConfig getConfig(M3u8HttpRequestType requestType, URI uri) {
@@ -310,67 +356,31 @@ public class M3u8Resolver {
         return null;
     }
 
-    private String removeQuotes(String str) {
-        if (null == str || 0 == (str = str.trim()).length()) {
-            return str;
-        }
+    /**
+     * drop the playlist content and media segments, uris and live state are kept
+     */
+    void releaseContent() {
+        this.mediaSegments = null;
+        this.finalM3u8Content = null;
+        this.masterM3u8Content = null;
+    }
 
-        boolean sub = false;
-        int len = str.length(), beginIndex = 0, endIndex = len;
-        if (str.endsWith("\"")) {
-            sub = true;
-            endIndex = len - 1;
-        }
-        if (str.startsWith("\"")) {
-            sub = true;
-            beginIndex = 1;
-        }
-        if (sub) {
-            str = str.substring(beginIndex, endIndex);
-        }
-        return str;
+    /**
+     * the content is kept as bytes, decode only when needed(e.g. store)
+     */
+    public String getFinalM3u8Content() {
+        return decodeContent(this.finalM3u8Content);
     }
 
-    private MediaSegmentKey resolveKey(String extXKey) {
-        String attrString;
-        int index = extXKey.indexOf(':');
-        if (index > 0 && index < extXKey.length() - 1
-                && (attrString = extXKey.substring(index + 1)).length() > 0) {
-            String[] attrAry = attrString.split(",");
-            if (attrAry.length > 0) {
-                MediaSegmentKey key = new MediaSegmentKey();
-                for (int i = 0; i < attrAry.length; i++) {
-                    attrAry[i] = attrAry[i].trim();
-                    String[] attr = attrAry[i].split("=");
-                    if (attr.length == 2 && attr[1].length() > 0) {
-                        String attrName = attr[0].trim();
-                        String val = removeQuotes(attr[1]);
-                        if (attrName.startsWith("METHOD")) {
-                            key.setMethod(val);
-                            continue;
-                        }
-                        if (attrName.startsWith("URI")) {
-                            key.setUri(URI.create(val));
-                            continue;
-                        }
-                        if (attrName.startsWith("IV")) {
-                            key.setIv(val);
-                            continue;
-                        }
-                        if (attrName.startsWith("KEYFORMAT")) {
-                            key.setKeyFormat(val);
-                            continue;
-                        }
-                        if (attrName.startsWith("KEYFORMATVERSIONS")) {
-                            key.setKeyFormatVersions(val);
-                            continue;
-                        }
-                    }
-                }
-                return key;
-            }
+    public String getMasterM3u8Content() {
+        return decodeContent(this.masterM3u8Content);
+    }
+
+    private static String decodeContent(ByteBuffer content) {
+        if (null == content) {
+            return null;
         }
-        return null;
+        return StandardCharsets.UTF_8.decode(content.duplicate()).toString();
     }
 
 
@@ -388,6 +398,13 @@ public class M3u8Resolver {
 
         private Double durationInSeconds;
 
+        /**
+         * EXT-X-BYTERANGE, null if the segment is the whole resource
+         */
+        private Long byteRangeOffset;
+
+        private Long byteRangeLength;
+
     }
 
     @Getter
@@ -0,0 +1,117 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.util.FutureUtil;
+import io.github.kanglong1023.m3u8.util.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * key bytes cache keyed by key uri, bounded in size and evicted by ttl.
+ * <p>
+ * Concurrent fetches of the same key uri share one request, failed fetches are not cached.
+ */
+@Slf4j
+public class M3u8SecretKeyCache {
+
+    private final int maximumSize;
+
+    private final long ttlNanos;
+
+    // access order, guarded by this
+    private final LinkedHashMap<URI, Entry> entries;
+
+    public M3u8SecretKeyCache() {
+        this(1024, Duration.ofMinutes(10));
+    }
+
+    public M3u8SecretKeyCache(int maximumSize, Duration ttl) {
+        checkNotNull(ttl);
+        Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive");
+        Preconditions.checkArgument(!ttl.isNegative() && !ttl.isZero(), "ttl must be positive");
+
+        this.maximumSize = maximumSize;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<URI, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, Entry> eldest) {
+                return size() > M3u8SecretKeyCache.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @param loader fetches the key bytes if absent or expired
+     * @return a copy of the key bytes
+     */
+    public CompletableFuture<byte[]> get(URI keyUri, Function<URI, CompletableFuture<byte[]>> loader) {
+        checkNotNull(keyUri);
+        checkNotNull(loader);
+
+        Entry entry;
+        boolean absent = false;
+        long now = System.nanoTime();
+        synchronized (this) {
+            entry = entries.get(keyUri);
+            if (null == entry || now - entry.createTime > ttlNanos) {
+                entry = new Entry(now);
+                entries.put(keyUri, entry);
+                absent = true;
+            }
+        }
+
+        if (absent) {
+            load(keyUri, entry, loader);
+        } else if (log.isDebugEnabled()) {
+            log.debug("secret key cache hit: {}", keyUri);
+        }
+        return entry.future.thenApply(byte[]::clone);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void load(URI keyUri, Entry entry, Function<URI, CompletableFuture<byte[]>> loader) {
+        CompletableFuture<byte[]> future;
+        try {
+            future = checkNotNull(loader.apply(keyUri));
+        } catch (Throwable th) {
+            future = FutureUtil.failed(th);
+        }
+        future.whenComplete((bytes, th) -> {
+            if (null != th) {
+                synchronized (this) {
+                    entries.remove(keyUri, entry);
+                }
+                entry.future.completeExceptionally(th);
+            } else {
+                entry.future.complete(bytes);
+            }
+        });
+    }
+
+    private static class Entry {
+
+        final long createTime;
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        Entry(long createTime) {
+            this.createTime = createTime;
+        }
+
+    }
+
+}
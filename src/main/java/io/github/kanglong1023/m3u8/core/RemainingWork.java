@@ -0,0 +1,42 @@
+package io.github.kanglong1023.m3u8.core;
+
+import java.util.List;
+
+/**
+ * remaining work of M3u8Downloads in bytes, estimated by the remaining EXTINF and the observed bitrate.
+ * a download without observed bitrate is assumed at the average bitrate of the others, so the estimates
+ * are comparable with each other.
+ */
+final class RemainingWork {
+
+    private RemainingWork() {
+    }
+
+    /**
+     * @return remaining work of each download, -1 if unknown
+     */
+    static double[] estimate(List<M3u8Download> downloads) {
+        int size = downloads.size();
+        double[] durations = new double[size];
+        double[] bitrates = new double[size];
+        double bitrateSum = 0;
+        int bitrateCount = 0;
+        for (int i = 0; i < size; i++) {
+            M3u8Download m3u8Download = downloads.get(i);
+            durations[i] = m3u8Download.getRemainingDurationInSeconds();
+            bitrates[i] = m3u8Download.getObservedBitrate();
+            if (bitrates[i] > 0) {
+                bitrateSum += bitrates[i];
+                bitrateCount++;
+            }
+        }
+        double averageBitrate = bitrateCount == 0 ? 1 : bitrateSum / bitrateCount;
+
+        double[] works = new double[size];
+        for (int i = 0; i < size; i++) {
+            works[i] = durations[i] < 0 ? -1 : durations[i] * (bitrates[i] > 0 ? bitrates[i] : averageBitrate);
+        }
+        return works;
+    }
+
+}
@@ -0,0 +1,295 @@
+package io.github.kanglong1023.m3u8.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkArgument;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * binary index of completed ts, resuming is one sequential read instead of probing every ts file.
+ * <p>
+ * layout: header(magic, version, fingerprint, segmentCount), completion bitmap, entries(length, crc32) of segments.
+ * <p>
+ * completions are appended to {@link TsCompletionJournal}, which is replayed and checkpointed into the index
+ * when it is loaded and closed. the entries are written before the bitmap, so a set bit always has a valid entry.
+ */
+@Slf4j
+final class TsCompletionIndex {
+
+    private static final int MAGIC = 0x4d33_4958;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private static final int ENTRY_SIZE = 8 + 8;
+
+    private final Path indexPath;
+
+    private final int segmentCount;
+
+    private final byte[] bitmap;
+
+    private int completedCount;
+
+    // null if closed
+    private FileChannel channel;
+
+    private TsCompletionJournal journal;
+
+    private TsCompletionIndex(Path indexPath, int segmentCount, byte[] bitmap, FileChannel channel) {
+        this.bitmap = bitmap;
+        this.channel = channel;
+        this.indexPath = indexPath;
+        this.segmentCount = segmentCount;
+        for (byte b : bitmap) {
+            this.completedCount += Integer.bitCount(b & 0xff);
+        }
+    }
+
+    /**
+     * replay the journal and checkpoint it, then completions are appended to it
+     */
+    private TsCompletionIndex openJournal(Path journalPath, long fingerprint) throws IOException {
+        this.journal = TsCompletionJournal.open(journalPath, fingerprint, segmentCount,
+                (index, sequence, length, checksum) -> setCompleted(index));
+        checkpoint();
+        return this;
+    }
+
+    /**
+     * @return null if the index is absent, corrupted or belongs to another playlist
+     */
+    static TsCompletionIndex load(Path indexPath, Path journalPath, long fingerprint, int segmentCount) {
+        checkNotNull(indexPath);
+        checkNotNull(journalPath);
+        checkNonNegative(segmentCount, "segmentCount");
+        if (Files.notExists(indexPath)) {
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() != fileSize(segmentCount)) {
+                log.warn("tsIndex size mismatch, ignore it: {}", indexPath);
+                channel.close();
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmapSize(segmentCount));
+            readFully(channel, buffer, 0);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != fingerprint || buffer.getInt() != segmentCount) {
+                log.warn("tsIndex belongs to another playlist, ignore it: {}", indexPath);
+                channel.close();
+                return null;
+            }
+
+            byte[] bitmap = new byte[bitmapSize(segmentCount)];
+            buffer.get(bitmap);
+            return new TsCompletionIndex(indexPath, segmentCount, bitmap, channel).openJournal(journalPath, fingerprint);
+        } catch (IOException ex) {
+            log.warn("load tsIndex({}) error, ignore it: {}", indexPath, ex.getMessage());
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * create an empty index, the existing one is overwritten, records of the journal are kept if it belongs to
+     * the same segment table
+     */
+    static TsCompletionIndex create(Path indexPath, Path journalPath, long fingerprint, int segmentCount) throws IOException {
+        checkNotNull(indexPath);
+        checkNotNull(journalPath);
+        checkNonNegative(segmentCount, "segmentCount");
+
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + bitmapSize(segmentCount));
+            header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putInt(segmentCount);
+            header.position(header.limit()).flip();
+            writeFully(channel, header, 0);
+
+            // unknown entries
+            ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 1024);
+            while (entries.hasRemaining()) {
+                entries.putLong(-1);
+            }
+            long position = HEADER_SIZE + bitmapSize(segmentCount), end = fileSize(segmentCount);
+            while (position < end) {
+                entries.clear().limit((int) Math.min(entries.capacity(), end - position));
+                position += writeFully(channel, entries, position);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        TsCompletionIndex index = new TsCompletionIndex(indexPath, segmentCount, new byte[bitmapSize(segmentCount)], channel);
+        try {
+            return index.openJournal(journalPath, fingerprint);
+        } catch (IOException ex) {
+            index.close();
+            throw ex;
+        }
+    }
+
+    synchronized boolean isCompleted(int index) {
+        return (bitmap[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    synchronized int getCompletedCount() {
+        return this.completedCount;
+    }
+
+    /**
+     * @param length   -1 if unknown
+     * @param checksum crc32 of ts file, -1 if unknown
+     */
+    void markCompleted(int index, int sequence, long length, long checksum) {
+        TsCompletionJournal journal;
+        synchronized (this) {
+            if (!setCompleted(index)) {
+                return;
+            }
+            journal = this.journal;
+        }
+        if (null != journal) {
+            journal.append(index, sequence, length, checksum);
+        }
+    }
+
+    /**
+     * lengths of entries, 0 or -1 if unknown
+     */
+    synchronized long[] getLengths() throws IOException {
+        FileChannel channel = this.channel;
+        if (null == channel) {
+            throw new IOException("tsIndex is closed");
+        }
+        ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * segmentCount);
+        readFully(channel, entries, HEADER_SIZE + bitmapSize(segmentCount));
+        long[] lengths = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            lengths[i] = entries.getLong(ENTRY_SIZE * i);
+        }
+        return lengths;
+    }
+
+    /**
+     * record the length known ahead of completion, e.g. by Content-Length, so it is reused when resuming.
+     * the checksum is kept, the journal overrides it once the ts is completed.
+     */
+    synchronized void recordLength(int index, long length) throws IOException {
+        FileChannel channel = this.channel;
+        if (null == channel) {
+            throw new IOException("tsIndex is closed");
+        }
+        checkArgument(index >= 0 && index < segmentCount, "index out of range: %s", index);
+        ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, length);
+        writeFully(channel, entry, HEADER_SIZE + bitmapSize(segmentCount) + (long) ENTRY_SIZE * index);
+    }
+
+    private boolean setCompleted(int index) {
+        if (isCompleted(index)) {
+            return false;
+        }
+        this.bitmap[index >>> 3] |= (byte) (1 << (index & 7));
+        this.completedCount++;
+        return true;
+    }
+
+    /**
+     * apply entries of the journal to the index file, then reset the journal
+     */
+    private synchronized void checkpoint() throws IOException {
+        FileChannel channel = this.channel;
+        TsCompletionJournal journal = this.journal;
+        if (null == channel || null == journal) {
+            return;
+        }
+
+        long entriesPosition = HEADER_SIZE + bitmapSize(segmentCount);
+        ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * segmentCount);
+        readFully(channel, entries, entriesPosition);
+        boolean[] updated = {false};
+        journal.replayInto((index, sequence, length, checksum) -> {
+            entries.putLong(ENTRY_SIZE * index, length).putLong(ENTRY_SIZE * index + 8, checksum);
+            updated[0] = true;
+        });
+        if (updated[0]) {
+            entries.flip();
+            writeFully(channel, entries, entriesPosition);
+        }
+        writeFully(channel, ByteBuffer.wrap(bitmap), HEADER_SIZE);
+        channel.force(false);
+
+        journal.reset();
+    }
+
+    synchronized void close() {
+        FileChannel channel = this.channel;
+        if (null == channel) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException ex) {
+            // replayed when resuming
+            log.warn("checkpoint tsIndex({}) error: {}", indexPath, ex.getMessage());
+        }
+        if (null != journal) {
+            journal.close();
+            journal = null;
+        }
+        this.channel = null;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.warn("close tsIndex({}) error: {}", indexPath, ex.getMessage());
+        }
+    }
+
+    private static int bitmapSize(int segmentCount) {
+        return (segmentCount + 7) >>> 3;
+    }
+
+    private static long fileSize(int segmentCount) {
+        return HEADER_SIZE + bitmapSize(segmentCount) + (long) ENTRY_SIZE * segmentCount;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of tsIndex");
+            }
+            position += read;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,223 @@
+package io.github.kanglong1023.m3u8.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * append-only, memory-mapped journal of completed ts, appending is a memory copy without syscall.
+ * <p>
+ * records are forced to disk in groups, a torn or unforced tail is detected by the crc of record
+ * and the ts would be downloaded again. the journal is checkpointed into {@link TsCompletionIndex} and reset.
+ */
+@Slf4j
+final class TsCompletionJournal {
+
+    private static final int MAGIC = 0x4d33_4a4c;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    // index, sequence, length, checksum, crc of the previous fields, padding
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private static final int groupCommitRecords = 64;
+
+    private static final long groupCommitNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path journalPath;
+
+    private final int segmentCount;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final CRC32 crc32 = new CRC32();
+
+    private int pendingRecords;
+
+    private long lastCommitNanos;
+
+    private boolean closed;
+
+    private TsCompletionJournal(Path journalPath, int segmentCount, FileChannel channel, MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.journalPath = journalPath;
+        this.segmentCount = segmentCount;
+        this.lastCommitNanos = System.nanoTime();
+    }
+
+    /**
+     * open the journal, the existing records are replayed if it belongs to the same segment table,
+     * otherwise it is recreated
+     */
+    static TsCompletionJournal open(Path journalPath, long fingerprint, int segmentCount,
+                                    RecordConsumer replayConsumer) throws IOException {
+        checkNotNull(journalPath);
+        checkNotNull(replayConsumer);
+        checkNonNegative(segmentCount, "segmentCount");
+
+        // one record per segment at most between checkpoints
+        long size = HEADER_SIZE + (long) RECORD_SIZE * segmentCount;
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        TsCompletionJournal journal;
+        try {
+            long fileSize = channel.size();
+            boolean matched = fileSize == size;
+            if (fileSize > size) {
+                // left by a playlist of more segments, it would never match again if kept
+                channel.truncate(size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (matched) {
+                matched = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                        && buffer.getLong(8) == fingerprint && buffer.getInt(16) == segmentCount;
+            }
+            journal = new TsCompletionJournal(journalPath, segmentCount, channel, buffer);
+            if (matched) {
+                int replayed = journal.replay(replayConsumer);
+                if (replayed > 0) {
+                    log.info("replay {} records of tsJournal: {}", replayed, journalPath);
+                }
+            } else {
+                buffer.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, fingerprint).putInt(16, segmentCount);
+                buffer.position(HEADER_SIZE);
+                journal.zeroTail();
+                buffer.force();
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        return journal;
+    }
+
+    synchronized void append(int index, int sequence, long length, long checksum) {
+        if (closed) {
+            return;
+        }
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer.remaining() < RECORD_SIZE) {
+            log.warn("tsJournal is full, ignore record of {}: {}", index, journalPath);
+            return;
+        }
+        int position = buffer.position();
+        buffer.putInt(index).putInt(sequence).putLong(length).putLong(checksum);
+        buffer.putInt(recordCrc(position)).putInt(0);
+
+        // group commit
+        long now = System.nanoTime();
+        if (++pendingRecords >= groupCommitRecords || now - lastCommitNanos >= groupCommitNanos) {
+            commit();
+        }
+    }
+
+    /**
+     * force appended records to disk
+     */
+    synchronized void commit() {
+        if (closed || pendingRecords == 0) {
+            return;
+        }
+        buffer.force();
+        pendingRecords = 0;
+        lastCommitNanos = System.nanoTime();
+    }
+
+    /**
+     * drop all records, they have been checkpointed
+     */
+    synchronized void reset() {
+        if (closed) {
+            return;
+        }
+        int end = buffer.position();
+        buffer.position(HEADER_SIZE);
+        zeroTail(end);
+        buffer.force();
+        pendingRecords = 0;
+    }
+
+    synchronized void replayInto(RecordConsumer consumer) {
+        int position = buffer.position();
+        try {
+            replay(consumer);
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        commit();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.warn("close tsJournal({}) error: {}", journalPath, ex.getMessage());
+        }
+    }
+
+    /**
+     * consume valid records from the head, stop at the first torn or empty one
+     *
+     * @return count of records, the buffer is positioned for appending
+     */
+    private int replay(RecordConsumer consumer) {
+        int count = 0, position = HEADER_SIZE;
+        while (position + RECORD_SIZE <= buffer.limit()) {
+            int index = buffer.getInt(position);
+            if (index < 0 || index >= segmentCount || buffer.getInt(position + 24) != recordCrc(position)) {
+                break;
+            }
+            consumer.accept(index, buffer.getInt(position + 4), buffer.getLong(position + 8), buffer.getLong(position + 16));
+            position += RECORD_SIZE;
+            count++;
+        }
+        buffer.position(position);
+        return count;
+    }
+
+    private int recordCrc(int position) {
+        CRC32 crc32 = this.crc32;
+        crc32.reset();
+        ByteBuffer record = buffer.duplicate();
+        record.limit(position + 24).position(position);
+        crc32.update(record);
+        return (int) crc32.getValue();
+    }
+
+    private void zeroTail() {
+        zeroTail(buffer.limit());
+    }
+
+    private void zeroTail(int end) {
+        for (int i = buffer.position(); i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+
+        void accept(int index, int sequence, long length, long checksum);
+
+    }
+
+}
@@ -1,120 +1,263 @@
 package io.github.kanglong1023.m3u8.core;
 
-import lombok.Getter;
+import io.github.kanglong1023.m3u8.http.ByteRange;
+import io.github.kanglong1023.m3u8.http.response.sink.FileRegionAllocator;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static io.github.kanglong1023.m3u8.core.TsDownload.TsDownloadStage.*;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 
-
+/**
+ * flyweight of a row in {@link TsSegmentTable}, uri and paths are derived on demand
+ */
 @Slf4j
-@Getter
 public class TsDownload {
 
-    private final URI uri;
+    private static final TsDownloadStage[] stages = TsDownloadStage.values();
 
-    private final Path filePath;
+    private final int index;
 
-    private final Integer sequence;
+    private final TsSegmentTable table;
 
-    private final Path finalFilePath;
+    TsDownload(TsSegmentTable table, int index) {
+        this.table = checkNotNull(table);
+        this.index = index;
+    }
 
-    private final Double durationInSeconds;
+    public URI getUri() {
+        return this.table.getUri(index);
+    }
 
-    private final M3u8Download m3u8Download;
+    /**
+     * nullable, sub-range of uri
+     */
+    public ByteRange getByteRange() {
+        return this.table.getByteRange(index);
+    }
 
-    private final M3u8SecretKey m3u8SecretKey;
+    public Path getFilePath() {
+        return this.table.getFilePath(index);
+    }
 
-    private final AtomicLong readBytes = new AtomicLong(0);
+    /**
+     * the uri is parsed once and kept until the ts is completed or failed
+     */
+    URI pinUri() {
+        return this.table.pinUri(index);
+    }
 
-    private volatile long contentLength = -1;
+    void unpinUri() {
+        this.table.unpinUri(index);
+    }
 
-    private volatile TsDownloadStage downloadStage = NEW;
+    /**
+     * row in {@link TsSegmentTable}
+     */
+    int getRow() {
+        return this.index;
+    }
+
+    public Integer getSequence() {
+        return this.table.getSequence(index);
+    }
 
-    public TsDownload(URI uri, Path filePath,
-                      Integer sequence, Path finalFilePath,
-                      Double durationInSeconds, M3u8Download m3u8Download, M3u8SecretKey m3u8SecretKey) {
-        this.uri = uri;
-        this.filePath = filePath;
-        this.sequence = sequence;
-        this.m3u8Download = m3u8Download;
-        this.finalFilePath = finalFilePath;
-        this.m3u8SecretKey = m3u8SecretKey;
-        this.durationInSeconds = durationInSeconds;
+    public Path getFinalFilePath() {
+        return this.table.getFinalFilePath(index);
+    }
+
+    /**
+     * offset of the ts in the target file if it is merged in place and placed, otherwise -1
+     */
+    public long getMergeOffset() {
+        return this.table.getMergeOffset(index);
+    }
+
+    /**
+     * length of the ts in the target file if it is merged in place and known, otherwise -1
+     */
+    public long getMergeLength() {
+        return this.table.getMergeLength(index);
+    }
+
+    /**
+     * nullable, allocates the region of the ts in the pack file if ts is packed
+     */
+    public FileRegionAllocator getPackAllocator() {
+        return this.table.getPackAllocator(index);
+    }
+
+    /**
+     * whether the ts is written into a file shared with other ts, by a single request
+     */
+    public boolean isWrittenIntoSharedFile() {
+        return null != this.table.getMergeLayout() || null != getPackAllocator();
+    }
+
+    public Double getDurationInSeconds() {
+        return this.table.getDurationInSeconds(index);
+    }
+
+    public M3u8Download getM3u8Download() {
+        return this.table.getM3u8Download();
+    }
+
+    public M3u8SecretKey getM3u8SecretKey() {
+        return this.table.getSecretKey(index);
+    }
+
+    public long getReadBytes() {
+        return this.table.getReadBytes(index);
+    }
+
+    public long getContentLength() {
+        return this.table.getContentLength(index);
+    }
+
+    public TsDownloadStage getDownloadStage() {
+        return stages[this.table.getStage(index)];
     }
 
     public void complete() {
-        this.downloadStage = COMPLETED;
-        this.m3u8Download.OnFinishTsDownload(this, false);
+        complete(-1, -1);
+    }
 
-        if (this.filePath.equals(finalFilePath)) {
+    /**
+     * @param fileSize -1 if unknown
+     * @param checksum crc32 of the ts file, -1 if unknown
+     */
+    public void complete(long fileSize, long checksum) {
+        if (null != this.table.getPackFile()) {
+            completePacked(fileSize, checksum);
             return;
         }
+        // the region written without limit is of the length written
+        this.table.setMergeLength(index, fileSize, false);
 
-        if (Files.exists(filePath)) {
+        Path filePath = getFilePath();
+        Path finalFilePath = getFinalFilePath();
+        boolean moved = true;
+        if (!filePath.equals(finalFilePath) && Files.exists(filePath)) {
             try {
                 Files.move(filePath, finalFilePath, StandardCopyOption.REPLACE_EXISTING);
             } catch (Exception ex) {
+                moved = false;
                 log.error(String.format("move %s to %s error: %s", filePath, finalFilePath, ex.getMessage()), ex);
             }
         }
+        // record it after the ts file is in place
+        if (moved) {
+            this.table.markCompleted(index, fileSize, checksum);
+        }
+        unpinUri();
+
+        setDownloadStage(COMPLETED);
+        getM3u8Download().OnFinishTsDownload(this, false);
+    }
+
+    private void completePacked(long fileSize, long checksum) {
+        try {
+            this.table.appendToPack(index, fileSize, checksum);
+        } catch (Exception ex) {
+            log.error(String.format("append %s to %s error: %s", getUri(), getFinalFilePath(), ex.getMessage()), ex);
+            failed();
+            return;
+        }
+        // record it after the ts is in the pack
+        this.table.markCompleted(index, fileSize, checksum);
+        unpinUri();
+
+        setDownloadStage(COMPLETED);
+        getM3u8Download().OnFinishTsDownload(this, false);
     }
 
     public void completeInCache() {
-        this.downloadStage = COMPLETED_IN_CACHE;
-        this.m3u8Download.OnFinishTsDownload(this, false);
+        this.table.markCompleted(index, -1, -1);
+        setDownloadStage(COMPLETED_IN_CACHE);
+        getM3u8Download().OnFinishTsDownload(this, false);
     }
 
     public void failed() {
-        this.downloadStage = FAILED;
-        this.m3u8Download.OnFinishTsDownload(this, true);
+        this.table.releasePackRegion(index);
+        unpinUri();
+        setDownloadStage(FAILED);
+        getM3u8Download().OnFinishTsDownload(this, true);
+    }
+
+    /**
+     * the failed ts would be downloaded again
+     */
+    public void retry() {
+        if (getDownloadStage() != FAILED) {
+            return;
+        }
+        setDownloadStage(NEW);
+        getM3u8Download().OnRetryTsDownload(this);
     }
 
     public void startRead(long contentLength, boolean reRead) {
-        if (contentLength > 0 && contentLength != this.contentLength) {
-            this.contentLength = contentLength;
+        if (contentLength > 0 && contentLength != getContentLength()) {
+            this.table.setContentLength(index, contentLength);
         }
+        // the ts merged in place after it are placed once its length is known
+        this.table.setMergeLength(index, contentLength, false);
         if (reRead) {
-            this.readBytes.set(0);
+            this.table.setReadBytes(index, 0);
         } else {
-            this.downloadStage = READING;
-            this.m3u8Download.startReadTs(this);
+            setDownloadStage(READING);
+            getM3u8Download().startReadTs(this);
 
         }
     }
 
     public void readBytes(int size, boolean end) {
-        this.readBytes.getAndAdd(size);
-        this.m3u8Download.downloadBytes(size);
+        this.table.addReadBytes(index, size);
+        getM3u8Download().downloadBytes(size);
+    }
+
+    /**
+     * replace progress of the ts by another request of it, e.g. the hedge, bytes of the download are not counted
+     */
+    void resetReadBytes(long contentLength, long readBytes) {
+        if (contentLength > 0 && contentLength != getContentLength()) {
+            this.table.setContentLength(index, contentLength);
+        }
+        // the ts merged in place after it are placed once its length is known
+        this.table.setMergeLength(index, contentLength, false);
+        this.table.setReadBytes(index, readBytes);
     }
 
     public long remainingBytes() {
+        TsDownloadStage downloadStage = getDownloadStage();
         if (downloadStage == READING) {
-            long contentLength = this.contentLength;
+            long contentLength = getContentLength();
             if (contentLength < 0) {
                 return contentLength;
             } else {
-                return contentLength - readBytes.get();
+                return contentLength - getReadBytes();
             }
         } else if (downloadStage == NEW) {
-            return contentLength;
+            return getContentLength();
         } else {
             return 0;
         }
     }
 
     public boolean isNew() {
-        return this.downloadStage == NEW;
+        return getDownloadStage() == NEW;
     }
 
     public boolean unCompleted() {
-        return this.downloadStage != COMPLETED && this.downloadStage != COMPLETED_IN_CACHE;
+        TsDownloadStage downloadStage = getDownloadStage();
+        return downloadStage != COMPLETED && downloadStage != COMPLETED_IN_CACHE;
+    }
+
+    private void setDownloadStage(TsDownloadStage downloadStage) {
+        this.table.setStage(index, downloadStage.ordinal());
     }
 
     @Override
@@ -126,20 +269,12 @@ public class TsDownload {
             return false;
         }
         TsDownload that = (TsDownload) o;
-        return Objects.equals(uri, that.uri)
-                && Objects.equals(sequence, that.sequence)
-                && Objects.equals(m3u8Download, that.m3u8Download);
+        return this.table == that.table && this.index == that.index;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(uri, sequence);
-    }
-
-    public static TsDownload getInstance(URI uri, Path filePath,
-                                         Integer sequence, Path finalFilePath,
-                                         Double durationInSeconds, M3u8Download m3u8Download, M3u8SecretKey m3u8SecretKey) {
-        return new TsDownload(uri, filePath, sequence, finalFilePath, durationInSeconds, m3u8Download, m3u8SecretKey);
+        return 31 * System.identityHashCode(table) + index;
     }
 
     public enum TsDownloadStage {
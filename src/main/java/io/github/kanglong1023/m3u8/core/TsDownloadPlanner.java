@@ -2,8 +2,13 @@ package io.github.kanglong1023.m3u8.core;
 
 import io.github.kanglong1023.m3u8.core.M3u8DownloadOptions.OptionsForApplyTsCache;
 import io.github.kanglong1023.m3u8.core.M3u8Resolver.MediaSegment;
+import io.github.kanglong1023.m3u8.core.M3u8Resolver.MediaSegmentKey;
+import io.github.kanglong1023.m3u8.core.TsSegmentTable.StoreMode;
+import io.github.kanglong1023.m3u8.http.ByteRange;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestConfig;
+import io.github.kanglong1023.m3u8.http.config.PureHttpRequestConfig;
 import io.github.kanglong1023.m3u8.util.CollUtil;
+import io.github.kanglong1023.m3u8.util.FutureUtil;
 import io.github.kanglong1023.m3u8.util.Preconditions;
 import io.github.kanglong1023.m3u8.util.Utils;
 import io.github.kanglong1023.m3u8.util.function.Try;
@@ -15,71 +20,519 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static io.github.kanglong1023.m3u8.core.M3u8Download.m3u8StoreName;
+import static io.github.kanglong1023.m3u8.core.M3u8HttpRequestType.REQ_FOR_TS;
+import static io.github.kanglong1023.m3u8.core.M3u8Download.tsIndexName;
+import static io.github.kanglong1023.m3u8.core.M3u8Download.tsJournalName;
+import static io.github.kanglong1023.m3u8.core.M3u8Download.tsPackIndexName;
+import static io.github.kanglong1023.m3u8.core.M3u8Download.tsPackName;
 import static io.github.kanglong1023.m3u8.core.M3u8Download.unFinishedTsExtension;
 import static io.github.kanglong1023.m3u8.util.Preconditions.*;
 
 @Slf4j
 public class TsDownloadPlanner {
 
+    // count of ts placed ahead of the requests, ts of unknown lengths are probed to keep it while merged in place
+    private static final int mergeProbeAhead = 8;
+
     private final M3u8Download m3u8Download;
 
-    private final BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter;
+    private final Executor executor;
+
+    private final M3u8SecretKeyCache secretKeyCache;
+
+    private final BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter;
+
+    private volatile M3u8Resolver m3u8Resolver;
+
+    private volatile TsCompletionIndex tsCompletionIndex;
+
+    // nullable, present if ts downloads are merged in place
+    private volatile TsMergeLayout mergeLayout;
+
+    // nullable, present if ts downloads are packed
+    private volatile TsPackFile packFile;
+
+    // nullable, present while the ts merged in place are waiting for their regions
+    private volatile MergePlacement mergePlacement;
+
+    // guarded by this, futures of distinct keys
+    private CompletableFuture<Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>>> prepareFuture;
+
+    // sum of EXTINF of the resolved playlist, -1 if not resolved
+    private volatile double durationInSeconds = -1;
 
     public TsDownloadPlanner(M3u8Download m3u8Download,
                              BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter) {
+        this(m3u8Download, checkNotNull(bytesResponseGetter).andThen(CompletableFuture::completedFuture), Runnable::run, null);
+    }
+
+    /**
+     * @param executor       executes the non-network parts of planning, e.g. parsing, cache checking
+     * @param secretKeyCache nullable, see {@link M3u8Resolver}
+     */
+    public TsDownloadPlanner(M3u8Download m3u8Download,
+                             BiFunction<URI, HttpRequestConfig, CompletableFuture<ByteBuffer>> bytesResponseGetter,
+                             Executor executor, M3u8SecretKeyCache secretKeyCache) {
+        this.executor = checkNotNull(executor);
+        this.secretKeyCache = secretKeyCache;
         this.m3u8Download = checkNotNull(m3u8Download);
         this.bytesResponseGetter = checkNotNull(bytesResponseGetter);
     }
 
     public List<TsDownload> plan() {
+        return plan(null);
+    }
+
+    public List<TsDownload> plan(TsDownloadPlanListener planListener) {
+        return FutureUtil.getUnwrapped(planAsync(planListener));
+    }
+
+    /**
+     * resolve playlists, check the ts cache and start fetching secret keys, the network part of planning, which
+     * could be done ahead while the download is queued. it is done once, and again if the last one failed.
+     * <p>
+     * it is completed once the playlist is resolved, keys are fetched on, see {@link M3u8Resolver#fetchSecretKeysAsync}
+     */
+    public synchronized CompletableFuture<Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>>> prepareAsync() {
+        CompletableFuture<Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>>> prepareFuture = this.prepareFuture;
+        if (null != prepareFuture && !prepareFuture.isCompletedExceptionally()
+                && !(prepareFuture.isDone() && prepareFuture.join().values().stream().anyMatch(CompletableFuture::isCompletedExceptionally))) {
+            return prepareFuture;
+        }
+
+        Executor executor = this.executor;
         M3u8Download m3u8Download = this.m3u8Download;
-        BiFunction<URI, HttpRequestConfig, ByteBuffer> bytesResponseGetter = this.bytesResponseGetter;
 
         URI m3u8Uri = m3u8Download.getUri();
         Path tsDir = m3u8Download.getTsDir();
         String identity = m3u8Download.getIdentity();
         M3u8DownloadOptions m3u8DownloadOptions = m3u8Download.getM3u8DownloadOptions();
 
-        Path m3u8StorePath = tsDir.resolve(m3u8StoreName);
+        List<Path> storePaths = Arrays.asList(tsDir.resolve(m3u8StoreName), tsDir.resolve(tsIndexName), tsDir.resolve(tsJournalName),
+                tsDir.resolve(tsPackName), tsDir.resolve(tsPackIndexName));
         OptionsForApplyTsCache optionsForApplyTsCache = m3u8DownloadOptions.getOptionsForApplyTsCache();
         M3u8HttpRequestConfigStrategy requestConfigStrategy = m3u8DownloadOptions.getM3u8HttpRequestConfigStrategy();
 
         // resolve
-        M3u8Resolver m3u8Resolver = new M3u8Resolver(m3u8Uri, requestConfigStrategy, bytesResponseGetter);
-        m3u8Resolver.resolve();
+        M3u8Resolver m3u8Resolver = new M3u8Resolver(m3u8Uri, requestConfigStrategy,
+                bytesResponseGetter, executor, secretKeyCache);
+        m3u8Resolver.setVariantSelector(m3u8DownloadOptions.getVariantSelector());
+        this.m3u8Resolver = m3u8Resolver;
+
+        prepareFuture = m3u8Resolver.resolveAsync().thenApplyAsync(v -> {
+
+            // check mediaSegments
+            List<MediaSegment> mediaSegments = m3u8Resolver.getMediaSegments();
+            m3u8Check(CollectionUtils.isNotEmpty(mediaSegments), "empty mediaSegments: %s", identity);
+            this.durationInSeconds = mediaSegments.stream()
+                    .mapToDouble(s -> ObjectUtils.defaultIfNull(s.getDurationInSeconds(), 0d)).sum();
+
+            // checkCache
+            checkTsCache(identity, tsDir, storePaths, optionsForApplyTsCache, m3u8Resolver);
+
+            // fetchSecretKey, not waited for
+            return m3u8Resolver.fetchSecretKeysAsync(mediaSegments);
+        }, executor);
+        this.prepareFuture = prepareFuture;
+        return prepareFuture;
+    }
+
+    /**
+     * no thread is blocked while fetching playlists and keys, the result of {@link #prepareAsync()} is reused.
+     * <p>
+     * ts without key, or of which key is fetched already, are emitted as soon as the playlist is parsed into rows.
+     * m3u8Store is written after that, and the ts of the other keys are emitted as their keys are fetched.
+     *
+     * @param planListener nullable, ts downloads which need to download are emitted to it as soon as
+     *                     they are planned, so that downloading could start before the whole plan is done
+     */
+    public CompletableFuture<List<TsDownload>> planAsync(TsDownloadPlanListener planListener) {
+        return planAsync(planListener, null);
+    }
+
+    /**
+     * same as {@link #planAsync(TsDownloadPlanListener)}, except if the download is merged in place, the ts is
+     * emitted once its region is placed, i.e. the lengths of the ts before it are known. lengths are known by
+     * byte ranges, tsIndex of the last run, and Content-Length of the responses, the few ts ahead of the last
+     * placed one are probed by contentLengthGetter meanwhile. it is completed once all ts are emitted.
+     *
+     * @param contentLengthGetter nullable, it is not merged in place if null
+     */
+    public CompletableFuture<List<TsDownload>> planAsync(TsDownloadPlanListener planListener,
+                                                         BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter) {
+        Executor executor = this.executor;
+        M3u8Download m3u8Download = this.m3u8Download;
+        TsDownloadPlanListener listener = ObjectUtils.defaultIfNull(planListener, TsDownloadPlanListener.NOP);
+
+        Path tsDir = m3u8Download.getTsDir();
+        Path m3u8StorePath = tsDir.resolve(m3u8StoreName);
+        Path tsIndexPath = tsDir.resolve(tsIndexName);
+        Path tsJournalPath = tsDir.resolve(tsJournalName);
+        OptionsForApplyTsCache optionsForApplyTsCache = m3u8Download.getM3u8DownloadOptions().getOptionsForApplyTsCache();
+
+        // placeholders of keys not fetched yet, and the ts of them
+        List<TsDownload> deferred = CollUtil.newArrayList();
+        Map<MediaSegmentKey, M3u8SecretKey> pendingKeys = CollUtil.newLinkedHashMap();
+        CompletableFuture<Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>>> prepareFuture = prepareAsync();
+        return prepareFuture.thenApplyAsync(secretKeyFutures -> {
+            M3u8Resolver m3u8Resolver = this.m3u8Resolver;
+
+            // convert, keys not fetched yet are placeholders
+            TsSegmentTable tsSegmentTable = convertToTsSegmentTable(tsDir, m3u8Resolver.getMediaSegments(),
+                    secretKeyFutures, pendingKeys);
+            listener.planned(tsSegmentTable.getTsDownloads());
+
+            return tsSegmentTable;
+        }, executor).thenApplyAsync(tsSegmentTable -> {
+            // apply cache and emit, except the ts of which key is not fetched yet, or of which region is not placed
+            Set<M3u8SecretKey> placeholders = Collections.newSetFromMap(new IdentityHashMap<>());
+            placeholders.addAll(pendingKeys.values());
+            Predicate<TsDownload> deferrer = ts -> {
+                TsMergeLayout mergeLayout = tsSegmentTable.getMergeLayout();
+                if (placeholders.contains(ts.getM3u8SecretKey()) || (null != mergeLayout && !mergeLayout.isPlaced(ts.getRow()))) {
+                    deferred.add(ts);
+                    return true;
+                }
+                return false;
+            };
+            boolean mergeInPlace = isMergeInPlaceAvailable(tsSegmentTable, contentLengthGetter);
+            applyTsIndexAndEmit(tsSegmentTable, mergeInPlace, tsIndexPath, tsJournalPath, optionsForApplyTsCache, deferrer, listener);
+            this.tsCompletionIndex = tsSegmentTable.getCompletionIndex();
+            this.mergeLayout = tsSegmentTable.getMergeLayout();
+            this.packFile = tsSegmentTable.getPackFile();
+
+            // m3u8Store, ts emitted keep their staging names till completed
+            genM3u8Store(this.m3u8Resolver, m3u8StorePath);
+
+            // segments are held by TsSegmentTable from now on
+            this.m3u8Resolver.releaseContent();
+
+            return tsSegmentTable;
+        }, executor).thenCompose(tsSegmentTable -> {
+            if (null != tsSegmentTable.getMergeLayout()) {
+                MergePlacement mergePlacement = new MergePlacement(tsSegmentTable, deferred, contentLengthGetter, listener);
+                this.mergePlacement = mergePlacement;
+                return mergePlacement.start();
+            }
+            if (pendingKeys.isEmpty()) {
+                return CompletableFuture.completedFuture(tsSegmentTable.getTsDownloads());
+            }
+            Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> secretKeyFutures = prepareFuture.join();
+            CompletableFuture<?>[] futures = pendingKeys.keySet().stream().map(secretKeyFutures::get).toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(futures).thenApplyAsync(v -> {
+                pendingKeys.forEach((key, placeholder) -> tsSegmentTable.replaceSecretKey(placeholder, secretKeyFutures.get(key).join()));
+                log.info("fetched {} secret keys, emit {} ts of them: {}", futures.length, deferred.size(), m3u8Download.getIdentity());
+                deferred.forEach(listener::newTsDownload);
+                return tsSegmentTable.getTsDownloads();
+            }, executor);
+        });
+    }
+
+    /**
+     * reload the live playlist, new ts downloads are emitted in the same way as {@link #planAsync(TsDownloadPlanListener)}
+     *
+     * @return new ts downloads, empty if the playlist is not updated
+     */
+    public CompletableFuture<List<TsDownload>> reloadAsync(TsDownloadPlanListener planListener) {
+        M3u8Resolver m3u8Resolver = this.m3u8Resolver;
+        m3u8Check(Objects.nonNull(m3u8Resolver), "not planned: %s", m3u8Download.getIdentity());
+
+        Path tsDir = m3u8Download.getTsDir();
+        TsDownloadPlanListener listener = ObjectUtils.defaultIfNull(planListener, TsDownloadPlanListener.NOP);
+        OptionsForApplyTsCache optionsForApplyTsCache = m3u8Download.getM3u8DownloadOptions().getOptionsForApplyTsCache();
+
+        return m3u8Resolver.reloadAsync().thenCompose(mediaSegments -> {
+            Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> secretKeyFutures = m3u8Resolver.fetchSecretKeysAsync(mediaSegments);
+            return CompletableFuture.allOf(secretKeyFutures.values().toArray(new CompletableFuture[0]))
+                .thenApplyAsync(v -> {
+                    Map<MediaSegmentKey, M3u8SecretKey> pendingKeys = CollUtil.newHashMap();
+                    List<TsDownload> tsDownloads = convertToTsSegmentTable(tsDir, mediaSegments, secretKeyFutures, pendingKeys).getTsDownloads();
+                    m3u8Resolver.releaseContent();
+                    if (CollectionUtils.isNotEmpty(tsDownloads)) {
+                        listener.reloaded(tsDownloads);
+                        applyTsCacheAndEmit(tsDownloads, optionsForApplyTsCache, listener);
+                    }
+                    return tsDownloads;
+                }, executor);
+        });
+    }
+
+    /**
+     * sum of EXTINF of the resolved playlist, -1 if not resolved
+     */
+    public double getDurationInSeconds() {
+        return this.durationInSeconds;
+    }
+
+    /**
+     * null if not planned or not merged in place
+     */
+    TsMergeLayout getMergeLayout() {
+        return this.mergeLayout;
+    }
 
-        // check mediaSegments
-        List<MediaSegment> mediaSegments = m3u8Resolver.getMediaSegments();
-        m3u8Check(CollectionUtils.isNotEmpty(mediaSegments), "empty mediaSegments: %s", identity);
+    /**
+     * null if not planned or not packed
+     */
+    TsPackFile getPackFile() {
+        return this.packFile;
+    }
+
+    /**
+     * null if not planned
+     */
+    public M3u8Resolver getM3u8Resolver() {
+        return this.m3u8Resolver;
+    }
+
+    /**
+     * close the tsIndex of planned ts downloads, completions are not recorded anymore
+     */
+    public void closeTsIndex() {
+        TsCompletionIndex tsCompletionIndex = this.tsCompletionIndex;
+        if (null != tsCompletionIndex) {
+            tsCompletionIndex.close();
+        }
+        TsPackFile packFile = this.packFile;
+        if (null != packFile) {
+            packFile.close();
+        }
+    }
+
+    /**
+     * fail planning if it is still waiting for ts, e.g. the ts merged in place after the failed one are never placed
+     */
+    void abort(Throwable cause) {
+        MergePlacement mergePlacement = this.mergePlacement;
+        if (null != mergePlacement) {
+            mergePlacement.abort(cause);
+        }
+    }
+
+    private boolean isMergeInPlaceAvailable(TsSegmentTable tsSegmentTable,
+                                            BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter) {
+        String identity = m3u8Download.getIdentity();
+        M3u8DownloadOptions m3u8DownloadOptions = m3u8Download.getM3u8DownloadOptions();
+        if (!m3u8DownloadOptions.isMergeInPlace()) {
+            return false;
+        }
+        if (null == contentLengthGetter || m3u8DownloadOptions.isRecordLive()) {
+            log.info("merge in place is unavailable while recording live, merge ts files: {}", identity);
+            return false;
+        }
+        if (tsSegmentTable.getTsDownloads().stream().anyMatch(t -> !isPlain(t.getM3u8SecretKey()))) {
+            // the size of decrypted ts is unknown until it is downloaded
+            log.info("merge in place is unavailable for encrypted ts, merge ts files: {}", identity);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * the ts completed in tsIndex is applied without probing its file, the others are downloaded into
+     * their final files directly. if tsIndex is unavailable, the ts cache is applied based on filename.
+     * <p>
+     * if it is merged in place, the ts is downloaded into its region of the merged file. the regions completed
+     * in tsIndex are kept if the merged file of the last run covers them, otherwise it is created again.
+     * <p>
+     * otherwise if ts is packed, the ts completed in both tsIndex and the pack is kept, the pack is started over
+     * if tsIndex is unavailable.
+     * <p>
+     * otherwise the ts completed in tsIndex is kept only if its final file exists. tsIndex is recorded per
+     * {@link StoreMode}, the one of another mode is ignored.
+     */
+    private void applyTsIndexAndEmit(TsSegmentTable tsSegmentTable, boolean mergeInPlace,
+                                     Path tsIndexPath, Path tsJournalPath, OptionsForApplyTsCache optionsForApplyTsCache,
+                                     Predicate<TsDownload> deferrer, TsDownloadPlanListener listener) {
+        String identity = m3u8Download.getIdentity();
+        List<TsDownload> tsDownloads = tsSegmentTable.getTsDownloads();
+        boolean ignoreCache = OptionsForApplyTsCache.START_OVER == optionsForApplyTsCache;
+        M3u8DownloadOptions m3u8DownloadOptions = m3u8Download.getM3u8DownloadOptions();
+
+        StoreMode storeMode = StoreMode.FILES;
+        if (mergeInPlace) {
+            storeMode = StoreMode.MERGED;
+        } else if (m3u8DownloadOptions.isPackTs() && !m3u8DownloadOptions.isRecordLive()) {
+            storeMode = StoreMode.PACKED;
+        }
+
+        TsCompletionIndex tsCompletionIndex = null;
+        if (!ignoreCache) {
+            tsCompletionIndex = TsCompletionIndex.load(tsIndexPath, tsJournalPath,
+                    tsSegmentTable.fingerprint(storeMode), tsSegmentTable.size());
+        }
+
+        TsMergeLayout mergeLayout = null;
+        if (StoreMode.MERGED == storeMode) {
+            mergeLayout = newMergeLayout(tsSegmentTable, tsCompletionIndex);
+            if (null != tsCompletionIndex && !mergeLayout.isKeptFor(getCompleted(tsCompletionIndex, tsSegmentTable.size()))) {
+                log.info("merged file({}) is lost or changed, download all over: {}", mergeLayout.getFilePath(), identity);
+                tsCompletionIndex.close();
+                tsCompletionIndex = null;
+                mergeLayout = newMergeLayout(tsSegmentTable, null);
+            }
+            if (null == tsCompletionIndex) {
+                Try.run(mergeLayout::preallocate).get();
+            }
+            tsSegmentTable.setMergeLayout(mergeLayout);
+            log.info("merge in place, {} of {} ts placed: {}", IntStream.range(0, tsDownloads.size())
+                    .filter(mergeLayout::isPlaced).count(), tsDownloads.size(), identity);
+        }
+
+        TsPackFile packFile = null;
+        if (StoreMode.PACKED == storeMode) {
+            Path tsDir = m3u8Download.getTsDir();
+            try {
+                packFile = TsPackFile.open(tsDir.resolve(tsPackName), tsDir.resolve(tsPackIndexName),
+                        tsSegmentTable.fingerprint(storeMode), tsSegmentTable.size(), null == tsCompletionIndex);
+                tsSegmentTable.setPackFile(packFile);
+                log.info("pack ts into {}: {}", packFile.getPackPath(), identity);
+            } catch (Exception ex) {
+                log.warn("open tsPack error, download into ts files: {}, {}", identity, ex.getMessage());
+                storeMode = StoreMode.FILES;
+                if (null != tsCompletionIndex) {
+                    // completions of the pack are meaningless for ts files
+                    tsCompletionIndex.close();
+                    tsCompletionIndex = null;
+                }
+            }
+        }
+        long fingerprint = tsSegmentTable.fingerprint(storeMode);
+
+        boolean[] completedInCache = null;
+        if (null != tsCompletionIndex) {
+            log.info("found tsIndex, {} ts completed: {}", tsCompletionIndex.getCompletedCount(), identity);
+        } else {
+            // the ts cache is applied based on filename, before the ts files are named as completed
+            completedInCache = new boolean[tsDownloads.size()];
+            for (int i = 0; i < tsDownloads.size() && null == mergeLayout && null == packFile; i++) {
+                completedInCache[i] = applyTsCache(ignoreCache, tsDownloads.get(i), false);
+            }
+            try {
+                tsCompletionIndex = TsCompletionIndex.create(tsIndexPath, tsJournalPath, fingerprint, tsSegmentTable.size());
+            } catch (Exception ex) {
+                log.warn("create tsIndex({}) error: {}", tsIndexPath, ex.getMessage());
+                emitTsDownloads(tsDownloads, completedInCache, deferrer, listener);
+                return;
+            }
+        }
+        tsSegmentTable.setCompletionIndex(tsCompletionIndex);
+
+        if (null == completedInCache) {
+            completedInCache = new boolean[tsDownloads.size()];
+            for (int i = 0; i < tsDownloads.size(); i++) {
+                completedInCache[i] = tsCompletionIndex.isCompleted(i) && isStored(tsDownloads.get(i), storeMode, packFile);
+                if (!completedInCache[i] && null == mergeLayout) {
+                    // partial file of the last run
+                    Path tsFile = tsDownloads.get(i).getFilePath();
+                    Preconditions.checkArgument(Try.run(() -> Files.deleteIfExists(tsFile)).isSuccess(), "delete file error: %s", tsFile);
+                    if (StoreMode.FILES == storeMode) {
+                        // not recorded as completed, it would be taken as completed by its name otherwise
+                        Path finalTsFile = tsDownloads.get(i).getFinalFilePath();
+                        Preconditions.checkArgument(Try.run(() -> Files.deleteIfExists(finalTsFile)).isSuccess(), "delete file error: %s", finalTsFile);
+                    }
+                }
+            }
+        }
+        emitTsDownloads(tsDownloads, completedInCache, deferrer, listener);
+    }
 
-        // checkCache
-        checkTsCache(identity, tsDir, m3u8StorePath, optionsForApplyTsCache, m3u8Resolver);
+    /**
+     * lengths of ts are known by byte ranges, or recorded in tsIndex by the last run
+     *
+     * @param tsIndex nullable, tsIndex of the last run merged in place
+     */
+    private TsMergeLayout newMergeLayout(TsSegmentTable tsSegmentTable, TsCompletionIndex tsIndex) {
+        long[] recordedLengths = null;
+        if (null != tsIndex) {
+            recordedLengths = Try.of(tsIndex::getLengths).getOrElseGet(ex -> {
+                log.warn("read lengths of tsIndex error: {}, {}", m3u8Download.getIdentity(), ex.getMessage());
+                return null;
+            });
+        }
+        List<TsDownload> tsDownloads = tsSegmentTable.getTsDownloads();
+        long[] lengths = new long[tsDownloads.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            ByteRange byteRange = tsDownloads.get(i).getByteRange();
+            if (null != byteRange) {
+                lengths[i] = byteRange.getLength();
+            } else {
+                lengths[i] = null != recordedLengths && recordedLengths[i] > 0 ? recordedLengths[i] : -1;
+            }
+        }
+        return new TsMergeLayout(m3u8Download.getMergeInPlaceFilePath(), lengths, tsSegmentTable.getSequences());
+    }
 
-        // fetchSecretKey
-        Map<MediaSegment, M3u8SecretKey> secretKeyMap = m3u8Resolver.fetchSecretKey(mediaSegments);
+    private boolean[] getCompleted(TsCompletionIndex tsIndex, int size) {
+        boolean[] completed = new boolean[size];
+        for (int i = 0; i < completed.length; i++) {
+            completed[i] = tsIndex.isCompleted(i);
+        }
+        return completed;
+    }
 
-        // convert
-        List<TsDownload> tsDownloads = convertToTsDownloads(OptionsForApplyTsCache.START_OVER == optionsForApplyTsCache, tsDir, mediaSegments, secretKeyMap);
+    /**
+     * whether the ts completed in tsIndex is still in its store
+     */
+    private boolean isStored(TsDownload tsDownload, StoreMode storeMode, TsPackFile packFile) {
+        switch (storeMode) {
+            case PACKED:
+                return packFile.contains(tsDownload.getRow());
+            case FILES:
+                // the ts file may be removed by user
+                return Files.exists(tsDownload.getFinalFilePath());
+            default:
+                return true;
+        }
+    }
 
-        // m3u8Store
-        genM3u8Store(m3u8Resolver, m3u8StorePath);
+    /**
+     * @param deferrer takes the ts which is not emitted now
+     */
+    private void emitTsDownloads(List<TsDownload> tsDownloads, boolean[] completedInCache, Predicate<TsDownload> deferrer,
+                                 TsDownloadPlanListener listener) {
+        for (int i = 0; i < tsDownloads.size(); i++) {
+            TsDownload tsDownload = tsDownloads.get(i);
+            if (completedInCache[i]) {
+                tsDownload.completeInCache();
+            } else if (!deferrer.test(tsDownload)) {
+                listener.newTsDownload(tsDownload);
+            }
+        }
+    }
 
-        return tsDownloads;
+    private void applyTsCacheAndEmit(List<TsDownload> tsDownloads, OptionsForApplyTsCache optionsForApplyTsCache,
+                                     TsDownloadPlanListener listener) {
+        boolean ignoreCache = OptionsForApplyTsCache.START_OVER == optionsForApplyTsCache;
+        for (TsDownload tsDownload : tsDownloads) {
+            if (applyTsCache(ignoreCache, tsDownload, true)) {
+                continue;
+            }
+            listener.newTsDownload(tsDownload);
+        }
     }
 
-    private void checkTsCache(String identity, Path tsDir, Path m3u8StorePath,
+    /**
+     * @param storePaths m3u8StoreFile goes first, followed by the other files kept in tsDir
+     */
+    private void checkTsCache(String identity, Path tsDir, List<Path> storePaths,
                               OptionsForApplyTsCache optionsForApplyTsCache, M3u8Resolver m3u8Resolver) {
-        Preconditions.checkArgument(ObjectUtils.allNotNull(identity, tsDir, m3u8StorePath));
-        Preconditions.checkArgument(ObjectUtils.allNotNull(optionsForApplyTsCache, m3u8StorePath));
+        Preconditions.checkArgument(ObjectUtils.allNotNull(identity, tsDir, storePaths));
+        Preconditions.checkArgument(ObjectUtils.allNotNull(optionsForApplyTsCache, storePaths.get(0)));
+        Path m3u8StorePath = storePaths.get(0);
 
         if (OptionsForApplyTsCache.START_OVER == optionsForApplyTsCache) {
             log.info("start download all over: {}", identity);
@@ -96,8 +549,9 @@ public class TsDownloadPlanner {
         }
 
         Collection<Path> possibleCompletedFiles;
-        // except dir, m3u8StoreFile, unFinishedTs and hidden files
-        List<Path> ignoredPaths = Arrays.asList(tsDir, m3u8StorePath);
+        // except dir, store files, unFinishedTs and hidden files
+        List<Path> ignoredPaths = CollUtil.newArrayList(storePaths);
+        ignoredPaths.add(tsDir);
         BiPredicate<Path, BasicFileAttributes> matcher = (p, attr) -> Try.of(() -> !Files.isHidden(p)
                 && !ignoredPaths.contains(p)
                 && !p.getFileName().toString().endsWith("." + unFinishedTsExtension)).get();
@@ -156,57 +610,105 @@ public class TsDownloadPlanner {
         }
     }
 
-    private List<TsDownload> convertToTsDownloads(boolean ignoreCache, Path tsDir,
-                                                  List<MediaSegment> mediaSegments,
-                                                  Map<MediaSegment, M3u8SecretKey> secretKeyMap) {
-        Preconditions.checkArgument(ObjectUtils.allNotNull(tsDir, mediaSegments, secretKeyMap));
-
-        List<TsDownload> tsDownloads = CollUtil.newArrayListWithCapacity(mediaSegments.size());
-        for (MediaSegment mediaSegment : mediaSegments) {
-            URI tsUri = mediaSegment.getUri();
-            String tsFileName = Paths.get(tsUri.getPath()).getFileName().toString();
-            Path tsFile = tsDir.resolve(tsFileName + "." + unFinishedTsExtension);
-
-            if (Utils.isFileNameTooLong(tsFile.toString())) {
-                String md5 = Utils.md5(tsUri.toString());
-                Path rtsFile = tsDir.resolve(md5 + "." + unFinishedTsExtension);
-                log.info("fileName too long, use {}: {}", rtsFile, tsFile);
-                tsFile = rtsFile;
-                tsFileName = md5 + ".ts";
+    /**
+     * @param pendingKeys the placeholder of the key of which future is not completed normally yet is put into it
+     */
+    private TsSegmentTable convertToTsSegmentTable(Path tsDir, List<MediaSegment> mediaSegments,
+                                                  Map<MediaSegmentKey, CompletableFuture<M3u8SecretKey>> secretKeyFutures,
+                                                  Map<MediaSegmentKey, M3u8SecretKey> pendingKeys) {
+        Preconditions.checkArgument(ObjectUtils.allNotNull(tsDir, mediaSegments, secretKeyFutures, pendingKeys));
+        Function<MediaSegment, M3u8SecretKey> secretKeyGetter = segment -> {
+            MediaSegmentKey key = segment.getKey();
+            if (Objects.isNull(key)) {
+                return null;
             }
-
-            if (Files.exists(tsFile)) {
-                Path aFinalTsFile = tsFile;
-                Preconditions.checkArgument(Try.run(() -> Files.delete(aFinalTsFile)).isSuccess(), "delete file error: %s", tsFile);
-                if (log.isDebugEnabled()) {
-                    log.debug("delete exists file: {}", tsFile);
-                }
+            CompletableFuture<M3u8SecretKey> future = secretKeyFutures.get(key);
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                return future.join();
             }
-
-            boolean completed = false;
-            Path finalTsFile = tsDir.resolve(tsFileName);
-            if (Files.exists(finalTsFile)) {
-                if (ignoreCache || Try.of(() -> Files.size(finalTsFile)).get() <= 0) {
-                    Preconditions.checkArgument(Try.run(() -> Files.delete(finalTsFile)).isSuccess(), "delete file error: %s", finalTsFile);
-                } else {
-                    completed = true;
-                    if (log.isDebugEnabled()) {
-                        log.debug("uri={} complete, use cache: {}", tsUri, finalTsFile);
+            // method is checked while fetching, it is not NONE
+            return pendingKeys.computeIfAbsent(key, k -> new M3u8SecretKey(null, null, k.getMethod()));
+        };
+
+        long maxCoalesceSize = m3u8Download.getM3u8DownloadOptions().getMaxByteRangeCoalesceSize();
+
+        int size = mediaSegments.size();
+        TsSegmentTable.Builder tableBuilder = TsSegmentTable.builder(m3u8Download, tsDir, size);
+        for (int i = 0; i < size; ) {
+            MediaSegment mediaSegment = mediaSegments.get(i++);
+            M3u8SecretKey m3u8SecretKey = secretKeyGetter.apply(mediaSegment);
+            Double durationInSeconds = mediaSegment.getDurationInSeconds();
+
+            ByteRange byteRange = null;
+            if (Objects.nonNull(mediaSegment.getByteRangeLength())) {
+                long offset = mediaSegment.getByteRangeOffset();
+                long length = mediaSegment.getByteRangeLength();
+
+                // coalesce contiguous sub-ranges into one request, encrypted ones are decrypted separately
+                if (isPlain(m3u8SecretKey)) {
+                    for (; i < size; i++) {
+                        MediaSegment next = mediaSegments.get(i);
+                        if (Objects.isNull(next.getByteRangeLength())
+                                || !Objects.equals(mediaSegment.getUri(), next.getUri())
+                                || !isPlain(secretKeyGetter.apply(next))
+                                || next.getByteRangeOffset() != offset + length
+                                || length + next.getByteRangeLength() > maxCoalesceSize) {
+                            break;
+                        }
+                        length += next.getByteRangeLength();
+                        durationInSeconds = sumDuration(durationInSeconds, next.getDurationInSeconds());
                     }
                 }
+                byteRange = ByteRange.of(offset, length);
             }
 
-            M3u8SecretKey m3u8SecretKey = secretKeyMap.get(mediaSegment);
-            TsDownload tsDownload = TsDownload.getInstance(tsUri, tsFile,
-                    mediaSegment.getSequence(), finalTsFile, mediaSegment.getDurationInSeconds(), m3u8Download, m3u8SecretKey);
+            tableBuilder.add(mediaSegment.getUri(), byteRange, mediaSegment.getSequence(), durationInSeconds, m3u8SecretKey);
+        }
 
-            if (completed) {
-                tsDownload.completeInCache();
+        return tableBuilder.build();
+    }
+
+    private boolean isPlain(M3u8SecretKey m3u8SecretKey) {
+        return Objects.isNull(m3u8SecretKey) || M3u8SecretKey.NONE == m3u8SecretKey;
+    }
+
+    private Double sumDuration(Double a, Double b) {
+        if (Objects.isNull(a)) {
+            return b;
+        }
+        return Objects.isNull(b) ? a : a + b;
+    }
+
+    /**
+     * @param complete whether to complete the ts download in cache
+     * @return if completed in cache
+     */
+    private boolean applyTsCache(boolean ignoreCache, TsDownload tsDownload, boolean complete) {
+        URI tsUri = tsDownload.getUri();
+        Path tsFile = tsDownload.getFilePath();
+        Path finalTsFile = tsDownload.getFinalFilePath();
+
+        if (Files.exists(tsFile)) {
+            Preconditions.checkArgument(Try.run(() -> Files.delete(tsFile)).isSuccess(), "delete file error: %s", tsFile);
+            if (log.isDebugEnabled()) {
+                log.debug("delete exists file: {}", tsFile);
             }
-            tsDownloads.add(tsDownload);
         }
 
-        return tsDownloads;
+        if (Files.exists(finalTsFile)) {
+            if (ignoreCache || Try.of(() -> Files.size(finalTsFile)).get() <= 0) {
+                Preconditions.checkArgument(Try.run(() -> Files.delete(finalTsFile)).isSuccess(), "delete file error: %s", finalTsFile);
+            } else {
+                if (log.isDebugEnabled()) {
+                    log.debug("uri={} complete, use cache: {}", tsUri, finalTsFile);
+                }
+                if (complete) {
+                    tsDownload.completeInCache();
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
     private M3u8Store genM3u8Store(M3u8Resolver m3u8Resolver, Path m3u8StorePath) {
@@ -228,4 +730,144 @@ public class TsDownloadPlanner {
         return m3u8Store;
     }
 
+    /**
+     * emits the ts merged in place in order of sequence, as their regions are placed by the lengths of the ts
+     * before them. the response of the ts last placed tells its length, the few ts ahead of it are probed only
+     * while the ts emitted and not completed are few, so that requests are not waiting for the responses one
+     * by one. probing is stopped once a probe fails, e.g. HEAD is unsupported or throttled, lengths are known
+     * by the responses only then.
+     */
+    private class MergePlacement {
+
+        final TsSegmentTable tsSegmentTable;
+
+        final TsMergeLayout mergeLayout;
+
+        // ts not emitted yet, in order of sequence
+        final List<TsDownload> pending;
+
+        final TsDownloadPlanListener listener;
+
+        final BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter;
+
+        final CompletableFuture<List<TsDownload>> future = new CompletableFuture<>();
+
+        // guarded by this
+        final Set<Integer> probedRows = CollUtil.newHashSet();
+
+        // guarded by this, count of pending ts emitted
+        int emitted;
+
+        // guarded by this, pending ts before it are completed
+        int completed;
+
+        volatile boolean probing = true;
+
+        MergePlacement(TsSegmentTable tsSegmentTable, List<TsDownload> pending,
+                       BiFunction<URI, HttpRequestConfig, CompletableFuture<Long>> contentLengthGetter,
+                       TsDownloadPlanListener listener) {
+            this.listener = listener;
+            this.tsSegmentTable = tsSegmentTable;
+            this.contentLengthGetter = contentLengthGetter;
+            this.mergeLayout = tsSegmentTable.getMergeLayout();
+            this.pending = pending.stream().sorted(Comparator.comparing(TsDownload::getSequence)).collect(Collectors.toList());
+        }
+
+        CompletableFuture<List<TsDownload>> start() {
+            mergeLayout.setListener(() -> executor.execute(this::emitPlaced));
+            emitPlaced();
+            return future;
+        }
+
+        void abort(Throwable cause) {
+            if (future.completeExceptionally(cause)) {
+                mergeLayout.setListener(null);
+            }
+        }
+
+        private synchronized void emitPlaced() {
+            if (future.isDone()) {
+                return;
+            }
+            int count = emitted;
+            while (emitted < pending.size() && mergeLayout.isPlaced(pending.get(emitted).getRow())) {
+                listener.newTsDownload(pending.get(emitted++));
+            }
+            if (emitted > count) {
+                log.debug("placed {} ts, {} pending: {}", emitted - count, pending.size() - emitted, m3u8Download.getIdentity());
+            }
+            if (emitted == pending.size()) {
+                mergeLayout.setListener(null);
+                future.complete(tsSegmentTable.getTsDownloads());
+                return;
+            }
+
+            // ts emitted and not completed, probing is unnecessary if they are enough to keep the requests going
+            while (completed < emitted && isCompleted(pending.get(completed))) {
+                completed++;
+            }
+            int running = 0;
+            for (int k = completed; k < emitted; k++) {
+                running += isCompleted(pending.get(k)) ? 0 : 1;
+            }
+            if (!probing || running >= mergeProbeAhead) {
+                return;
+            }
+            for (int row : mergeLayout.getUnknownRowsAhead(mergeProbeAhead - running)) {
+                if (probedRows.add(row)) {
+                    probe(row);
+                }
+            }
+        }
+
+        private boolean isCompleted(TsDownload tsDownload) {
+            return TsDownload.TsDownloadStage.COMPLETED == tsDownload.getDownloadStage();
+        }
+
+        private void probe(int row) {
+            TsDownload tsDownload = tsSegmentTable.getTsDownloads().get(row);
+            URI uri = tsDownload.getUri();
+            M3u8HttpRequestConfigStrategy requestConfigStrategy = m3u8Download.getM3u8DownloadOptions().getM3u8HttpRequestConfigStrategy();
+            HttpRequestConfig tsRequestConfig = null == requestConfigStrategy ? null : requestConfigStrategy.getConfig(REQ_FOR_TS, uri);
+            // a probe is a hint, it is not retried but stops probing once it fails, e.g. throttled
+            HttpRequestConfig requestConfig = null == tsRequestConfig ? new PureHttpRequestConfig(null, 0, null)
+                    : new PureHttpRequestConfig(tsRequestConfig.getProxy(), 0, tsRequestConfig.getRequestHeaderMap());
+            contentLengthGetter.apply(uri, requestConfig).whenComplete((length, th) -> {
+                if (null != th) {
+                    if (probing) {
+                        probing = false;
+                        log.warn("probe length of ts error, stop probing: {}, {}", uri, FutureUtil.unwrap(th).getMessage());
+                    }
+                } else if (null != length && length > 0) {
+                    tsSegmentTable.setMergeLength(row, length, true);
+                }
+            });
+        }
+    }
+
+    public interface TsDownloadPlanListener {
+
+        /**
+         * all ts downloads of m3u8, called before the ts cache is applied
+         */
+        default void planned(List<TsDownload> tsDownloads) {
+        }
+
+        /**
+         * ts downloads appended by reloading live playlist, called before the ts cache is applied
+         */
+        default void reloaded(List<TsDownload> tsDownloads) {
+        }
+
+        /**
+         * ts download need to download, called in order of sequence
+         */
+        default void newTsDownload(TsDownload tsDownload) {
+        }
+
+        TsDownloadPlanListener NOP = new TsDownloadPlanListener() {
+        };
+
+    }
+
 }
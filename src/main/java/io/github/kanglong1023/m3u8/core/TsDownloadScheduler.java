@@ -0,0 +1,460 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.http.RouteKey;
+import io.github.kanglong1023.m3u8.http.component.RouteCircuitBreaker;
+import io.github.kanglong1023.m3u8.util.CollUtil;
+import io.github.kanglong1023.m3u8.util.FutureUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+import static io.github.kanglong1023.m3u8.util.Preconditions.m3u8Check;
+
+/**
+ * holds ts downloads in queues and releases them within the in-flight window of their download and route,
+ * the queue of a download is ordered by sequence. the window is refilled as ts downloads complete.
+ * <p>
+ * downloads compete for the route by weighted fair queuing: each released ts advances the virtual time of
+ * its download by 1/weight, and the download with the least virtual time goes first. a download which becomes
+ * backlogged starts at the current virtual time, so it could neither starve others nor be starved.
+ * <p>
+ * priority of downloads is strict or weighted. strict: the download of the highest priority among those which
+ * could release a ts goes first, so each window freed on a route is taken from lower ones while higher ones have
+ * ts pending. weighted: the weight of a download is doubled for each level of priority.
+ * <p>
+ * the window of a route is also bounded by its current concurrency limit, which adapts to the server.
+ * <p>
+ * if largestRemainingWorkFirst, the weight of a download is scaled by its share of remaining work, relative to
+ * the download with the most remaining work, so the downloads tend to finish together and the batch finishes early.
+ * <p>
+ * ts of a route whose circuit is open are held, a single probe is released when it turns half-open.
+ * a ts failed while its route is failing is queued again, instead of failing its download.
+ * <p>
+ * other requests of a download, e.g. probing lengths of ts, are released within the same windows ahead of its ts.
+ */
+@Slf4j
+final class TsDownloadScheduler {
+
+    private final int maxInFlightPerRoute;
+
+    private final int maxInFlightPerDownload;
+
+    private static final int maxRequeues = 10;
+
+    private static final long minWakeupNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // a download with little remaining work still makes progress
+    private static final double minWorkShare = 0.05;
+
+    private final boolean largestRemainingWorkFirst;
+
+    private final boolean strictPriority;
+
+    private static final int maxPriorityShift = 16;
+
+    private final ToIntFunction<URI> routeConcurrencyLimit;
+
+    // nullable
+    private final RouteCircuitBreaker circuitBreaker;
+
+    // nullable if circuitBreaker is null
+    private final ScheduledExecutorService wakeupScheduler;
+
+    // guarded by this
+    private final Map<RouteKey, RouteState> routes = CollUtil.newHashMap();
+
+    // guarded by this, in order of registration
+    private final Map<M3u8Download, DownloadQueue> downloads = CollUtil.newLinkedHashMap();
+
+    // guarded by this, virtual time of the last released ts
+    private double virtualTime;
+
+    // guarded by this, a dispatch is scheduled for held ts
+    private boolean wakeupScheduled;
+
+    // guarded by this
+    private long wakeupAtNanos;
+
+    TsDownloadScheduler(int maxInFlightPerRoute, int maxInFlightPerDownload) {
+        this(maxInFlightPerRoute, maxInFlightPerDownload, null, null, null, false, true);
+    }
+
+    /**
+     * @param routeConcurrencyLimit nullable, current concurrency limit of the route of uri
+     * @param circuitBreaker        nullable
+     * @param wakeupScheduler       dispatches held ts when circuits turn half-open, required if circuitBreaker is present
+     */
+    TsDownloadScheduler(int maxInFlightPerRoute, int maxInFlightPerDownload, ToIntFunction<URI> routeConcurrencyLimit,
+                        RouteCircuitBreaker circuitBreaker, ScheduledExecutorService wakeupScheduler,
+                        boolean largestRemainingWorkFirst, boolean strictPriority) {
+        this.strictPriority = strictPriority;
+        this.circuitBreaker = circuitBreaker;
+        this.largestRemainingWorkFirst = largestRemainingWorkFirst;
+        this.routeConcurrencyLimit = routeConcurrencyLimit;
+        this.wakeupScheduler = null == circuitBreaker ? null : checkNotNull(wakeupScheduler);
+        this.maxInFlightPerRoute = checkPositive(maxInFlightPerRoute, "maxInFlightPerRoute");
+        this.maxInFlightPerDownload = checkPositive(maxInFlightPerDownload, "maxInFlightPerDownload");
+    }
+
+    /**
+     * @param downloader starts downloading the ts, called without holding any lock
+     */
+    synchronized void register(M3u8Download m3u8Download, Function<TsDownload, CompletableFuture<Path>> downloader) {
+        checkNotNull(m3u8Download);
+        checkNotNull(downloader);
+        int weight = m3u8Download.getM3u8DownloadOptions().getWeight();
+        int priority = m3u8Download.getM3u8DownloadOptions().getPriority();
+        double effectiveWeight = strictPriority ? weight : weight * (double) (1L << Math.min(priority, maxPriorityShift));
+        downloads.computeIfAbsent(m3u8Download, d -> new DownloadQueue(effectiveWeight, priority, downloader));
+    }
+
+    /**
+     * the pending ts downloads are cancelled
+     */
+    void unregister(M3u8Download m3u8Download) {
+        DownloadQueue queue;
+        synchronized (this) {
+            queue = downloads.remove(m3u8Download);
+        }
+        if (null == queue) {
+            return;
+        }
+        TsWork<?> work;
+        while (null != (work = queue.poll())) {
+            if (null != work.tsDownload) {
+                work.tsDownload.unpinUri();
+            }
+            work.future.completeExceptionally(new CancellationException("unregistered: " + m3u8Download.getIdentity()));
+        }
+    }
+
+    CompletableFuture<Path> submit(TsDownload tsDownload) {
+        checkNotNull(tsDownload);
+        URI uri = tsDownload.pinUri();
+        return submit(new TsWork<>(tsDownload.getM3u8Download(), tsDownload, tsDownload.getSequence(), uri,
+                q -> q.downloader.apply(tsDownload)));
+    }
+
+    /**
+     * issue a request of the download to uri within the windows of ts, it goes before the ts of the download
+     *
+     * @param request starts the request, called without holding any lock
+     */
+    <T> CompletableFuture<T> submit(M3u8Download m3u8Download, URI uri, Supplier<CompletableFuture<T>> request) {
+        checkNotNull(uri);
+        checkNotNull(request);
+        checkNotNull(m3u8Download);
+        return submit(new TsWork<>(m3u8Download, null, Integer.MIN_VALUE, uri, q -> request.get()));
+    }
+
+    private <T> CompletableFuture<T> submit(TsWork<T> work) {
+        synchronized (this) {
+            DownloadQueue queue = downloads.get(work.m3u8Download);
+            m3u8Check(null != queue, "not registered: %s", work.m3u8Download.getIdentity());
+            if (queue.size() == 0 && queue.inFlight == 0) {
+                queue.virtualTime = Math.max(queue.virtualTime, virtualTime);
+            }
+            queue.add(work);
+        }
+        dispatch();
+        return work.future;
+    }
+
+    synchronized int getPendingCount() {
+        return downloads.values().stream().mapToInt(DownloadQueue::size).sum();
+    }
+
+    synchronized int getInFlightCount() {
+        return downloads.values().stream().mapToInt(q -> q.inFlight).sum();
+    }
+
+    private void dispatch() {
+        List<TsWork<?>> works = pollDispatchable();
+        for (TsWork<?> work : works) {
+            start(work);
+        }
+    }
+
+    /**
+     * release the ts of the download with the least virtual time one by one, until no window is available
+     */
+    private synchronized List<TsWork<?>> pollDispatchable() {
+        List<TsWork<?>> works = Collections.emptyList();
+        for (RouteState route : routes.values()) {
+            route.limit = routeLimit(route.uri);
+        }
+        if (largestRemainingWorkFirst) {
+            updateWorkShares();
+        }
+        // routes held by circuit breaker in this round
+        Set<RouteKey> heldRoutes = Collections.emptySet();
+        long wakeupNanos = Long.MAX_VALUE;
+        while (true) {
+            DownloadQueue selected = null;
+            for (DownloadQueue queue : downloads.values()) {
+                TsWork<?> work = queue.peek();
+                if (null == work || queue.inFlight >= maxInFlightPerDownload || heldRoutes.contains(work.routeKey)) {
+                    continue;
+                }
+                RouteState route = routes.get(work.routeKey);
+                if (null != route && route.inFlight >= route.limit) {
+                    continue;
+                }
+                if (null == selected || goesBefore(queue, selected)) {
+                    selected = queue;
+                }
+            }
+            if (null == selected) {
+                if (wakeupNanos != Long.MAX_VALUE) {
+                    scheduleWakeup(wakeupNanos);
+                }
+                return works;
+            }
+
+            TsWork<?> work = selected.peek();
+            URI uri = work.uri;
+            if (null != circuitBreaker && !circuitBreaker.tryAcquire(uri)) {
+                if (heldRoutes.isEmpty()) {
+                    heldRoutes = CollUtil.newHashSet();
+                }
+                heldRoutes.add(work.routeKey);
+                wakeupNanos = Math.min(wakeupNanos, circuitBreaker.nanosToProbe(uri));
+                continue;
+            }
+
+            selected.poll();
+            if (null != circuitBreaker) {
+                work.circuitTrips = circuitBreaker.getTrips(uri);
+            }
+            selected.inFlight++;
+            routes.computeIfAbsent(work.routeKey, k -> new RouteState(uri, routeLimit(uri))).inFlight++;
+            virtualTime = selected.virtualTime;
+            selected.virtualTime += 1.0 / (selected.weight * selected.workShare);
+
+            work.queue = selected;
+            if (works.isEmpty()) {
+                works = CollUtil.newArrayList();
+            }
+            works.add(work);
+        }
+    }
+
+    private boolean goesBefore(DownloadQueue queue, DownloadQueue other) {
+        if (strictPriority && queue.priority != other.priority) {
+            return queue.priority > other.priority;
+        }
+        return queue.virtualTime < other.virtualTime;
+    }
+
+    private void updateWorkShares() {
+        if (downloads.isEmpty()) {
+            return;
+        }
+        List<M3u8Download> m3u8Downloads = CollUtil.newArrayList(downloads.keySet());
+        double[] works = RemainingWork.estimate(m3u8Downloads);
+        double maxWork = Arrays.stream(works).max().orElse(0);
+        for (int i = 0; i < works.length; i++) {
+            DownloadQueue queue = downloads.get(m3u8Downloads.get(i));
+            queue.workShare = works[i] < 0 || maxWork <= 0 ? 1 : Math.max(minWorkShare, works[i] / maxWork);
+        }
+    }
+
+    /**
+     * the earlier one wins if a dispatch is already scheduled
+     */
+    private void scheduleWakeup(long delayNanos) {
+        delayNanos = Math.max(minWakeupNanos, delayNanos);
+        long wakeupAtNanos = System.nanoTime() + delayNanos;
+        if (wakeupScheduled && this.wakeupAtNanos - wakeupAtNanos <= 0) {
+            return;
+        }
+        try {
+            wakeupScheduler.schedule(() -> {
+                synchronized (this) {
+                    if (this.wakeupAtNanos == wakeupAtNanos) {
+                        wakeupScheduled = false;
+                    }
+                }
+                dispatch();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            this.wakeupScheduled = true;
+            this.wakeupAtNanos = wakeupAtNanos;
+        } catch (RejectedExecutionException ex) {
+            log.warn("schedule wakeup error: {}", ex.getMessage());
+        }
+    }
+
+    private int routeLimit(URI uri) {
+        if (null == routeConcurrencyLimit) {
+            return maxInFlightPerRoute;
+        }
+        return Math.max(1, Math.min(maxInFlightPerRoute, routeConcurrencyLimit.applyAsInt(uri)));
+    }
+
+    private <T> void start(TsWork<T> work) {
+        CompletableFuture<T> future;
+        try {
+            future = work.request.apply(work.queue);
+        } catch (Throwable th) {
+            future = FutureUtil.failed(th);
+        }
+        future.whenComplete((result, th) -> {
+            if (null != th && requeue(work)) {
+                return;
+            }
+            release(work);
+            if (null != th) {
+                work.future.completeExceptionally(FutureUtil.unwrap(th));
+            } else {
+                work.future.complete(result);
+            }
+        });
+    }
+
+    /**
+     * queue the failed ts again if its route is failing: the circuit is not closed, has been opened while the ts is
+     * in flight, or is counting failures. it is released again within the window, and held while the circuit is open
+     */
+    private boolean requeue(TsWork<?> work) {
+        if (null == circuitBreaker || work.requeues >= maxRequeues) {
+            return false;
+        }
+        URI uri = work.uri;
+        if (circuitBreaker.isHealthy(uri) && circuitBreaker.getTrips(uri) == work.circuitTrips) {
+            return false;
+        }
+        synchronized (this) {
+            if (downloads.get(work.m3u8Download) != work.queue) {
+                return false;
+            }
+            work.requeues++;
+            if (null != work.tsDownload) {
+                work.tsDownload.retry();
+                // unpinned as the ts failed
+                work.tsDownload.pinUri();
+            }
+            releaseWindow(work);
+            work.queue.add(work);
+        }
+        log.info("route is failing, requeue ts({}): {}", work.requeues, work.uri);
+        dispatch();
+        return true;
+    }
+
+    private void release(TsWork<?> work) {
+        synchronized (this) {
+            releaseWindow(work);
+        }
+        dispatch();
+    }
+
+    private void releaseWindow(TsWork<?> work) {
+        work.queue.inFlight--;
+        RouteState route = routes.get(work.routeKey);
+        if (null != route && --route.inFlight <= 0) {
+            routes.remove(work.routeKey);
+        }
+    }
+
+    private static class DownloadQueue {
+
+        final double weight;
+
+        final int priority;
+
+        final Function<TsDownload, CompletableFuture<Path>> downloader;
+
+        final PriorityQueue<TsWork<?>> pending = new PriorityQueue<>(Comparator.comparingInt(w -> w.sequence));
+
+        int inFlight;
+
+        double virtualTime;
+
+        // remaining work relative to the download with the most
+        double workShare = 1;
+
+        DownloadQueue(double weight, int priority, Function<TsDownload, CompletableFuture<Path>> downloader) {
+            this.weight = weight;
+            this.priority = priority;
+            this.downloader = downloader;
+        }
+
+        void add(TsWork<?> work) {
+            pending.add(work);
+        }
+
+        TsWork<?> peek() {
+            return pending.peek();
+        }
+
+        TsWork<?> poll() {
+            return pending.poll();
+        }
+
+        int size() {
+            return pending.size();
+        }
+    }
+
+    private static class RouteState {
+
+        final URI uri;
+
+        int limit;
+
+        int inFlight;
+
+        RouteState(URI uri, int limit) {
+            this.uri = uri;
+            this.limit = limit;
+        }
+    }
+
+    private static class TsWork<T> {
+
+        final int sequence;
+
+        final URI uri;
+
+        final RouteKey routeKey;
+
+        final M3u8Download m3u8Download;
+
+        // nullable, a request of the download other than ts if null
+        final TsDownload tsDownload;
+
+        // starts the request by the queue it is released from
+        final Function<DownloadQueue, CompletableFuture<T>> request;
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        DownloadQueue queue;
+
+        int requeues;
+
+        long circuitTrips;
+
+        TsWork(M3u8Download m3u8Download, TsDownload tsDownload, int sequence, URI uri,
+               Function<DownloadQueue, CompletableFuture<T>> request) {
+            this.uri = uri;
+            this.request = request;
+            this.sequence = sequence;
+            this.tsDownload = tsDownload;
+            this.m3u8Download = m3u8Download;
+            this.routeKey = RouteKey.of(uri);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package io.github.kanglong1023.m3u8.core;
+
+import java.util.Arrays;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkArgument;
+
+/**
+ * hedging policy of a M3u8Download: a ts taking longer than the percentile of observed latencies is requested
+ * again, the hedges are capped as a fraction of requests.
+ */
+final class TsHedger {
+
+    private static final int minSamples = 20;
+
+    private static final int maxSamples = 256;
+
+    private static final int recomputeInterval = 16;
+
+    private final double percentile;
+
+    private final double maxHedgeRatio;
+
+    // guarded by this, ring of recent latencies
+    private final long[] samples = new long[maxSamples];
+
+    private int sampleCount;
+
+    private int sampleIndex;
+
+    private long requests;
+
+    private long hedges;
+
+    private long hedgeDelayNanos = -1;
+
+    /**
+     * @param percentile    in (0, 1)
+     * @param maxHedgeRatio in (0, 1]
+     */
+    TsHedger(double percentile, double maxHedgeRatio) {
+        checkArgument(percentile > 0 && percentile < 1, "percentile must be in (0, 1)");
+        checkArgument(maxHedgeRatio > 0 && maxHedgeRatio <= 1, "maxHedgeRatio must be in (0, 1]");
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    synchronized void onRequest() {
+        requests++;
+    }
+
+    synchronized void onCompleted(long latencyNanos) {
+        samples[sampleIndex] = latencyNanos;
+        sampleIndex = (sampleIndex + 1) % maxSamples;
+        sampleCount++;
+        if (sampleCount >= minSamples && (hedgeDelayNanos < 0 || sampleCount % recomputeInterval == 0)) {
+            long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, maxSamples));
+            Arrays.sort(sorted);
+            hedgeDelayNanos = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length))];
+        }
+    }
+
+    /**
+     * @return -1 if not enough latencies observed
+     */
+    synchronized long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * @return false if over budget
+     */
+    synchronized boolean tryAcquireHedge() {
+        if (hedges + 1 > requests * maxHedgeRatio) {
+            return false;
+        }
+        hedges++;
+        return true;
+    }
+
+    synchronized long getHedges() {
+        return hedges;
+    }
+
+}
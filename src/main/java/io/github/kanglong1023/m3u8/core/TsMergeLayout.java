@@ -0,0 +1,215 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.util.CollUtil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkArgument;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * regions of the rows of {@link TsSegmentTable} in the merged file, placed one after another in order of sequence.
+ * each ts is written into its region directly, so the merged file is complete once all ts are completed.
+ * <p>
+ * lengths are learned on the way, e.g. by Content-Length of the response, a row is placed once the lengths of
+ * all rows before it are known. the length of the row last placed may be unknown, it is written without limit
+ * until its length is known, see {@link #getLength(int)}.
+ */
+final class TsMergeLayout {
+
+    private final Path filePath;
+
+    // rows in order of sequence
+    private final int[] rows;
+
+    // by row, guarded by this
+    private final long[] offsets;
+
+    // by row, -1 if unknown, guarded by this
+    private final long[] lengths;
+
+    // by row, whether its response is started, guarded by this
+    private final boolean[] responded;
+
+    // rows[0, known) are of known lengths, rows[0, known] are placed, guarded by this
+    private int known;
+
+    // offset of rows[known], guarded by this
+    private long end;
+
+    // nullable, notified once more rows are placed
+    private volatile Runnable listener;
+
+    /**
+     * @param lengths   length of each row, -1 if unknown
+     * @param sequences sequence of each row
+     */
+    TsMergeLayout(Path filePath, long[] lengths, int[] sequences) {
+        checkArgument(lengths.length == sequences.length, "size of lengths and sequences differs");
+        this.filePath = checkNotNull(filePath);
+        this.lengths = Arrays.copyOf(lengths, lengths.length);
+        this.offsets = new long[lengths.length];
+        this.responded = new boolean[lengths.length];
+        Arrays.fill(this.offsets, -1);
+
+        this.rows = IntStream.range(0, lengths.length).boxed()
+                .sorted(Comparator.comparingInt(i -> sequences[i])).mapToInt(Integer::intValue).toArray();
+        place();
+    }
+
+    Path getFilePath() {
+        return this.filePath;
+    }
+
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return -1 if row i is not placed yet
+     */
+    synchronized long getOffset(int i) {
+        return this.offsets[i];
+    }
+
+    /**
+     * @return -1 if unknown
+     */
+    synchronized long getLength(int i) {
+        return this.lengths[i];
+    }
+
+    synchronized long[] getLengths() {
+        return Arrays.copyOf(this.lengths, this.lengths.length);
+    }
+
+    synchronized boolean isPlaced(int i) {
+        return this.offsets[i] >= 0;
+    }
+
+    synchronized boolean isFullyPlaced() {
+        return this.known >= this.rows.length - 1;
+    }
+
+    /**
+     * @return -1 unless lengths of all rows are known
+     */
+    synchronized long getTotalSize() {
+        return this.known == this.rows.length ? this.end : -1;
+    }
+
+    /**
+     * the first one may be the row last placed, followed by the rows waiting for it. the row of which response
+     * is started is skipped, its length is known by the response.
+     *
+     * @return rows of unknown lengths, at most limit of them
+     */
+    synchronized List<Integer> getUnknownRowsAhead(int limit) {
+        List<Integer> unknownRows = CollUtil.newArrayList();
+        for (int k = this.known; k < this.rows.length && unknownRows.size() < limit; k++) {
+            if (this.lengths[this.rows[k]] < 0 && !this.responded[this.rows[k]]) {
+                unknownRows.add(this.rows[k]);
+            }
+        }
+        return unknownRows;
+    }
+
+    /**
+     * the rows after row i are placed once the lengths of the rows before them are known. the response of row i
+     * must be of the length, the first one known wins.
+     *
+     * @param length -1 if unknown, e.g. the response without Content-Length
+     * @param probed whether the length is probed, instead of known by the response. the probed one is rejected
+     *               once the response is started, which is written without limit if it is of unknown length
+     * @return false if the length of row i is known already, or rejected
+     */
+    boolean setLength(int i, long length, boolean probed) {
+        boolean placed;
+        synchronized (this) {
+            if (!probed) {
+                this.responded[i] = true;
+            }
+            if (length < 0 || this.lengths[i] >= 0 || (probed && this.responded[i])) {
+                return false;
+            }
+            this.lengths[i] = length;
+            placed = place();
+        }
+        Runnable listener = this.listener;
+        if (placed && null != listener) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if more rows are placed
+     */
+    private synchronized boolean place() {
+        int known = this.known;
+        while (this.known < this.rows.length && this.lengths[this.rows[this.known]] >= 0) {
+            int row = this.rows[this.known];
+            this.offsets[row] = this.end;
+            this.end += this.lengths[row];
+            this.known++;
+        }
+        if (this.known < this.rows.length) {
+            this.offsets[this.rows[this.known]] = this.end;
+        }
+        return this.known != known;
+    }
+
+    /**
+     * @param completed whether each row is completed by the last run
+     * @return true if the merged file exists and covers the regions completed, they are kept then
+     */
+    synchronized boolean isKeptFor(boolean[] completed) {
+        long completedEnd = 0;
+        for (int i = 0; i < completed.length; i++) {
+            if (completed[i]) {
+                if (this.offsets[i] < 0 || this.lengths[i] < 0) {
+                    // placed by lengths not recorded
+                    return false;
+                }
+                completedEnd = Math.max(completedEnd, this.offsets[i] + this.lengths[i]);
+            }
+        }
+        try {
+            return Files.isRegularFile(filePath) && Files.size(filePath) >= completedEnd;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * create the merged file, of the total size if it is known. the existing one is truncated
+     */
+    void preallocate() throws IOException {
+        long totalSize = getTotalSize();
+        Files.deleteIfExists(filePath);
+        try (RandomAccessFile file = new RandomAccessFile(filePath.toFile(), "rw")) {
+            file.setLength(Math.max(totalSize, 0));
+        }
+    }
+
+    /**
+     * drop the bytes after the last region, e.g. the ts of the last run written beyond its region of this run
+     */
+    void truncate() throws IOException {
+        long totalSize = getTotalSize();
+        checkArgument(totalSize >= 0, "lengths of ts are unknown");
+        try (RandomAccessFile file = new RandomAccessFile(filePath.toFile(), "rw")) {
+            if (file.length() > totalSize) {
+                file.setLength(totalSize);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.http.response.sink.FileRegionAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkArgument;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * append-only pack of ts of a download, instead of a file per ts. ts is appended in any order as it completes.
+ * <p>
+ * a region of the pack is allocated for a ts once the length of its response is known, and the ts is written
+ * into it directly. the ts of unknown length is downloaded into its own file, and copied into the pack on completion.
+ * <p>
+ * the regions are recorded in the pack index: header(magic, version, fingerprint, segmentCount),
+ * records(row, offset, length, crc32). a record is appended after the ts is written, and a later record
+ * of the same row wins. regions of failed ts are left as holes.
+ */
+@Slf4j
+final class TsPackFile {
+
+    private static final int MAGIC = 0x4d33_5041;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private static final int RECORD_SIZE = 4 + 8 + 8 + 8;
+
+    private final Path packPath;
+
+    private final Path indexPath;
+
+    // by row, -1 if absent
+    private final long[] offsets;
+
+    private final long[] lengths;
+
+    // by row, region allocated for the ts being downloaded, -1 if none
+    private final long[] allocated;
+
+    // guarded by this, end of the allocated regions
+    private long end;
+
+    // guarded by this, null if closed
+    private FileChannel indexChannel;
+
+    private TsPackFile(Path packPath, Path indexPath, int segmentCount, FileChannel indexChannel, long end) {
+        this.end = end;
+        this.packPath = packPath;
+        this.indexPath = indexPath;
+        this.indexChannel = indexChannel;
+        this.offsets = new long[segmentCount];
+        this.lengths = new long[segmentCount];
+        this.allocated = new long[segmentCount];
+        Arrays.fill(this.offsets, -1);
+        Arrays.fill(this.lengths, -1);
+        Arrays.fill(this.allocated, -1);
+    }
+
+    /**
+     * open the pack, the records of it are loaded if it belongs to the same segment table
+     *
+     * @param reset discard the existing pack
+     */
+    static TsPackFile open(Path packPath, Path indexPath, long fingerprint, int segmentCount, boolean reset) throws IOException {
+        checkNotNull(packPath);
+        checkNotNull(indexPath);
+        checkNonNegative(segmentCount, "segmentCount");
+
+        if (!reset) {
+            TsPackFile packFile = load(packPath, indexPath, fingerprint, segmentCount);
+            if (null != packFile) {
+                return packFile;
+            }
+        }
+
+        Files.deleteIfExists(packPath);
+        Files.createFile(packPath);
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putInt(segmentCount).flip();
+            writeFully(channel, header, 0);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new TsPackFile(packPath, indexPath, segmentCount, channel, 0);
+    }
+
+    /**
+     * @return null if the pack is absent, or belongs to another playlist
+     */
+    private static TsPackFile load(Path packPath, Path indexPath, long fingerprint, int segmentCount) {
+        if (Files.notExists(packPath) || Files.notExists(indexPath)) {
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            long packSize = Files.size(packPath);
+            channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long indexSize = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            if (indexSize < HEADER_SIZE) {
+                log.warn("tsPack index is corrupted, ignore it: {}", indexPath);
+                channel.close();
+                return null;
+            }
+            readFully(channel, buffer, 0);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != fingerprint || buffer.getInt() != segmentCount) {
+                log.warn("tsPack belongs to another playlist, ignore it: {}", indexPath);
+                channel.close();
+                return null;
+            }
+
+            // a torn record at the tail is dropped
+            long records = (indexSize - HEADER_SIZE) / RECORD_SIZE;
+            long validSize = HEADER_SIZE + records * RECORD_SIZE;
+            if (validSize != indexSize) {
+                channel.truncate(validSize);
+            }
+
+            TsPackFile packFile = new TsPackFile(packPath, indexPath, segmentCount, channel, packSize);
+            ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            for (long position = HEADER_SIZE; position < validSize; ) {
+                recordBuffer.clear().limit((int) Math.min(recordBuffer.capacity(), validSize - position));
+                readFully(channel, recordBuffer, position);
+                position += recordBuffer.flip().remaining();
+                while (recordBuffer.hasRemaining()) {
+                    int row = recordBuffer.getInt();
+                    long offset = recordBuffer.getLong(), length = recordBuffer.getLong();
+                    recordBuffer.getLong();
+                    if (row >= 0 && row < segmentCount && offset >= 0 && length >= 0 && offset + length <= packSize) {
+                        packFile.offsets[row] = offset;
+                        packFile.lengths[row] = length;
+                    }
+                }
+            }
+            return packFile;
+        } catch (IOException ex) {
+            log.warn("load tsPack({}) error, ignore it: {}", packPath, ex.getMessage());
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    Path getPackPath() {
+        return this.packPath;
+    }
+
+    synchronized boolean contains(int row) {
+        return this.offsets[row] >= 0;
+    }
+
+    synchronized long getOffset(int row) {
+        return this.offsets[row];
+    }
+
+    synchronized long getLength(int row) {
+        return this.lengths[row];
+    }
+
+    /**
+     * allocates the region of the row for its response, the former one of retry is left as a hole
+     */
+    FileRegionAllocator allocator(int row) {
+        return new FileRegionAllocator() {
+            @Override
+            public Path getFilePath() {
+                return packPath;
+            }
+
+            @Override
+            public long allocate(long length) {
+                return TsPackFile.this.allocate(row, length);
+            }
+        };
+    }
+
+    private synchronized long allocate(int row, long length) {
+        checkNonNegative(length, "length");
+        long offset = this.end;
+        this.end += length;
+        this.allocated[row] = offset;
+        return offset;
+    }
+
+    /**
+     * the region allocated for the failed response of row is left as a hole
+     */
+    synchronized void release(int row) {
+        this.allocated[row] = -1;
+    }
+
+    /**
+     * record the ts written into its allocated region, or copy it from tsFile if the response is written into it
+     *
+     * @param length   bytes written into the allocated region
+     * @param checksum crc32 of the ts, -1 if unknown
+     */
+    void append(int row, long length, long checksum, Path tsFile) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = this.allocated[row];
+            this.allocated[row] = -1;
+        }
+        if (offset < 0 || Files.exists(tsFile)) {
+            length = Files.size(tsFile);
+            offset = allocate(row, length);
+            try (FileChannel source = FileChannel.open(tsFile, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(packPath, StandardOpenOption.WRITE)) {
+                for (long position = 0; position < length; ) {
+                    position += source.transferTo(position, length - position, target.position(offset + position));
+                }
+            }
+            Files.delete(tsFile);
+        }
+        checkArgument(length >= 0, "length of ts is unknown: %s", tsFile);
+
+        synchronized (this) {
+            FileChannel indexChannel = this.indexChannel;
+            if (null == indexChannel) {
+                throw new IOException("tsPack is closed: " + packPath);
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putInt(row).putLong(offset).putLong(length).putLong(checksum).flip();
+            writeFully(indexChannel, record, indexChannel.size());
+            this.offsets[row] = offset;
+            this.lengths[row] = length;
+        }
+    }
+
+    /**
+     * copy the ts of rows into target in order
+     */
+    void transferTo(int[] rows, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(packPath, StandardOpenOption.READ)) {
+            for (int row : rows) {
+                long offset = getOffset(row), length = getLength(row);
+                checkArgument(offset >= 0, "row %s is absent in tsPack", row);
+                for (long position = 0; position < length; ) {
+                    position += channel.transferTo(offset + position, length - position, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * no ts is appended anymore, the recorded ones are still readable
+     */
+    synchronized void close() {
+        FileChannel indexChannel = this.indexChannel;
+        if (null == indexChannel) {
+            return;
+        }
+        this.indexChannel = null;
+        try {
+            indexChannel.close();
+        } catch (IOException ex) {
+            log.warn("close tsPack index({}) error: {}", indexPath, ex.getMessage());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of tsPack index");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+}
@@ -0,0 +1,519 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.http.ByteRange;
+import io.github.kanglong1023.m3u8.http.response.sink.FileRegionAllocator;
+import io.github.kanglong1023.m3u8.util.CollUtil;
+import io.github.kanglong1023.m3u8.util.Preconditions;
+import io.github.kanglong1023.m3u8.util.Utils;
+import io.github.kanglong1023.m3u8.util.function.Try;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static io.github.kanglong1023.m3u8.core.M3u8Download.unFinishedTsExtension;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * struct-of-arrays storage of ts downloads, {@link TsDownload} is a flyweight of (table, index).
+ * <p>
+ * uri of row i is uriPrefix + uriSuffixes[uriSuffixOffsets[i], uriSuffixOffsets[i + 1]).
+ */
+@Slf4j
+final class TsSegmentTable {
+
+    private final Path tsDir;
+
+    private final M3u8Download m3u8Download;
+
+    private final String uriPrefix;
+
+    private final String uriSuffixes;
+
+    private final int[] uriSuffixOffsets;
+
+    private final int[] sequences;
+
+    // NaN if absent
+    private final double[] durations;
+
+    // null if none of rows is a sub-range, -1 if the row is the whole resource
+    private final long[] rangeOffsets;
+
+    private final long[] rangeLengths;
+
+    // null if none of rows has key, -1 if the row has no key
+    private final int[] keyIndexes;
+
+    // a key not fetched yet is a placeholder till it is replaced, its rows are emitted after that
+    private final M3u8SecretKey[] secretKeys;
+
+    // rare, only if the file name derived from uri is too long
+    private final Map<Integer, String> overriddenFileNames;
+
+    // ----------- state ------------ //
+
+    private final AtomicIntegerArray stages;
+
+    private final AtomicLongArray readBytes;
+
+    private final AtomicLongArray contentLengths;
+
+    private final List<TsDownload> tsDownloads;
+
+    // parsed uris of the rows in flight, they are accessed on every dispatch, request and path lookup
+    private final ConcurrentMap<Integer, URI> inFlightUris = new ConcurrentHashMap<>();
+
+    // nullable, persists completion of rows, ts is written into its final file directly if present
+    private volatile TsCompletionIndex completionIndex;
+
+    // nullable, ts is written into its region of the merged file if present
+    private volatile TsMergeLayout mergeLayout;
+
+    // nullable, ts is appended into the pack if present
+    private volatile TsPackFile packFile;
+
+    private TsSegmentTable(Builder builder) {
+        int size = builder.size;
+        this.tsDir = builder.tsDir;
+        this.m3u8Download = builder.m3u8Download;
+
+        String prefix = commonPrefix(builder.uris, size);
+        StringBuilder suffixes = new StringBuilder();
+        this.uriSuffixOffsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            uriSuffixOffsets[i] = suffixes.length();
+            suffixes.append(builder.uris[i], prefix.length(), builder.uris[i].length());
+        }
+        uriSuffixOffsets[size] = suffixes.length();
+        this.uriPrefix = prefix;
+        this.uriSuffixes = suffixes.toString();
+
+        this.sequences = Arrays.copyOf(builder.sequences, size);
+        this.durations = Arrays.copyOf(builder.durations, size);
+        this.rangeOffsets = builder.hasRange ? Arrays.copyOf(builder.rangeOffsets, size) : null;
+        this.rangeLengths = builder.hasRange ? Arrays.copyOf(builder.rangeLengths, size) : null;
+        this.keyIndexes = builder.secretKeys.isEmpty() ? null : Arrays.copyOf(builder.keyIndexes, size);
+        this.secretKeys = builder.secretKeys.toArray(new M3u8SecretKey[0]);
+
+        this.stages = new AtomicIntegerArray(size);
+        this.readBytes = new AtomicLongArray(size);
+        this.contentLengths = new AtomicLongArray(size);
+
+        Map<Integer, String> overriddenFileNames = null;
+        TsDownload[] tsDownloads = new TsDownload[size];
+        for (int i = 0; i < size; i++) {
+            contentLengths.set(i, -1);
+            tsDownloads[i] = new TsDownload(this, i);
+
+            String tsFileName = deriveFileName(i);
+            Path tsFile = tsDir.resolve(tsFileName + "." + unFinishedTsExtension);
+            if (Utils.isFileNameTooLong(tsFile.toString())) {
+                ByteRange byteRange = getByteRange(i);
+                String md5 = Utils.md5(getUriString(i) + (Objects.nonNull(byteRange) ? "#" + byteRange : ""));
+                log.info("fileName too long, use {}: {}", md5 + "." + unFinishedTsExtension, tsFile);
+                if (null == overriddenFileNames) {
+                    overriddenFileNames = CollUtil.newHashMap();
+                }
+                overriddenFileNames.put(i, md5 + ".ts");
+            }
+        }
+        this.overriddenFileNames = null == overriddenFileNames ? Collections.emptyMap() : overriddenFileNames;
+        this.tsDownloads = Collections.unmodifiableList(Arrays.asList(tsDownloads));
+    }
+
+    static Builder builder(M3u8Download m3u8Download, Path tsDir, int expectedSize) {
+        return new Builder(m3u8Download, tsDir, expectedSize);
+    }
+
+    List<TsDownload> getTsDownloads() {
+        return this.tsDownloads;
+    }
+
+    int size() {
+        return this.sequences.length;
+    }
+
+    /**
+     * 64-bit FNV-1a of uris, sequences, byte ranges and storeMode, identifies the rows of the table and where
+     * completed ts are stored
+     */
+    long fingerprint(StoreMode storeMode) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv1a(hash, storeMode.ordinal());
+        hash = fnv1a(hash, this.uriPrefix);
+        hash = fnv1a(hash, this.uriSuffixes);
+        for (int i = 0; i < size(); i++) {
+            hash = fnv1a(hash, this.uriSuffixOffsets[i]);
+            hash = fnv1a(hash, this.sequences[i]);
+            if (null != this.rangeOffsets) {
+                hash = fnv1a(hash, this.rangeOffsets[i]);
+                hash = fnv1a(hash, this.rangeLengths[i]);
+            }
+        }
+        return hash;
+    }
+
+    TsCompletionIndex getCompletionIndex() {
+        return this.completionIndex;
+    }
+
+    void setCompletionIndex(TsCompletionIndex completionIndex) {
+        this.completionIndex = completionIndex;
+    }
+
+    TsMergeLayout getMergeLayout() {
+        return this.mergeLayout;
+    }
+
+    void setMergeLayout(TsMergeLayout mergeLayout) {
+        this.mergeLayout = mergeLayout;
+    }
+
+    TsPackFile getPackFile() {
+        return this.packFile;
+    }
+
+    void setPackFile(TsPackFile packFile) {
+        this.packFile = packFile;
+    }
+
+    int[] getSequences() {
+        return Arrays.copyOf(this.sequences, this.sequences.length);
+    }
+
+    void markCompleted(int i, long length, long checksum) {
+        TsCompletionIndex completionIndex = this.completionIndex;
+        if (null != completionIndex) {
+            completionIndex.markCompleted(i, this.sequences[i], length, checksum);
+        }
+    }
+
+    /**
+     * @return null if ts is not packed
+     */
+    FileRegionAllocator getPackAllocator(int i) {
+        TsPackFile packFile = this.packFile;
+        return null == packFile ? null : packFile.allocator(i);
+    }
+
+    /**
+     * append the ts of row i into the pack, from its file if it is not written into the pack directly
+     */
+    void appendToPack(int i, long length, long checksum) throws IOException {
+        this.packFile.append(i, length, checksum, getFilePath(i));
+    }
+
+    void releasePackRegion(int i) {
+        TsPackFile packFile = this.packFile;
+        if (null != packFile) {
+            packFile.release(i);
+        }
+    }
+
+    M3u8Download getM3u8Download() {
+        return this.m3u8Download;
+    }
+
+    URI getUri(int i) {
+        URI uri = this.inFlightUris.get(i);
+        return null != uri ? uri : URI.create(getUriString(i));
+    }
+
+    /**
+     * parse uri of row i once and keep it until {@link #unpinUri(int)}
+     */
+    URI pinUri(int i) {
+        return this.inFlightUris.computeIfAbsent(i, k -> URI.create(getUriString(k)));
+    }
+
+    void unpinUri(int i) {
+        this.inFlightUris.remove(i);
+    }
+
+    int getSequence(int i) {
+        return this.sequences[i];
+    }
+
+    Double getDurationInSeconds(int i) {
+        double duration = this.durations[i];
+        return Double.isNaN(duration) ? null : duration;
+    }
+
+    ByteRange getByteRange(int i) {
+        if (null == this.rangeLengths || this.rangeLengths[i] < 0) {
+            return null;
+        }
+        return ByteRange.of(this.rangeOffsets[i], this.rangeLengths[i]);
+    }
+
+    /**
+     * replace the placeholder added in place of a key not fetched yet
+     */
+    void replaceSecretKey(M3u8SecretKey placeholder, M3u8SecretKey secretKey) {
+        checkNotNull(secretKey);
+        checkNotNull(placeholder);
+        for (int k = 0; k < this.secretKeys.length; k++) {
+            if (this.secretKeys[k] == placeholder) {
+                this.secretKeys[k] = secretKey;
+            }
+        }
+    }
+
+    M3u8SecretKey getSecretKey(int i) {
+        if (null == this.keyIndexes || this.keyIndexes[i] < 0) {
+            return null;
+        }
+        return this.secretKeys[this.keyIndexes[i]];
+    }
+
+    Path getFilePath(int i) {
+        TsMergeLayout mergeLayout = this.mergeLayout;
+        if (null != mergeLayout) {
+            return mergeLayout.getFilePath();
+        }
+        // a ts is written into its staging file and moved to the final one once completed, even if tsIndex is
+        // attached. the final name is safe only while tsIndex is valid: the cache is applied based on filename
+        // whenever tsIndex is absent or belongs to another playlist, e.g. tokens of uri rotate between runs,
+        // and any non-empty final file is taken as completed then, a partial one must never have that name.
+        return this.tsDir.resolve(getFinalFileName(i) + "." + unFinishedTsExtension);
+    }
+
+    Path getFinalFilePath(int i) {
+        TsMergeLayout mergeLayout = this.mergeLayout;
+        if (null != mergeLayout) {
+            return mergeLayout.getFilePath();
+        }
+        TsPackFile packFile = this.packFile;
+        if (null != packFile) {
+            return packFile.getPackPath();
+        }
+        return this.tsDir.resolve(getFinalFileName(i));
+    }
+
+    /**
+     * offset of row i in the merged file, -1 if not merged in place or not placed yet
+     */
+    long getMergeOffset(int i) {
+        TsMergeLayout mergeLayout = this.mergeLayout;
+        return null == mergeLayout ? -1 : mergeLayout.getOffset(i);
+    }
+
+    /**
+     * length of row i in the merged file, -1 if not merged in place or unknown yet
+     */
+    long getMergeLength(int i) {
+        TsMergeLayout mergeLayout = this.mergeLayout;
+        return null == mergeLayout ? -1 : mergeLayout.getLength(i);
+    }
+
+    /**
+     * the length of row i merged in place is known, it is recorded into tsIndex so the regions placed by it are
+     * kept when resuming. see {@link TsMergeLayout#setLength(int, long, boolean)}
+     */
+    void setMergeLength(int i, long length, boolean probed) {
+        TsMergeLayout mergeLayout = this.mergeLayout;
+        if (null == mergeLayout || !mergeLayout.setLength(i, length, probed)) {
+            return;
+        }
+        TsCompletionIndex completionIndex = this.completionIndex;
+        if (null != completionIndex) {
+            Try.run(() -> completionIndex.recordLength(i, length))
+                    .onFailure(ex -> log.warn("record length of ts into tsIndex error: {}, {}", getUriString(i), ex.getMessage()));
+        }
+    }
+
+    int getStage(int i) {
+        return this.stages.get(i);
+    }
+
+    void setStage(int i, int stage) {
+        this.stages.set(i, stage);
+    }
+
+    long getReadBytes(int i) {
+        return this.readBytes.get(i);
+    }
+
+    void setReadBytes(int i, long bytes) {
+        this.readBytes.set(i, bytes);
+    }
+
+    void addReadBytes(int i, long bytes) {
+        this.readBytes.getAndAdd(i, bytes);
+    }
+
+    long getContentLength(int i) {
+        return this.contentLengths.get(i);
+    }
+
+    void setContentLength(int i, long contentLength) {
+        this.contentLengths.set(i, contentLength);
+    }
+
+    private String getUriString(int i) {
+        return this.uriPrefix + this.uriSuffixes.substring(this.uriSuffixOffsets[i], this.uriSuffixOffsets[i + 1]);
+    }
+
+    private String getFinalFileName(int i) {
+        String fileName = this.overriddenFileNames.get(i);
+        return null != fileName ? fileName : deriveFileName(i);
+    }
+
+    private String deriveFileName(int i) {
+        String tsFileName = Paths.get(getUri(i).getPath()).getFileName().toString();
+        ByteRange byteRange = getByteRange(i);
+        if (Objects.nonNull(byteRange)) {
+            // sub-ranges of the same uri
+            String mainName = Utils.mainName(tsFileName);
+            tsFileName = mainName + "_" + byteRange.getOffset() + "_" + byteRange.getLength()
+                    + tsFileName.substring(mainName.length());
+        }
+        return tsFileName;
+    }
+
+    private static String commonPrefix(String[] strings, int size) {
+        if (size == 0) {
+            return "";
+        }
+        String first = strings[0];
+        int len = first.length();
+        for (int i = 1; i < size && len > 0; i++) {
+            String str = strings[i];
+            len = Math.min(len, str.length());
+            for (int j = 0; j < len; j++) {
+                if (first.charAt(j) != str.charAt(j)) {
+                    len = j;
+                    break;
+                }
+            }
+        }
+        return first.substring(0, len);
+    }
+
+    private static long fnv1a(long hash, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            hash = (hash ^ str.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long fnv1a(long hash, long value) {
+        for (int i = 0; i < 8; i++, value >>>= 8) {
+            hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static boolean sameKey(M3u8SecretKey a, M3u8SecretKey b) {
+        if (a == b) {
+            return true;
+        }
+        if (null == a.getKey() || null == b.getKey()) {
+            // placeholders of keys not fetched yet are distinct
+            return false;
+        }
+        return Objects.equals(a.getMethod(), b.getMethod())
+                && Arrays.equals(a.getKey(), b.getKey()) && Arrays.equals(a.getInitVector(), b.getInitVector());
+    }
+
+    /**
+     * where completed ts are stored, completions recorded in one mode are meaningless in another
+     */
+    enum StoreMode {
+        FILES, MERGED, PACKED,
+    }
+
+    static final class Builder {
+
+        private final Path tsDir;
+
+        private final M3u8Download m3u8Download;
+
+        private int size;
+
+        private String[] uris;
+
+        private int[] sequences;
+
+        private double[] durations;
+
+        private boolean hasRange;
+
+        private long[] rangeOffsets;
+
+        private long[] rangeLengths;
+
+        private int[] keyIndexes;
+
+        private final List<M3u8SecretKey> secretKeys = CollUtil.newArrayList();
+
+        private Builder(M3u8Download m3u8Download, Path tsDir, int expectedSize) {
+            Preconditions.checkArgument(expectedSize >= 0);
+            this.tsDir = checkNotNull(tsDir);
+            this.m3u8Download = checkNotNull(m3u8Download);
+            this.uris = new String[expectedSize];
+            this.sequences = new int[expectedSize];
+            this.durations = new double[expectedSize];
+            this.rangeOffsets = new long[expectedSize];
+            this.rangeLengths = new long[expectedSize];
+            this.keyIndexes = new int[expectedSize];
+        }
+
+        Builder add(URI uri, ByteRange byteRange, int sequence, Double durationInSeconds, M3u8SecretKey secretKey) {
+            checkNotNull(uri);
+            if (size == uris.length) {
+                int capacity = Math.max(16, size + (size >> 1));
+                uris = Arrays.copyOf(uris, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                rangeOffsets = Arrays.copyOf(rangeOffsets, capacity);
+                rangeLengths = Arrays.copyOf(rangeLengths, capacity);
+                keyIndexes = Arrays.copyOf(keyIndexes, capacity);
+            }
+
+            int i = size++;
+            uris[i] = uri.toString();
+            sequences[i] = sequence;
+            durations[i] = null == durationInSeconds ? Double.NaN : durationInSeconds;
+            if (null == byteRange) {
+                rangeOffsets[i] = rangeLengths[i] = -1;
+            } else {
+                hasRange = true;
+                rangeOffsets[i] = byteRange.getOffset();
+                rangeLengths[i] = byteRange.getLength();
+            }
+
+            // keys of adjacent segments are usually the same
+            int keyIndex = -1;
+            if (null != secretKey) {
+                int last = secretKeys.size() - 1;
+                if (last >= 0 && sameKey(secretKeys.get(last), secretKey)) {
+                    keyIndex = last;
+                } else {
+                    secretKeys.add(secretKey);
+                    keyIndex = last + 1;
+                }
+            }
+            keyIndexes[i] = keyIndex;
+            return this;
+        }
+
+        TsSegmentTable build() {
+            return new TsSegmentTable(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package io.github.kanglong1023.m3u8.core;
+
+import io.github.kanglong1023.m3u8.util.Preconditions;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * selects the variant stream to download from master playlist
+ */
+@FunctionalInterface
+public interface VariantSelector {
+
+    Comparator<VariantStream> BANDWIDTH_COMPARATOR = Comparator.comparingLong(VariantStream::getBandwidth);
+
+    /**
+     * @param variantStreams not empty, in order of master playlist
+     * @return the selected one, null if none matches
+     */
+    VariantStream select(List<VariantStream> variantStreams);
+
+    default VariantSelector orElse(VariantSelector other) {
+        checkNotNull(other);
+        return variantStreams -> {
+            VariantStream selected = select(variantStreams);
+            return null != selected ? selected : other.select(variantStreams);
+        };
+    }
+
+    static VariantSelector first() {
+        return variantStreams -> variantStreams.get(0);
+    }
+
+    static VariantSelector highestBandwidth() {
+        return variantStreams -> variantStreams.stream().filter(v -> Objects.nonNull(v.getBandwidth()))
+                .max(BANDWIDTH_COMPARATOR).orElse(variantStreams.get(0));
+    }
+
+    static VariantSelector lowestBandwidth() {
+        return variantStreams -> variantStreams.stream().filter(v -> Objects.nonNull(v.getBandwidth()))
+                .min(BANDWIDTH_COMPARATOR).orElse(variantStreams.get(0));
+    }
+
+    /**
+     * the highest bandwidth not greater than maxBandwidth, the lowest one if all exceed it
+     *
+     * @param maxBandwidth bits per second
+     */
+    static VariantSelector maxBandwidthUnder(long maxBandwidth) {
+        checkPositive(maxBandwidth, "maxBandwidth");
+        return variantStreams -> variantStreams.stream()
+                .filter(v -> Objects.nonNull(v.getBandwidth()) && v.getBandwidth() <= maxBandwidth)
+                .max(BANDWIDTH_COMPARATOR).orElseGet(() -> lowestBandwidth().select(variantStreams));
+    }
+
+    /**
+     * the highest bandwidth one of the exact resolution, null if none matches, see {@link #orElse(VariantSelector)}
+     */
+    static VariantSelector resolution(int width, int height) {
+        checkPositive(width, "width");
+        checkPositive(height, "height");
+        return variantStreams -> {
+            VariantStream selected = null;
+            for (VariantStream variantStream : variantStreams) {
+                if (!variantStream.hasResolution(width, height)) {
+                    continue;
+                }
+                if (null == selected || (Objects.nonNull(variantStream.getBandwidth())
+                        && (null == selected.getBandwidth() || variantStream.getBandwidth() > selected.getBandwidth()))) {
+                    selected = variantStream;
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * select by throughput, e.g. measured by a probe download or observed from other downloads
+     *
+     * @param throughputEstimate bits per second, non-positive means unknown and the lowest bandwidth is selected
+     * @param utilization        the fraction of throughput a single stream may use, in (0, 1]
+     */
+    static VariantSelector throughputBased(LongSupplier throughputEstimate, double utilization) {
+        checkNotNull(throughputEstimate);
+        Preconditions.checkArgument(utilization > 0 && utilization <= 1, "utilization must be in (0, 1]");
+        return variantStreams -> {
+            long maxBandwidth = (long) (throughputEstimate.getAsLong() * utilization);
+            if (maxBandwidth <= 0) {
+                return lowestBandwidth().select(variantStreams);
+            }
+            return maxBandwidthUnder(maxBandwidth).select(variantStreams);
+        };
+    }
+
+}
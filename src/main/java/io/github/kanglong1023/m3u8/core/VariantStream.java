@@ -0,0 +1,91 @@
+package io.github.kanglong1023.m3u8.core;
+
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * variant stream of master playlist, see EXT-X-STREAM-INF
+ */
+@Getter
+@ToString
+public class VariantStream {
+
+    private final URI uri;
+
+    private final Long bandwidth;
+
+    private final Long averageBandwidth;
+
+    private final Integer width;
+
+    private final Integer height;
+
+    private final String codecs;
+
+    private final Double frameRate;
+
+    @ToString.Exclude
+    private final Map<String, String> attributes;
+
+    public VariantStream(URI uri, Map<String, String> attributes) {
+        this.uri = checkNotNull(uri);
+        this.attributes = null == attributes ? Collections.emptyMap() : Collections.unmodifiableMap(attributes);
+        this.bandwidth = parseLong(this.attributes.get("BANDWIDTH"));
+        this.averageBandwidth = parseLong(this.attributes.get("AVERAGE-BANDWIDTH"));
+        this.codecs = this.attributes.get("CODECS");
+        this.frameRate = parseDouble(this.attributes.get("FRAME-RATE"));
+
+        Integer width = null, height = null;
+        String resolution = this.attributes.get("RESOLUTION");
+        if (StringUtils.isNotBlank(resolution)) {
+            int idx = resolution.indexOf('x');
+            if (idx < 0) {
+                idx = resolution.indexOf('X');
+            }
+            if (idx > 0) {
+                Long w = parseLong(resolution.substring(0, idx));
+                Long h = parseLong(resolution.substring(idx + 1));
+                if (null != w && null != h) {
+                    width = w.intValue();
+                    height = h.intValue();
+                }
+            }
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public boolean hasResolution(int width, int height) {
+        return null != this.width && null != this.height && this.width == width && this.height == height;
+    }
+
+    private static Long parseLong(String str) {
+        if (StringUtils.isBlank(str)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(str.trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static Double parseDouble(String str) {
+        if (StringUtils.isBlank(str)) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(str.trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package io.github.kanglong1023.m3u8.http;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * sub-range of a resource, see EXT-X-BYTERANGE
+ */
+@Getter
+@EqualsAndHashCode
+public final class ByteRange {
+
+    private final long offset;
+
+    private final long length;
+
+    private ByteRange(long offset, long length) {
+        this.offset = checkNonNegative(offset, "offset");
+        this.length = checkPositive(length, "length");
+    }
+
+    public static ByteRange of(long offset, long length) {
+        return new ByteRange(offset, length);
+    }
+
+    /**
+     * inclusive
+     */
+    public long getLastPosition() {
+        return this.offset + this.length - 1;
+    }
+
+    public String toHeaderValue() {
+        return "bytes=" + this.offset + "-" + getLastPosition();
+    }
+
+    @Override
+    public String toString() {
+        return this.length + "@" + this.offset;
+    }
+
+}
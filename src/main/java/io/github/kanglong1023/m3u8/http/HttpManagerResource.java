@@ -1,8 +1,11 @@
 package io.github.kanglong1023.m3u8.http;
 
+import io.github.kanglong1023.m3u8.http.component.AdaptiveConcurrencyLimiter;
 import io.github.kanglong1023.m3u8.http.component.ContextualHttpRoutePlanner;
 import io.github.kanglong1023.m3u8.http.component.CustomHttpRequestRetryStrategy;
+import io.github.kanglong1023.m3u8.http.component.RouteCircuitBreaker;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestManagerConfig;
+import io.github.kanglong1023.m3u8.http.response.sink.SinkWriterGroup;
 import io.github.kanglong1023.m3u8.util.CollUtil;
 import io.github.kanglong1023.m3u8.util.Preconditions;
 import io.github.kanglong1023.m3u8.util.ThreadUtil;
@@ -38,6 +41,7 @@ import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
@@ -48,14 +52,30 @@ final class HttpManagerResource {
 
     public final int bufferSize = 8192 * 4;
 
+    private static final int initialConnPerRoute = 8;
+
+    private static final int circuitFailureThreshold = 5;
+
+    private static final long circuitMaxBackoffMills = TimeUnit.MINUTES.toMillis(1);
+
     private final Object lock = new Object();
 
     private final HttpRequestManagerConfig managerConfig;
 
+    // nullable
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    // nullable
+    private final RouteCircuitBreaker circuitBreaker;
+
     private final List<IOReactorTerminateCallBack> ioReactorTerminateCallBacks;
 
     private volatile ExecutorService executor;
 
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile SinkWriterGroup sinkWriterGroup;
+
     private volatile ByteBufferPool heapBufferPool;
 
     private volatile ByteBufferPool directBufferPool;
@@ -69,6 +89,10 @@ final class HttpManagerResource {
     public HttpManagerResource(HttpRequestManagerConfig managerConfig,
                                List<IOReactorTerminateCallBack> ioReactorTerminateCallBacks) {
         this.managerConfig = checkNotNull(managerConfig);
+        this.concurrencyLimiter = managerConfig.adaptiveConnPerRoute() ? new AdaptiveConcurrencyLimiter(
+                initialConnPerRoute, managerConfig.getMaxConnPerRoute(), 0.75) : null;
+        this.circuitBreaker = managerConfig.routeCircuitBreaker() ? new RouteCircuitBreaker(circuitFailureThreshold,
+                managerConfig.getDefaultRetryIntervalMills(), circuitMaxBackoffMills) : null;
         this.ioReactorTerminateCallBacks = CollUtil.newArrayList(ListUtils.emptyIfNull(ioReactorTerminateCallBacks));
 
         this.ioReactorTerminateCallBacks.add(this::destroyByteBuffLocalPool);
@@ -79,8 +103,13 @@ final class HttpManagerResource {
 
             ofNullable(this.executor).ifPresent(ExecutorService::shutdown);
 
+            ofNullable(this.scheduler).ifPresent(ExecutorService::shutdown);
+
             ofNullable(this.httpAsyncClientScope).ifPresent(s -> Try.run(() -> s.getHttpAsyncClient().close()).get());
 
+            // after the client is closed, sink tasks of the responses streaming till then are written
+            ofNullable(this.sinkWriterGroup).ifPresent(SinkWriterGroup::shutdown);
+
             ofNullable(this.heapBufferPool).ifPresent(ByteBufferPool::destroy);
 
             ofNullable(this.directBufferPool).ifPresent(ByteBufferPool::destroy);
@@ -102,6 +131,9 @@ final class HttpManagerResource {
             ofNullable(this.httpAsyncClientScope).ifPresent(s -> Try.run(() ->
                     s.getHttpAsyncClient().awaitShutdown(millsTimeValue(unit.toMillis(timeout)))).get());
 
+            ofNullable(this.sinkWriterGroup).ifPresent(g -> Try.run(() ->
+                    g.awaitTermination(timeout, unit)).get());
+
         }
     }
 
@@ -152,6 +184,28 @@ final class HttpManagerResource {
         return executor;
     }
 
+    public SinkWriterGroup getSinkWriterGroup() {
+        if (null == sinkWriterGroup) {
+            synchronized (lock) {
+                if (null == sinkWriterGroup) {
+                    sinkWriterGroup = new SinkWriterGroup("httpManager-sink-writer", managerConfig.getSinkWriterThreads());
+                }
+            }
+        }
+        return sinkWriterGroup;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        if (null == scheduler) {
+            synchronized (lock) {
+                if (null == scheduler) {
+                    scheduler = ThreadUtil.newFixedScheduledThreadPool(1, "httpManager-scheduler", true);
+                }
+            }
+        }
+        return scheduler;
+    }
+
     public ByteBufferPool getDirectBufferPool() {
         if (null == directBufferPool) {
             synchronized (lock) {
@@ -180,6 +234,14 @@ final class HttpManagerResource {
         return managerConfig;
     }
 
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public RouteCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     private Timeout millsTimeOut(long mills) {
         return Timeout.ofMilliseconds(mills);
     }
@@ -220,7 +282,8 @@ final class HttpManagerResource {
         Callback<Exception> ioReactorExceptionCallback = ex -> log.error("uncaught exception: " + ex.getMessage(), ex);
 
         CustomHttpRequestRetryStrategy retryStrategy = new CustomHttpRequestRetryStrategy(
-                managerConfig.getDefaultMaxRetries(), millsTimeValue(managerConfig.getDefaultRetryIntervalMills()));
+                managerConfig.getDefaultMaxRetries(), millsTimeValue(managerConfig.getDefaultRetryIntervalMills()),
+                concurrencyLimiter, circuitBreaker);
 
         String userAgent = managerConfig.getUserAgent();
 
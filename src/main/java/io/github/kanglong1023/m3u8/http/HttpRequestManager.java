@@ -1,6 +1,10 @@
 package io.github.kanglong1023.m3u8.http;
 
+import io.github.kanglong1023.m3u8.http.component.AdaptiveConcurrencyLimiter;
+import io.github.kanglong1023.m3u8.http.component.BandwidthLimiter;
 import io.github.kanglong1023.m3u8.http.component.CustomHttpRequestRetryStrategy;
+import io.github.kanglong1023.m3u8.http.component.RouteCircuitBreaker;
+import io.github.kanglong1023.m3u8.http.component.UnexpectedHttpStatusException;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestConfig;
 import io.github.kanglong1023.m3u8.http.config.HttpRequestManagerConfig;
 import io.github.kanglong1023.m3u8.http.pool.ScopedIdentity;
@@ -10,16 +14,22 @@ import io.github.kanglong1023.m3u8.http.response.FileDownloadPostProcessor;
 import io.github.kanglong1023.m3u8.http.response.FileResponseConsumer;
 import io.github.kanglong1023.m3u8.http.response.sink.*;
 import io.github.kanglong1023.m3u8.util.Preconditions;
+import io.github.kanglong1023.m3u8.util.function.Try;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
 import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
 import org.apache.hc.core5.http.Method;
 import org.apache.hc.core5.http.nio.AsyncRequestProducer;
 
@@ -28,12 +38,15 @@ import java.net.Proxy;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 
 import static io.github.kanglong1023.m3u8.util.Utils.genIdentity;
 import static org.apache.commons.lang3.ObjectUtils.allNotNull;
@@ -76,6 +89,36 @@ public class HttpRequestManager {
         }
     }
 
+    public HttpRequestManagerConfig getManagerConfig() {
+        return this.managerResource.getManagerConfig();
+    }
+
+    /**
+     * current limit of requests in flight to the route(scheme, host and port) of uri
+     */
+    public int getRouteConcurrencyLimit(URI uri) {
+        AdaptiveConcurrencyLimiter concurrencyLimiter = this.managerResource.getConcurrencyLimiter();
+        if (null == concurrencyLimiter) {
+            return getManagerConfig().getMaxConnPerRoute();
+        }
+        return concurrencyLimiter.getLimit(uri);
+    }
+
+    public Map<String, Integer> getRouteConcurrencyLimits() {
+        AdaptiveConcurrencyLimiter concurrencyLimiter = this.managerResource.getConcurrencyLimiter();
+        if (null == concurrencyLimiter) {
+            return Collections.emptyMap();
+        }
+        return concurrencyLimiter.getLimits();
+    }
+
+    /**
+     * nullable, circuit breaker of routes
+     */
+    public RouteCircuitBreaker getRouteCircuitBreaker() {
+        return this.managerResource.getCircuitBreaker();
+    }
+
     public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
         this.managerResource.awaitTermination(timeout, unit);
     }
@@ -90,7 +133,7 @@ public class HttpRequestManager {
 
         HttpClientContext clientContext = HttpClientContext.create();
 
-        AsyncRequestProducer requestProducer = SimpleRequestProducer.create(getRequest(uri, requestConfig, clientContext));
+        AsyncRequestProducer requestProducer = SimpleRequestProducer.create(getRequest(uri, null, requestConfig, clientContext));
 
         BytesResponseConsumer responseConsumer = new BytesResponseConsumer(uriIdentity);
 
@@ -146,69 +189,182 @@ public class HttpRequestManager {
                                                 String parentIdentity, FileDownloadOptions options,
                                                 DecryptionKey decryptionKey, HttpRequestConfig requestConfig,
                                                 FileDownloadPostProcessor fileDownloadPostProcessor) {
-        ScopedIdentity parentScope = null;
-        String uriIdentity = genIdentity(uri);
-        if (StringUtils.isNotBlank(parentIdentity)) {
-            parentScope = new ScopedIdentity(parentIdentity);
-        }
+        return downloadFile(uri, null, filePath, parentIdentity, options, decryptionKey, requestConfig, fileDownloadPostProcessor);
+    }
 
-        ScopedIdentity scopedIdentity = new ScopedIdentity(uriIdentity, parentScope);
+    /**
+     * @param byteRange nullable, download the sub-range of uri only, the server must respond 206
+     */
+    public CompletableFuture<Path> downloadFile(URI uri, ByteRange byteRange, Path filePath,
+                                                String parentIdentity, FileDownloadOptions options,
+                                                DecryptionKey decryptionKey, HttpRequestConfig requestConfig,
+                                                FileDownloadPostProcessor fileDownloadPostProcessor) {
+        ScopedIdentity scopedIdentity = scopedIdentity(uri, parentIdentity);
+        options = FileDownloadOptions.defaultOptionsIfNull(options);
         String identity = scopedIdentity.getFullIdentity();
 
-        AsyncSink asyncSink = null;
-        BufferProvider bufferProvider;
         Decipherable decipherable = null;
+        if (null != decryptionKey) {
+            decipherable = new Decipherable(identity, decryptionKey);
+        }
+
+        AsyncSink asyncSink = newAsyncSink(identity, filePath, options);
+        BufferProvider bufferProvider = newBufferProvider(scopedIdentity, options, asyncSink, null != decipherable);
+        UtilitySinkHandler utilitySinkHandler = new UtilitySinkHandler(filePath, bufferProvider, asyncSink, decipherable);
+        return downloadFile(uri, byteRange, filePath, identity, fileDownloadPostProcessor, utilitySinkHandler,
+                options.getBandwidthLimiter(), requestConfig);
+    }
+
+    /**
+     * download into the region [position, position + length) of filePath, the other bytes of it are kept,
+     * e.g. ts written into the preallocated target file directly. the response must be of the length exactly.
+     *
+     * @param byteRange nullable, download the sub-range of uri only, the server must respond 206
+     */
+    public CompletableFuture<Path> downloadFileRegion(URI uri, ByteRange byteRange, Path filePath, long position, long length,
+                                                      String parentIdentity, FileDownloadOptions options,
+                                                      HttpRequestConfig requestConfig,
+                                                      FileDownloadPostProcessor fileDownloadPostProcessor) {
+        Preconditions.checkArgument(length >= 0, "length must not be negative");
+        return downloadFileRegion(uri, byteRange, filePath, position, () -> length, parentIdentity, options,
+                requestConfig, fileDownloadPostProcessor);
+    }
+
+    /**
+     * same as {@link #downloadFileRegion(URI, ByteRange, Path, long, long, String, FileDownloadOptions, HttpRequestConfig,
+     * FileDownloadPostProcessor)}, except the length may be known while downloading, e.g. by the response or others.
+     * the response is written without limit while the length is -1, and must be of the length once it is known.
+     */
+    public CompletableFuture<Path> downloadFileRegion(URI uri, ByteRange byteRange, Path filePath, long position, LongSupplier length,
+                                                      String parentIdentity, FileDownloadOptions options,
+                                                      HttpRequestConfig requestConfig,
+                                                      FileDownloadPostProcessor fileDownloadPostProcessor) {
+        ScopedIdentity scopedIdentity = scopedIdentity(uri, parentIdentity);
         options = FileDownloadOptions.defaultOptionsIfNull(options);
+        String identity = scopedIdentity.getFullIdentity();
 
-        if (options.ifAsyncSink()) {
-            asyncSink = new AsyncSink(identity, r -> getExecutor().execute(r));
-        }
+        AsyncSink asyncSink = newAsyncSink(identity, filePath, options);
+        BufferProvider bufferProvider = newBufferProvider(scopedIdentity, options, asyncSink, false);
+        UtilitySinkHandler utilitySinkHandler = new UtilitySinkHandler(filePath, position, length, bufferProvider, asyncSink);
+        return downloadFile(uri, byteRange, filePath, identity, fileDownloadPostProcessor, utilitySinkHandler,
+                options.getBandwidthLimiter(), requestConfig);
+    }
+
+    /**
+     * download into a region of a shared file allocated by regionAllocator once the length of response is known,
+     * e.g. ts appended into a pack file. the response of unknown length is downloaded into filePath instead.
+     *
+     * @param byteRange nullable, download the sub-range of uri only, the server must respond 206
+     */
+    public CompletableFuture<Path> downloadFile(URI uri, ByteRange byteRange, Path filePath, FileRegionAllocator regionAllocator,
+                                                String parentIdentity, FileDownloadOptions options,
+                                                DecryptionKey decryptionKey, HttpRequestConfig requestConfig,
+                                                FileDownloadPostProcessor fileDownloadPostProcessor) {
+        Preconditions.checkNotNull(regionAllocator);
+        ScopedIdentity scopedIdentity = scopedIdentity(uri, parentIdentity);
+        options = FileDownloadOptions.defaultOptionsIfNull(options);
+        String identity = scopedIdentity.getFullIdentity();
 
+        Decipherable decipherable = null;
         if (null != decryptionKey) {
             decipherable = new Decipherable(identity, decryptionKey);
         }
 
-        if (options.useBufferPool()) {
-            ByteBufferPool byteBufferPool;
-            if (null != decipherable) {
-                byteBufferPool = getHeapBufferPool();
-            } else {
-                byteBufferPool = getDirectBufferPool();
+        AsyncSink asyncSink = newAsyncSink(identity, filePath, options);
+        BufferProvider bufferProvider = newBufferProvider(scopedIdentity, options, asyncSink, null != decipherable);
+        UtilitySinkHandler utilitySinkHandler = new UtilitySinkHandler(filePath, regionAllocator, bufferProvider, asyncSink, decipherable);
+        return downloadFile(uri, byteRange, filePath, identity, fileDownloadPostProcessor, utilitySinkHandler,
+                options.getBandwidthLimiter(), requestConfig);
+    }
+
+    /**
+     * request HEAD of uri
+     *
+     * @return Content-Length of the response, -1 if absent
+     */
+    public CompletableFuture<Long> getContentLength(URI uri, HttpRequestConfig requestConfig) {
+
+        checkState();
+
+        Preconditions.checkNotNull(uri);
+
+        HttpClientContext clientContext = HttpClientContext.create();
+
+        AsyncRequestProducer requestProducer = SimpleRequestProducer.create(getRequest(Method.HEAD, uri, null, requestConfig, clientContext));
+
+        CompletableFuture<Long> future = new CompletableFuture<>();
+
+        FutureCallback<SimpleHttpResponse> futureCallback = new FutureCallback<SimpleHttpResponse>() {
+
+            @Override
+            public void completed(SimpleHttpResponse result) {
+                int code = result.getCode();
+                if (code < HttpStatus.SC_SUCCESS || code >= HttpStatus.SC_REDIRECTION) {
+                    future.completeExceptionally(new UnexpectedHttpStatusException(
+                            String.format("unexpected status of HEAD, code=%s: %s", code, uri)));
+                    return;
+                }
+                Header header = result.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+                long contentLength = -1;
+                if (null != header) {
+                    contentLength = Try.of(() -> Long.parseLong(header.getValue().trim())).getOrElseGet(th -> -1L);
+                }
+                future.complete(contentLength);
             }
 
-            if (null != asyncSink) {
-                bufferProvider = BufferProvider.coteriePoolBuffer(byteBufferPool, scopedIdentity);
-            } else {
-                bufferProvider = BufferProvider.localPoolBuffer(byteBufferPool);
+            @Override
+            public void failed(Exception ex) {
+                future.completeExceptionally(ex);
             }
-        } else {
-            if (null != decipherable) {
-                bufferProvider = BufferProvider.plainHeapBuffer(managerResource.bufferSize);
-            } else {
-                bufferProvider = BufferProvider.plainDirectBuffer(managerResource.bufferSize);
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
             }
-        }
+        };
 
-        UtilitySinkHandler utilitySinkHandler = new UtilitySinkHandler(filePath, bufferProvider, asyncSink, decipherable);
-        return downloadFile(uri, filePath, identity, fileDownloadPostProcessor, utilitySinkHandler, requestConfig);
+        getHttpClient().execute(requestProducer, SimpleResponseConsumer.create(), clientContext, futureCallback);
+
+        return future;
     }
 
     public CompletableFuture<Path> downloadFile(URI uri, Path filePath, String identity,
                                                 FileDownloadPostProcessor postProcessor,
                                                 SinkHandler sinkHandler, HttpRequestConfig requestConfig) {
+        return downloadFile(uri, null, filePath, identity, postProcessor, sinkHandler, requestConfig);
+    }
+
+    public CompletableFuture<Path> downloadFile(URI uri, ByteRange byteRange, Path filePath, String identity,
+                                                FileDownloadPostProcessor postProcessor,
+                                                SinkHandler sinkHandler, HttpRequestConfig requestConfig) {
+        return downloadFile(uri, byteRange, filePath, identity, postProcessor, sinkHandler, null, requestConfig);
+    }
+
+    /**
+     * @param bandwidthLimiter nullable, reading of response is throttled by it
+     */
+    public CompletableFuture<Path> downloadFile(URI uri, ByteRange byteRange, Path filePath, String identity,
+                                                FileDownloadPostProcessor postProcessor, SinkHandler sinkHandler,
+                                                BandwidthLimiter bandwidthLimiter, HttpRequestConfig requestConfig) {
         checkState();
         Preconditions.checkArgument(allNotNull(uri, filePath, identity, sinkHandler));
         FileDownloadPostProcessor fileDownloadPostProcessor = defaultIfNull(postProcessor, FileDownloadPostProcessor.NOP);
 
         HttpClientContext clientContext = HttpClientContext.create();
-        AsyncRequestProducer requestProducer = SimpleRequestProducer.create(getRequest(uri, requestConfig, clientContext));
-        FileResponseConsumer responseConsumer = new FileResponseConsumer(filePath, identity, sinkHandler, fileDownloadPostProcessor);
+        AsyncRequestProducer requestProducer = SimpleRequestProducer.create(getRequest(uri, byteRange, requestConfig, clientContext));
+        FileResponseConsumer responseConsumer = new FileResponseConsumer(filePath, identity, byteRange, sinkHandler,
+                fileDownloadPostProcessor, bandwidthLimiter, null == bandwidthLimiter ? null : managerResource.getScheduler());
 
+        long startNanos = System.nanoTime();
+        AdaptiveConcurrencyLimiter concurrencyLimiter = managerResource.getConcurrencyLimiter();
         CompletableFuture<Path> downloadCompletedFuture = new CompletableFuture<>();
         FutureCallback<Path> futureCallback = new FutureCallback<Path>() {
 
             @Override
             public void completed(Path result) {
+                if (null != concurrencyLimiter) {
+                    concurrencyLimiter.onSuccess(uri, System.nanoTime() - startNanos);
+                }
                 List<CompletableFuture<Void>> actionFutures = responseConsumer.getSinkFutures();
                 actionFutures.removeIf(f -> f.isDone() && !f.isCompletedExceptionally());
                 CompletableFuture<Void> future = CompletableFuture.allOf(actionFutures.toArray(new CompletableFuture[0]));
@@ -227,52 +383,113 @@ public class HttpRequestManager {
                         downloadCompletedFuture.completeExceptionally(th);
                         log.error(th.getMessage(), th);
                     } else {
-                        fileDownloadPostProcessor.afterDownloadComplete();
+                        fileDownloadPostProcessor.afterDownloadComplete(sinkHandler.getWrittenBytes(), sinkHandler.getChecksum());
                         downloadCompletedFuture.complete(result);
                     }
                 });
             }
 
+            // the file is disposed and reported failed once the sink tasks are done, it may be moved or deleted then
             @Override
             public void failed(Exception ex) {
-                try {
-                    responseConsumer.dispose();
-                } catch (Exception e) {
-                    ex.addSuppressed(e);
-                }
                 log.error(ex.getMessage(), ex);
-                fileDownloadPostProcessor.afterDownloadFailed();
-                downloadCompletedFuture.completeExceptionally(ex);
+                responseConsumer.terminate().whenComplete((v, th) -> {
+                    try {
+                        responseConsumer.dispose();
+                    } catch (Exception e) {
+                        ex.addSuppressed(e);
+                    }
+                    fileDownloadPostProcessor.afterDownloadFailed();
+                    downloadCompletedFuture.completeExceptionally(ex);
+                });
             }
 
             @Override
             public void cancelled() {
-                try {
-                    responseConsumer.dispose();
-                } catch (Exception ex) {
-                    log.error(ex.getMessage(), ex);
-                }
-                fileDownloadPostProcessor.afterDownloadFailed();
-                downloadCompletedFuture.cancel(false);
+                responseConsumer.terminate().whenComplete((v, th) -> {
+                    try {
+                        responseConsumer.dispose();
+                    } catch (Exception ex) {
+                        log.error(ex.getMessage(), ex);
+                    }
+                    fileDownloadPostProcessor.afterDownloadFailed();
+                    downloadCompletedFuture.cancel(false);
+                });
             }
         };
 
-        getHttpClient().execute(requestProducer, responseConsumer, clientContext, futureCallback);
+        Future<Path> requestFuture = getHttpClient().execute(requestProducer, responseConsumer, clientContext, futureCallback);
+
+        // cancelling the returned future aborts the request
+        downloadCompletedFuture.whenComplete((r, th) -> {
+            if (th instanceof CancellationException) {
+                requestFuture.cancel(true);
+            }
+        });
 
         return downloadCompletedFuture;
     }
 
+    private ScopedIdentity scopedIdentity(URI uri, String parentIdentity) {
+        ScopedIdentity parentScope = null;
+        if (StringUtils.isNotBlank(parentIdentity)) {
+            parentScope = new ScopedIdentity(parentIdentity);
+        }
+        return new ScopedIdentity(genIdentity(uri), parentScope);
+    }
+
+    /**
+     * nullable, if the options does not sink asynchronously
+     */
+    private AsyncSink newAsyncSink(String identity, Path filePath, FileDownloadOptions options) {
+        if (options.ifAsyncSink()) {
+            return new AsyncSink(identity, this.managerResource.getSinkWriterGroup().executor(filePath));
+        }
+        return null;
+    }
+
+    private BufferProvider newBufferProvider(ScopedIdentity scopedIdentity, FileDownloadOptions options,
+                                             AsyncSink asyncSink, boolean decipherable) {
+        if (options.useBufferPool()) {
+            ByteBufferPool byteBufferPool;
+            if (decipherable) {
+                byteBufferPool = getHeapBufferPool();
+            } else {
+                byteBufferPool = getDirectBufferPool();
+            }
+
+            if (null != asyncSink) {
+                return BufferProvider.coteriePoolBuffer(byteBufferPool, scopedIdentity);
+            }
+            return BufferProvider.localPoolBuffer(byteBufferPool);
+        }
+        if (decipherable) {
+            return BufferProvider.plainHeapBuffer(managerResource.bufferSize);
+        }
+        return BufferProvider.plainDirectBuffer(managerResource.bufferSize);
+    }
+
     private void checkState() {
         if (state.get() == State.SHUTDOWN) {
             throw new IllegalStateException("httpRequestManager already shutdown");
         }
     }
 
-    private SimpleHttpRequest getRequest(URI uri, HttpRequestConfig requestConfig, HttpClientContext context) {
+    private SimpleHttpRequest getRequest(URI uri, ByteRange byteRange,
+                                         HttpRequestConfig requestConfig, HttpClientContext context) {
+        return getRequest(Method.GET, uri, byteRange, requestConfig, context);
+    }
+
+    private SimpleHttpRequest getRequest(Method method, URI uri, ByteRange byteRange,
+                                         HttpRequestConfig requestConfig, HttpClientContext context) {
         Preconditions.checkNotNull(uri);
+        Preconditions.checkNotNull(method);
         Preconditions.checkNotNull(context);
 
-        SimpleHttpRequest request = SimpleHttpRequest.create(Method.GET, uri);
+        SimpleHttpRequest request = SimpleHttpRequest.create(method, uri);
+        if (null != byteRange) {
+            request.setHeader(HttpHeaders.RANGE, byteRange.toHeaderValue());
+        }
         if (null == requestConfig) {
             return request;
         }
@@ -316,10 +533,6 @@ public class HttpRequestManager {
         return this.managerResource.getHeapBufferPool();
     }
 
-    private Executor getExecutor() {
-        return this.managerResource.getExecutor();
-    }
-
     private RequestConfig getDefaultRequestConfig() {
         return this.managerResource.getDefaultRequestConfig();
     }
@@ -0,0 +1,40 @@
+package io.github.kanglong1023.m3u8.http;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.net.URI;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+
+/**
+ * route of uri: scheme, host and port, requests of the same route share connections
+ */
+@Getter
+@EqualsAndHashCode
+public final class RouteKey {
+
+    private final String scheme;
+
+    private final String host;
+
+    // -1 if absent
+    private final int port;
+
+    private RouteKey(String scheme, String host, int port) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+    }
+
+    public static RouteKey of(URI uri) {
+        checkNotNull(uri);
+        return new RouteKey(uri.getScheme(), uri.getHost(), uri.getPort());
+    }
+
+    @Override
+    public String toString() {
+        return this.scheme + "://" + this.host + (this.port < 0 ? "" : ":" + this.port);
+    }
+
+}
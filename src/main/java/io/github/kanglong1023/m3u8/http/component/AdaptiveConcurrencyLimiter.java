@@ -0,0 +1,140 @@
+package io.github.kanglong1023.m3u8.http.component;
+
+import io.github.kanglong1023.m3u8.http.RouteKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkArgument;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * AIMD concurrency limit per route(scheme, host and port).
+ * <p>
+ * the limit grows for each success whose latency stays close to the best one observed: by 1 until the first
+ * overload(slow start), by 1/limit after that. it shrinks multiplicatively on overload signals: 429/503, Retry-After
+ * or timeouts. decreases within the cooldown are merged, a burst of failures of the requests in flight counts once.
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double latencyTolerance = 2.0;
+
+    private static final int baselineResetSamples = 1000;
+
+    private static final long decreaseCooldownNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final int initialLimit;
+
+    private final double backoffRatio;
+
+    private final ConcurrentMap<RouteKey, RouteLimit> routeLimits = new ConcurrentHashMap<>();
+
+    /**
+     * @param backoffRatio the limit is multiplied by it on overload, in (0, 1)
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, double backoffRatio) {
+        checkPositive(maxLimit, "maxLimit");
+        checkPositive(initialLimit, "initialLimit");
+        checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be in (0, 1)");
+        this.minLimit = 1;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.initialLimit = Math.min(initialLimit, maxLimit);
+    }
+
+    public int getLimit(URI uri) {
+        RouteLimit routeLimit = routeLimits.get(RouteKey.of(uri));
+        return null == routeLimit ? initialLimit : routeLimit.getLimit();
+    }
+
+    /**
+     * @param latencyNanos latency of a successful request
+     */
+    public void onSuccess(URI uri, long latencyNanos) {
+        if (latencyNanos <= 0) {
+            return;
+        }
+        getRouteLimit(uri).onSuccess(latencyNanos);
+    }
+
+    public void onOverload(URI uri, String reason) {
+        RouteKey routeKey = RouteKey.of(uri);
+        RouteLimit routeLimit = getRouteLimit(routeKey);
+        int before = routeLimit.getLimit();
+        if (routeLimit.onOverload()) {
+            log.info("route {} overloaded({}), concurrency limit {} -> {}", routeKey, reason, before, routeLimit.getLimit());
+        }
+    }
+
+    /**
+     * current limits of routes, as metrics
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> limits = new TreeMap<>();
+        routeLimits.forEach((k, v) -> limits.put(k.toString(), v.getLimit()));
+        return Collections.unmodifiableMap(limits);
+    }
+
+    private RouteLimit getRouteLimit(URI uri) {
+        return getRouteLimit(RouteKey.of(uri));
+    }
+
+    private RouteLimit getRouteLimit(RouteKey routeKey) {
+        return routeLimits.computeIfAbsent(routeKey, k -> new RouteLimit());
+    }
+
+    private class RouteLimit {
+
+        private double limit = initialLimit;
+
+        private long baselineNanos = Long.MAX_VALUE;
+
+        private int samples;
+
+        private boolean slowStart = true;
+
+        private long lastDecreaseNanos = System.nanoTime() - decreaseCooldownNanos;
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized void onSuccess(long latencyNanos) {
+            // re-baseline periodically, the best latency may not be reachable anymore
+            if (++samples >= baselineResetSamples) {
+                samples = 0;
+                baselineNanos = latencyNanos;
+            }
+            baselineNanos = Math.min(baselineNanos, latencyNanos);
+            if (latencyNanos <= baselineNanos * latencyTolerance) {
+                limit = Math.min(maxLimit, limit + (slowStart ? 1 : 1 / limit));
+            }
+        }
+
+        /**
+         * @return false if merged into the last decrease
+         */
+        synchronized boolean onOverload() {
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos < decreaseCooldownNanos) {
+                return false;
+            }
+            slowStart = false;
+            lastDecreaseNanos = now;
+            limit = Math.max(minLimit, limit * backoffRatio);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package io.github.kanglong1023.m3u8.http.component;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * token bucket of bytes per second, holding at most one second of tokens.
+ * <p>
+ * bytes are consumed after they are read, the bucket may go into debt, and readers wait until it is repaid.
+ * a limiter may have a parent, e.g. per-download limiter under the global one, bytes are consumed from both.
+ */
+public class BandwidthLimiter {
+
+    private static final long nanosPerSecond = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+
+    // nullable
+    private final BandwidthLimiter parent;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    /**
+     * @param parent nullable
+     */
+    public BandwidthLimiter(long bytesPerSecond, BandwidthLimiter parent) {
+        this.parent = parent;
+        this.bytesPerSecond = checkPositive(bytesPerSecond, "bytesPerSecond");
+        this.tokens = bytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void consume(long bytes) {
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+        }
+        if (null != parent) {
+            parent.consume(bytes);
+        }
+    }
+
+    /**
+     * @return nanos until the debt of this and the parent is repaid, 0 if reading is allowed now
+     */
+    public long nanosToWait() {
+        long nanos;
+        synchronized (this) {
+            refill();
+            nanos = tokens >= 0 ? 0 : (long) Math.ceil(-tokens * nanosPerSecond / bytesPerSecond);
+        }
+        if (null != parent) {
+            nanos = Math.max(nanos, parent.nanosToWait());
+        }
+        return nanos;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (double) (now - lastRefillNanos) * bytesPerSecond / nanosPerSecond);
+        lastRefillNanos = now;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthLimiter{" +
+                "bytesPerSecond=" + bytesPerSecond +
+                ", parent=" + parent +
+                '}';
+    }
+}
@@ -4,6 +4,7 @@ import io.github.kanglong1023.m3u8.util.Preconditions;
 import io.github.kanglong1023.m3u8.util.Utils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.ConnectTimeoutException;
 import org.apache.hc.client5.http.HttpRequestRetryStrategy;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.utils.DateUtils;
@@ -15,6 +16,7 @@ import org.apache.hc.core5.util.TimeValue;
 
 import java.io.IOException;
 import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.time.Instant;
@@ -35,25 +37,55 @@ public class CustomHttpRequestRetryStrategy implements HttpRequestRetryStrategy
 
     private final TimeValue defaultRetryInterval;
 
+    // nullable
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    // nullable
+    private final RouteCircuitBreaker circuitBreaker;
+
     private final Set<Class<? extends IOException>> nonRetriableIOExceptionClasses;
 
     protected CustomHttpRequestRetryStrategy(int maxRetries,
                                              TimeValue defaultRetryInterval,
-                                             Collection<Class<? extends IOException>> clazzes, Collection<Integer> codes) {
+                                             Collection<Class<? extends IOException>> clazzes, Collection<Integer> codes,
+                                             AdaptiveConcurrencyLimiter concurrencyLimiter,
+                                             RouteCircuitBreaker circuitBreaker) {
         Args.notNegative(maxRetries, "maxRetries");
         Args.notNegative(defaultRetryInterval.getDuration(), "defaultRetryInterval");
         this.maxRetries = maxRetries;
         this.retriableCodes = new HashSet<>(codes);
+        this.circuitBreaker = circuitBreaker;
+        this.concurrencyLimiter = concurrencyLimiter;
         this.defaultRetryInterval = defaultRetryInterval;
         this.nonRetriableIOExceptionClasses = new HashSet<>(clazzes);
     }
 
     public CustomHttpRequestRetryStrategy(int maxRetries,
                                           TimeValue defaultRetryInterval) {
+        this(maxRetries, defaultRetryInterval, null);
+    }
+
+    /**
+     * @param concurrencyLimiter nullable, overload signals of responses and timeouts are reported to it
+     */
+    public CustomHttpRequestRetryStrategy(int maxRetries,
+                                          TimeValue defaultRetryInterval,
+                                          AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this(maxRetries, defaultRetryInterval, concurrencyLimiter, null);
+    }
+
+    /**
+     * @param circuitBreaker nullable, outcomes are reported to it, and requests are not retried while the circuit
+     *                       of their route is not closed
+     */
+    public CustomHttpRequestRetryStrategy(int maxRetries,
+                                          TimeValue defaultRetryInterval,
+                                          AdaptiveConcurrencyLimiter concurrencyLimiter,
+                                          RouteCircuitBreaker circuitBreaker) {
         this(maxRetries, defaultRetryInterval,
                 Arrays.asList(ExplicitlyTerminateIOException.class, UnknownHostException.class, NoRouteToHostException.class),
                 Arrays.asList(HttpStatus.SC_REQUEST_TIMEOUT, HttpStatus.SC_TOO_MANY_REQUESTS,
-                        HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_GATEWAY_TIMEOUT));
+                        HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_GATEWAY_TIMEOUT), concurrencyLimiter, circuitBreaker);
     }
 
     public CustomHttpRequestRetryStrategy() {
@@ -72,6 +104,20 @@ public class CustomHttpRequestRetryStrategy implements HttpRequestRetryStrategy
             identity = "request";
         }
 
+        // a cancelled exchange is interrupted too, only timeouts are overload signals
+        if (exception instanceof SocketTimeoutException || exception instanceof ConnectTimeoutException) {
+            reportOverload(request, exception.getClass().getSimpleName());
+        }
+
+        boolean cancelled = request instanceof CancellableDependency && ((CancellableDependency) request).isCancelled();
+        if (!cancelled && !(exception instanceof ExplicitlyTerminateIOException)) {
+            reportFailure(request, exception.getClass().getSimpleName());
+        }
+        if (!isCircuitClosed(request)) {
+            log.info("{} circuit of route is not closed, no retry", identity);
+            return false;
+        }
+
         int finalMaxRetries = getMaxRetries(context);
 
         if (execCount > finalMaxRetries) {
@@ -108,15 +154,36 @@ public class CustomHttpRequestRetryStrategy implements HttpRequestRetryStrategy
         Args.notNull(response, "response");
 
         String identity = null;
+        HttpRequest request = null;
         if (null != context) {
             HttpClientContext clientContext = HttpClientContext.adapt(context);
-            HttpRequest request = clientContext.getRequest();
+            request = clientContext.getRequest();
             identity = genIdentity(request);
             if (StringUtils.isBlank(identity)) {
                 identity = "response";
             }
         }
 
+        int code = response.getCode();
+        if (code == HttpStatus.SC_TOO_MANY_REQUESTS || code == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            reportOverload(request, "statusCode=" + code);
+        } else if (null != response.getFirstHeader(HttpHeaders.RETRY_AFTER)) {
+            reportOverload(request, "retryAfter");
+        }
+
+        if (code >= HttpStatus.SC_SERVER_ERROR) {
+            reportFailure(request, "statusCode=" + code);
+            if (!isCircuitClosed(request)) {
+                log.info("{} circuit of route is not closed, no retry", identity);
+                return false;
+            }
+        } else if (code != HttpStatus.SC_TOO_MANY_REQUESTS && null != circuitBreaker && null != request) {
+            try {
+                circuitBreaker.onSuccess(request.getUri());
+            } catch (Exception ignored) {
+            }
+        }
+
         int finalMaxRetries = getMaxRetries(context);
 
         if (execCount > finalMaxRetries) {
@@ -173,6 +240,37 @@ public class CustomHttpRequestRetryStrategy implements HttpRequestRetryStrategy
         return this.defaultRetryInterval;
     }
 
+    private void reportOverload(HttpRequest request, String reason) {
+        if (null == concurrencyLimiter || null == request) {
+            return;
+        }
+        try {
+            concurrencyLimiter.onOverload(request.getUri(), reason);
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void reportFailure(HttpRequest request, String reason) {
+        if (null == circuitBreaker || null == request) {
+            return;
+        }
+        try {
+            circuitBreaker.onFailure(request.getUri(), reason);
+        } catch (Exception ignored) {
+        }
+    }
+
+    private boolean isCircuitClosed(HttpRequest request) {
+        if (null == circuitBreaker || null == request) {
+            return true;
+        }
+        try {
+            return circuitBreaker.isClosed(request.getUri());
+        } catch (Exception ignored) {
+        }
+        return true;
+    }
+
     private String genIdentity(HttpRequest request) {
         if (null == request) {
             return null;
@@ -0,0 +1,188 @@
+package io.github.kanglong1023.m3u8.http.component;
+
+import io.github.kanglong1023.m3u8.http.RouteKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * circuit breaker per route(scheme, host and port).
+ * <p>
+ * closed: requests are allowed, consecutive failures open it. open: requests are rejected for the backoff,
+ * which doubles for each consecutive opening with jitter. half-open: a single probe is allowed, its success
+ * closes the breaker and its failure opens it again.
+ */
+@Slf4j
+public class RouteCircuitBreaker {
+
+    private static final long probeTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+    private final int failureThreshold;
+
+    private final long baseBackoffNanos;
+
+    private final long maxBackoffNanos;
+
+    private final ConcurrentMap<RouteKey, Circuit> circuits = new ConcurrentHashMap<>();
+
+    public RouteCircuitBreaker(int failureThreshold, long baseBackoffMills, long maxBackoffMills) {
+        this.failureThreshold = checkPositive(failureThreshold, "failureThreshold");
+        this.baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(checkPositive(baseBackoffMills, "baseBackoffMills"));
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(baseBackoffMills, maxBackoffMills));
+    }
+
+    /**
+     * @return true if a request could be issued, in half-open state it is the probe
+     */
+    public boolean tryAcquire(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        return null == circuit || circuit.tryAcquire();
+    }
+
+    public boolean isClosed(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        return null == circuit || circuit.isClosed();
+    }
+
+    /**
+     * @return true if closed and the last request succeeded
+     */
+    public boolean isHealthy(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        return null == circuit || circuit.isHealthy();
+    }
+
+    /**
+     * @return times the circuit has been opened
+     */
+    public long getTrips(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        return null == circuit ? 0 : circuit.getTrips();
+    }
+
+    /**
+     * @return nanos until a probe could be issued, 0 if closed
+     */
+    public long nanosToProbe(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        return null == circuit ? 0 : circuit.nanosToProbe();
+    }
+
+    public void onSuccess(URI uri) {
+        Circuit circuit = circuits.get(RouteKey.of(uri));
+        if (null != circuit && circuit.onSuccess()) {
+            log.info("route {} circuit closed", RouteKey.of(uri));
+        }
+    }
+
+    public void onFailure(URI uri, String reason) {
+        RouteKey routeKey = RouteKey.of(uri);
+        long backoffNanos = circuits.computeIfAbsent(routeKey, k -> new Circuit()).onFailure();
+        if (backoffNanos > 0) {
+            log.warn("route {} circuit opened({}) for {}ms", routeKey, reason, TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+        }
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN,
+    }
+
+    private class Circuit {
+
+        private State state = State.CLOSED;
+
+        private int failures;
+
+        private int openings;
+
+        private long trips;
+
+        private long openUntilNanos;
+
+        private long probeNanos;
+
+        synchronized boolean isClosed() {
+            return state == State.CLOSED;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - openUntilNanos < 0) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeNanos = now;
+                    return true;
+                default:
+                    // the probe is lost if it is not reported in time
+                    if (now - probeNanos < probeTimeoutNanos) {
+                        return false;
+                    }
+                    probeNanos = now;
+                    return true;
+            }
+        }
+
+        synchronized boolean isHealthy() {
+            return state == State.CLOSED && failures == 0;
+        }
+
+        synchronized long getTrips() {
+            return trips;
+        }
+
+        synchronized long nanosToProbe() {
+            long now = System.nanoTime();
+            switch (state) {
+                case CLOSED:
+                    return 0;
+                case OPEN:
+                    return Math.max(0, openUntilNanos - now);
+                default:
+                    return Math.max(0, probeNanos + probeTimeoutNanos - now);
+            }
+        }
+
+        /**
+         * @return true if it is closed by this success
+         */
+        synchronized boolean onSuccess() {
+            failures = 0;
+            if (state == State.CLOSED) {
+                return false;
+            }
+            state = State.CLOSED;
+            openings = 0;
+            return true;
+        }
+
+        /**
+         * @return backoff if it is opened by this failure, otherwise 0
+         */
+        synchronized long onFailure() {
+            if (state == State.OPEN || (state == State.CLOSED && ++failures < failureThreshold)) {
+                return 0;
+            }
+            long backoffNanos = Math.min(maxBackoffNanos, baseBackoffNanos << Math.min(openings, 30));
+            // equal jitter, the probes of routes and executors are spread
+            backoffNanos = backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+            trips++;
+            openings++;
+            failures = 0;
+            state = State.OPEN;
+            openUntilNanos = System.nanoTime() + backoffNanos;
+            return backoffNanos;
+        }
+    }
+
+}
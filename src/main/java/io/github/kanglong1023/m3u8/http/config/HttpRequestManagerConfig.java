@@ -20,6 +20,8 @@ public final class HttpRequestManagerConfig {
 
     private final int executorThreads;
 
+    private final int sinkWriterThreads;
+
     private final int defaultMaxRetries;
 
     private final long selectIntervalMills;
@@ -32,6 +34,10 @@ public final class HttpRequestManagerConfig {
 
     private final boolean overrideSystemProxy;
 
+    private final boolean adaptiveConnPerRoute;
+
+    private final boolean routeCircuitBreaker;
+
     private final PoolConfig objectPoolConfig;
 
     private final long defaultRetryIntervalMills;
@@ -40,22 +46,26 @@ public final class HttpRequestManagerConfig {
 
     private HttpRequestManagerConfig(String userAgent, int ioThreads,
                                      int maxConnTotal, int maxConnPerRoute,
-                                     int executorThreads, int defaultMaxRetries,
+                                     int executorThreads, int sinkWriterThreads, int defaultMaxRetries,
                                      long selectIntervalMills, long socketTimeoutMills,
                                      long connectTimeoutMills, long connectionMaxIdleMills,
-                                     boolean overrideSystemProxy, PoolConfig objectPoolConfig,
+                                     boolean overrideSystemProxy, boolean adaptiveConnPerRoute,
+                                     boolean routeCircuitBreaker, PoolConfig objectPoolConfig,
                                      long defaultRetryIntervalMills, long connectionRequestTimeoutMills) {
         this.userAgent = userAgent;
         this.ioThreads = ioThreads;
         this.maxConnTotal = maxConnTotal;
         this.maxConnPerRoute = maxConnPerRoute;
         this.executorThreads = executorThreads;
+        this.sinkWriterThreads = sinkWriterThreads;
         this.objectPoolConfig = objectPoolConfig;
         this.defaultMaxRetries = defaultMaxRetries;
         this.socketTimeoutMills = socketTimeoutMills;
         this.selectIntervalMills = selectIntervalMills;
         this.connectTimeoutMills = connectTimeoutMills;
         this.overrideSystemProxy = overrideSystemProxy;
+        this.adaptiveConnPerRoute = adaptiveConnPerRoute;
+        this.routeCircuitBreaker = routeCircuitBreaker;
         this.connectionMaxIdleMills = connectionMaxIdleMills;
         this.defaultRetryIntervalMills = defaultRetryIntervalMills;
         this.connectionRequestTimeoutMills = connectionRequestTimeoutMills;
@@ -81,6 +91,13 @@ public final class HttpRequestManagerConfig {
         return executorThreads;
     }
 
+    /**
+     * dedicated threads writing files, files are sharded among them
+     */
+    public int getSinkWriterThreads() {
+        return sinkWriterThreads;
+    }
+
     public int getDefaultMaxRetries() {
         return defaultMaxRetries;
     }
@@ -113,6 +130,20 @@ public final class HttpRequestManagerConfig {
         return overrideSystemProxy;
     }
 
+    /**
+     * ts requests in flight per route are adapted by AIMD within maxConnPerRoute
+     */
+    public boolean adaptiveConnPerRoute() {
+        return adaptiveConnPerRoute;
+    }
+
+    /**
+     * requests to a failing route are held by a circuit breaker instead of being retried
+     */
+    public boolean routeCircuitBreaker() {
+        return routeCircuitBreaker;
+    }
+
     public PoolConfig getObjectPoolConfig() {
         return objectPoolConfig;
     }
@@ -125,12 +156,15 @@ public final class HttpRequestManagerConfig {
                 ", maxConnTotal=" + maxConnTotal +
                 ", maxConnPerRoute=" + maxConnPerRoute +
                 ", executorThreads=" + executorThreads +
+                ", sinkWriterThreads=" + sinkWriterThreads +
                 ", defaultMaxRetries=" + defaultMaxRetries +
                 ", selectIntervalMills=" + selectIntervalMills +
                 ", socketTimeoutMills=" + socketTimeoutMills +
                 ", connectTimeoutMills=" + connectTimeoutMills +
                 ", connectionMaxIdleMills=" + connectionMaxIdleMills +
                 ", overrideSystemProxy=" + overrideSystemProxy +
+                ", adaptiveConnPerRoute=" + adaptiveConnPerRoute +
+                ", routeCircuitBreaker=" + routeCircuitBreaker +
                 ", objectPoolConfig=" + objectPoolConfig +
                 ", defaultRetryIntervalMills=" + defaultRetryIntervalMills +
                 ", connectionRequestTimeoutMills=" + connectionRequestTimeoutMills +
@@ -153,6 +187,8 @@ public final class HttpRequestManagerConfig {
 
         private int executorThreads;
 
+        private int sinkWriterThreads;
+
         private int defaultMaxRetries;
 
         private long selectIntervalMills;
@@ -165,6 +201,10 @@ public final class HttpRequestManagerConfig {
 
         private boolean overrideSystemProxy;
 
+        private boolean adaptiveConnPerRoute;
+
+        private boolean routeCircuitBreaker;
+
         private PoolConfig objectPoolConfig;
 
         private long defaultRetryIntervalMills;
@@ -181,9 +221,12 @@ public final class HttpRequestManagerConfig {
             this.maxConnTotal = 1000;
             this.maxConnPerRoute = 50;
             this.executorThreads = 50;
+            this.sinkWriterThreads = Math.min(4, availableProcessors());
             this.defaultMaxRetries = 5;
             this.selectIntervalMills = 50;
             this.overrideSystemProxy = false;
+            this.adaptiveConnPerRoute = true;
+            this.routeCircuitBreaker = true;
             this.ioThreads = availableProcessors() * 2;
             this.userAgent = Utils.getDefaultUserAgent();
             this.socketTimeoutMills = TimeUnit.SECONDS.toMillis(5);
@@ -223,6 +266,12 @@ public final class HttpRequestManagerConfig {
             return this;
         }
 
+        public Builder sinkWriterThreads(final int sinkWriterThreads) {
+            Preconditions.checkPositive(sinkWriterThreads, "sinkWriterThreads");
+            this.sinkWriterThreads = sinkWriterThreads;
+            return this;
+        }
+
         public Builder defaultMaxRetries(final int defaultMaxRetries) {
             Preconditions.checkPositive(defaultMaxRetries, "defaultMaxRetries");
             this.defaultMaxRetries = defaultMaxRetries;
@@ -275,6 +324,16 @@ public final class HttpRequestManagerConfig {
             return this;
         }
 
+        public Builder adaptiveConnPerRoute(final boolean adaptiveConnPerRoute) {
+            this.adaptiveConnPerRoute = adaptiveConnPerRoute;
+            return this;
+        }
+
+        public Builder routeCircuitBreaker(final boolean routeCircuitBreaker) {
+            this.routeCircuitBreaker = routeCircuitBreaker;
+            return this;
+        }
+
         public Builder objectPoolConfig(final PoolConfig objectPoolConfig) {
             Preconditions.checkNotNull(objectPoolConfig, "objectPoolConfig");
             this.objectPoolConfig = objectPoolConfig;
@@ -305,12 +364,15 @@ public final class HttpRequestManagerConfig {
                     this.maxConnTotal,
                     this.maxConnPerRoute,
                     this.executorThreads,
+                    this.sinkWriterThreads,
                     this.defaultMaxRetries,
                     this.selectIntervalMills,
                     this.socketTimeoutMills,
                     this.connectTimeoutMills,
                     this.connectionMaxIdleMills,
                     this.overrideSystemProxy,
+                    this.adaptiveConnPerRoute,
+                    this.routeCircuitBreaker,
                     objectPoolConfig,
                     this.defaultRetryIntervalMills,
                     this.connectionRequestTimeoutMills);
@@ -1,14 +1,27 @@
 package io.github.kanglong1023.m3u8.http.response;
 
+import io.github.kanglong1023.m3u8.http.component.BandwidthLimiter;
+
 public class FileDownloadOptions {
 
     private final boolean ifAsyncSink;
 
     private final boolean useBufferPool;
 
+    // nullable
+    private final BandwidthLimiter bandwidthLimiter;
+
     public FileDownloadOptions(boolean ifAsyncSink, boolean useBufferPool) {
+        this(ifAsyncSink, useBufferPool, null);
+    }
+
+    /**
+     * @param bandwidthLimiter nullable, reading of response is throttled by it
+     */
+    public FileDownloadOptions(boolean ifAsyncSink, boolean useBufferPool, BandwidthLimiter bandwidthLimiter) {
         this.ifAsyncSink = ifAsyncSink;
         this.useBufferPool = useBufferPool;
+        this.bandwidthLimiter = bandwidthLimiter;
     }
 
     public boolean ifAsyncSink() {
@@ -19,11 +32,20 @@ public class FileDownloadOptions {
         return useBufferPool;
     }
 
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public FileDownloadOptions withBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        return new FileDownloadOptions(ifAsyncSink, useBufferPool, bandwidthLimiter);
+    }
+
     @Override
     public String toString() {
         return "FileDownloadOptions{" +
                 "ifAsyncSink=" + ifAsyncSink +
                 ", useBufferPool=" + useBufferPool +
+                ", bandwidthLimiter=" + bandwidthLimiter +
                 '}';
     }
 
@@ -14,6 +14,14 @@ public interface FileDownloadPostProcessor {
     default void afterDownloadComplete() {
     }
 
+    /**
+     * @param fileSize -1 if unknown
+     * @param checksum crc32 of the file, -1 if unknown
+     */
+    default void afterDownloadComplete(long fileSize, long checksum) {
+        afterDownloadComplete();
+    }
+
     default void afterDownloadFailed() {
     }
 
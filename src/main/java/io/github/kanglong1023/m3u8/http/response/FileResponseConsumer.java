@@ -1,5 +1,8 @@
 package io.github.kanglong1023.m3u8.http.response;
 
+import io.github.kanglong1023.m3u8.http.ByteRange;
+import io.github.kanglong1023.m3u8.http.component.BandwidthLimiter;
+import io.github.kanglong1023.m3u8.http.component.ExplicitlyTerminateIOException;
 import io.github.kanglong1023.m3u8.http.component.UnexpectedHttpStatusException;
 import io.github.kanglong1023.m3u8.http.response.sink.SinkHandler;
 import io.github.kanglong1023.m3u8.util.CollUtil;
@@ -14,24 +17,37 @@ import org.apache.hc.core5.http.protocol.HttpContext;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 import static io.github.kanglong1023.m3u8.util.Utils.EMPTY_BIN;
 import static java.lang.String.format;
+import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 import static org.apache.commons.lang3.StringUtils.defaultIfBlank;
 import static org.apache.hc.core5.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.hc.core5.http.HttpHeaders.CONTENT_RANGE;
 
 @Slf4j
 public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
 
+    /**
+     * capacity granted each time while throttled, the transport stops reading when it is used up
+     */
+    private static final int throttledCapacity = 32 * 1024;
+
     private final Path filePath;
 
     private final String identity;
 
+    private final ByteRange byteRange;
+
     private final SinkHandler sinkHandler;
 
     private final AtomicLong readBytes = new AtomicLong(0);
@@ -42,23 +58,56 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
 
     private final CompletableFuture<Void> selfCompleteFuture = new CompletableFuture<>();
 
+    // nullable
+    private final BandwidthLimiter bandwidthLimiter;
+
+    // nullable if bandwidthLimiter is null
+    private final ScheduledExecutorService throttleScheduler;
+
 
     // ------- non-final  ------//
     private Long contentLength;
 
     private FutureCallback<Path> futureCallback;
 
+    // guarded by this, the file must not be reopened once disposed, e.g. the request is cancelled
+    private boolean disposed;
+
+    // guarded by this, nothing is sunk once terminated
+    private boolean terminated;
+
     private List<CompletableFuture<Void>> sinkFutures;
 
     public FileResponseConsumer(Path filePath, String identity,
                                 SinkHandler sinkHandler, FileDownloadPostProcessor fileDownloadPostProcessor) {
+        this(filePath, identity, null, sinkHandler, fileDownloadPostProcessor);
+    }
+
+    /**
+     * @param byteRange nullable, the requested range, the response must be 206 with the same range
+     */
+    public FileResponseConsumer(Path filePath, String identity, ByteRange byteRange,
+                                SinkHandler sinkHandler, FileDownloadPostProcessor fileDownloadPostProcessor) {
+        this(filePath, identity, byteRange, sinkHandler, fileDownloadPostProcessor, null, null);
+    }
+
+    /**
+     * @param bandwidthLimiter  nullable, capacity of the transport is granted only if the limiter allows
+     * @param throttleScheduler grants capacity later while throttled, required if bandwidthLimiter is present
+     */
+    public FileResponseConsumer(Path filePath, String identity, ByteRange byteRange,
+                                SinkHandler sinkHandler, FileDownloadPostProcessor fileDownloadPostProcessor,
+                                BandwidthLimiter bandwidthLimiter, ScheduledExecutorService throttleScheduler) {
         identity = defaultIfBlank(identity, format("download %s", filePath.getFileName()));
 
         this.identity = identity;
+        this.byteRange = byteRange;
         this.filePath = checkNotNull(filePath);
         this.sinkHandler = checkNotNull(sinkHandler);
-        this.sinkFutures = CollUtil.newArrayList(selfCompleteFuture);
+        this.sinkFutures = newSinkFutures();
         this.fileDownloadPostProcessor = checkNotNull(fileDownloadPostProcessor);
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.throttleScheduler = null == bandwidthLimiter ? null : checkNotNull(throttleScheduler);
     }
 
     @Override
@@ -76,6 +125,9 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
         if (code >= HttpStatus.SC_CLIENT_ERROR) {
             UnexpectedHttpStatusException.throwException(format("UnexpectedHttpStatus: %s code=%s", identity, code));
         }
+        if (null != byteRange) {
+            checkContentRange(response, code);
+        }
 
         Header contentLenHeader = response.getFirstHeader(CONTENT_LENGTH);
         if (null != contentLenHeader) {
@@ -85,23 +137,49 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
             }
         }
 
-        if (started.get()) {
-            log.warn("consumeResponse retry: identity={}, readBytes={}", identity, readBytes.get());
+        boolean reStart = started.get();
+        synchronized (this) {
+            if (disposed) {
+                throw new ExplicitlyTerminateIOException(format("%s is disposed", identity));
+            }
+            if (reStart) {
+                log.warn("consumeResponse retry: identity={}, readBytes={}", identity, readBytes.get());
 
-            this.sinkFutures = CollUtil.newArrayList(selfCompleteFuture);
-            sinkHandler.init(this.sinkFutures, true);
+                this.sinkFutures = newSinkFutures();
+                sinkHandler.init(this.sinkFutures, true, defaultIfNull(contentLength, -1L));
+            } else {
+                sinkHandler.init(this.sinkFutures, false, defaultIfNull(contentLength, -1L));
+            }
+        }
 
+        if (reStart) {
             readBytes.set(0);
             fileDownloadPostProcessor.startDownload(contentLength, true);
         } else {
-
-            sinkHandler.init(this.sinkFutures, false);
-
             started.set(true);
             fileDownloadPostProcessor.startDownload(contentLength, false);
         }
     }
 
+    private void checkContentRange(HttpResponse response, int code) throws ExplicitlyTerminateIOException {
+        // the whole resource would be responded with 200 if range is not supported
+        if (code != HttpStatus.SC_PARTIAL_CONTENT) {
+            UnexpectedHttpStatusException.throwException(format("UnexpectedHttpStatus: %s code=%s, range=%s is requested",
+                    identity, code, byteRange.toHeaderValue()));
+        }
+        // bytes <first>-<last>/<complete-length>
+        Header contentRangeHeader = response.getFirstHeader(CONTENT_RANGE);
+        if (null == contentRangeHeader) {
+            return;
+        }
+        String value = StringUtils.trimToEmpty(contentRangeHeader.getValue());
+        String expected = byteRange.getOffset() + "-" + byteRange.getLastPosition();
+        if (!StringUtils.startsWith(StringUtils.removeStart(value, "bytes").trim(), expected + "/")) {
+            UnexpectedHttpStatusException.throwException(format("UnexpectedContentRange: %s Content-Range=%s, range=%s is requested",
+                    identity, value, byteRange.toHeaderValue()));
+        }
+    }
+
     @Override
     public void informationResponse(HttpResponse response, HttpContext context) throws HttpException, IOException {
         log.info("{} get informationResponse: {}", identity, response.getCode());
@@ -114,7 +192,52 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
 
     @Override
     public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
-        capacityChannel.update(Integer.MAX_VALUE);
+        if (null == bandwidthLimiter) {
+            grantSinkCapacity(capacityChannel, Integer.MAX_VALUE);
+            return;
+        }
+        grantCapacity(capacityChannel);
+    }
+
+    /**
+     * grant free capacity of the sink at most maxIncrement, otherwise the transport stays suspended until
+     * the sink drains, so the buffers pending in the sink are bounded while the disk stalls
+     */
+    private void grantSinkCapacity(CapacityChannel capacityChannel, int maxIncrement) throws IOException {
+        long freeCapacity = sinkHandler.freeCapacity();
+        if (freeCapacity > 0) {
+            capacityChannel.update((int) Math.min(freeCapacity, maxIncrement));
+            return;
+        }
+        sinkHandler.onCapacityFreed(() -> {
+            try {
+                grantSinkCapacity(capacityChannel, maxIncrement);
+            } catch (Exception ex) {
+                log.warn("{} update capacity error: {}", identity, ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * grant capacity if the limiter allows, otherwise the transport stays suspended until the debt is repaid
+     */
+    private void grantCapacity(CapacityChannel capacityChannel) throws IOException {
+        long waitNanos = bandwidthLimiter.nanosToWait();
+        if (waitNanos <= 0) {
+            grantSinkCapacity(capacityChannel, throttledCapacity);
+            return;
+        }
+        try {
+            throttleScheduler.schedule(() -> {
+                try {
+                    grantCapacity(capacityChannel);
+                } catch (Exception ex) {
+                    log.warn("{} update capacity error: {}", identity, ex.getMessage());
+                }
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            grantSinkCapacity(capacityChannel, Integer.MAX_VALUE);
+        }
     }
 
     @Override
@@ -125,8 +248,11 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
         }
 
         this.sinkFutures.removeIf(f -> f.isDone() && !f.isCompletedExceptionally());
-        this.sinkHandler.doSink(src, false);
+        sink(src, false);
         this.readBytes.getAndAdd(size);
+        if (null != bandwidthLimiter) {
+            bandwidthLimiter.consume(size);
+        }
         this.fileDownloadPostProcessor.afterReadBytes(size, false);
     }
 
@@ -137,7 +263,7 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
             log.warn("writtenBytes({}) != contentLength({}): {} ", bytes, contentLength, identity);
         }
 
-        this.sinkHandler.doSink(EMPTY_BIN, true);
+        sink(EMPTY_BIN, true);
 
         this.fileDownloadPostProcessor.afterReadBytes(0, true);
         this.selfCompleteFuture.complete(null);
@@ -148,11 +274,40 @@ public class FileResponseConsumer implements AsyncResponseConsumer<Path> {
     public void releaseResources() {
     }
 
-    public void dispose() throws IOException {
+    private synchronized void sink(ByteBuffer src, boolean endData) throws IOException {
+        if (terminated) {
+            throw new ExplicitlyTerminateIOException(format("%s is terminated", identity));
+        }
+        this.sinkHandler.doSink(src, endData);
+    }
+
+    /**
+     * stop sinking, e.g. the request is failed or cancelled, the sink tasks submitted may be still writing
+     *
+     * @return completed once the sink tasks submitted are done, the file is not written by them after that
+     */
+    public synchronized CompletableFuture<Void> terminate() {
+        this.terminated = true;
+        List<CompletableFuture<?>> futures = CollUtil.newArrayList();
+        for (Object future : this.sinkFutures.toArray()) {
+            if (future != selfCompleteFuture) {
+                futures.add((CompletableFuture<?>) future);
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, th) -> null);
+    }
+
+    public synchronized void dispose() throws IOException {
+        this.disposed = true;
         this.sinkHandler.dispose();
     }
 
     public List<CompletableFuture<Void>> getSinkFutures() {
         return this.sinkFutures;
     }
+
+    // added by the sink tasks, read by terminate from another thread
+    private List<CompletableFuture<Void>> newSinkFutures() {
+        return Collections.synchronizedList(CollUtil.newArrayList(selfCompleteFuture));
+    }
 }
@@ -9,6 +9,8 @@ import org.apache.commons.collections4.CollectionUtils;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -16,33 +18,93 @@ import static io.github.kanglong1023.m3u8.http.response.sink.AsyncSink.State.*;
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 import static java.lang.String.format;
 
+/**
+ * writes submitted tasks in order on the executor.
+ * <p>
+ * bytes of the pending tasks are counted against maxPendingBytes as credits, the producer is expected to stop
+ * reading once they are used up, and is called back as half of them are freed by writing.
+ */
 @Slf4j
 public class AsyncSink implements SinkLifeCycle {
 
+    public static final long defaultMaxPendingBytes = 1024 * 1024;
+
     private final String identity;
 
+    private final long maxPendingBytes;
+
     private final Consumer<Runnable> executor;
 
     private final SinkEventRunner sinkEventRunner;
 
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    // nullable, called back once as credits are freed
+    private final AtomicReference<Runnable> drainCallback = new AtomicReference<>();
+
     private final List<Throwable> asyncExceptions = CollUtil.newCopyOnWriteArrayList();
 
     public AsyncSink(String identity, Consumer<Runnable> executor) {
+        this(identity, executor, defaultMaxPendingBytes);
+    }
+
+    public AsyncSink(String identity, Consumer<Runnable> executor, long maxPendingBytes) {
         this.identity = checkNotNull(identity);
         this.executor = checkNotNull(executor);
+        this.maxPendingBytes = Preconditions.checkPositive(maxPendingBytes, "maxPendingBytes");
         this.sinkEventRunner = new SinkEventRunner();
     }
 
     @Override
     public void init(boolean reInit) throws IOException {
         if (reInit) {
+            this.drainCallback.set(null);
             this.sinkEventRunner.clearEvent();
             this.asyncExceptions.clear();
         }
     }
 
+    /**
+     * @return bytes could be submitted before the credits are used up, non-positive if used up
+     */
+    public long freeCredits() {
+        return this.maxPendingBytes - this.pendingBytes.get();
+    }
+
+    /**
+     * callback is called once, by the writer or at once, as at least half of credits are free.
+     * the former one is replaced if it is not called yet.
+     */
+    public void onCreditsFreed(Runnable callback) {
+        this.drainCallback.set(checkNotNull(callback));
+        // the writer may have drained before callback is set
+        tryCallback();
+    }
+
+    private void releaseCredits(long bytes) {
+        if (bytes > 0) {
+            this.pendingBytes.addAndGet(-bytes);
+            tryCallback();
+        }
+    }
+
+    private void tryCallback() {
+        if (freeCredits() < (this.maxPendingBytes >> 1) || null == this.drainCallback.get()) {
+            return;
+        }
+        Runnable callback = this.drainCallback.getAndSet(null);
+        if (null != callback) {
+            try {
+                callback.run();
+            } catch (Throwable th) {
+                log.error(format("drain callback error: %s", identity), th);
+            }
+        }
+    }
+
     public void submitAsyncSinkTask(SinkTask sinkTask) throws IOException {
         checkAsyncIOException();
+        this.pendingBytes.addAndGet(sinkTask.size());
         int size = this.sinkEventRunner.submitSinkTask(sinkTask);
         if (size >= 100) {
             // maybe there's something wrong, log for clues
@@ -77,14 +139,42 @@ public class AsyncSink implements SinkLifeCycle {
 
         CompletableFuture<Void> completableFuture();
 
+        /**
+         * bytes of the task counted against credits
+         */
+        default int size() {
+            return 0;
+        }
+
+        /**
+         * nullable, adjacent tasks of the same batchSinker are sunk together by it instead of {@link #doSink()}
+         */
+        default BatchSinker batchSinker() {
+            return null;
+        }
+
+    }
+
+    public interface BatchSinker {
+
+        /**
+         * sink the tasks in order of submission, e.g. by a single gathering write
+         */
+        void doSink(List<SinkTask> sinkTasks) throws IOException;
+
     }
 
     private class SinkEventRunner implements Runnable {
 
+        private static final int maxBatchSize = 64;
+
         private final AtomicReference<State> status;
 
         private final SpscUnboundedArrayQueue<SinkTask> sinkTaskQueue;
 
+        // accessed by the running one only
+        private final List<SinkTask> batch = CollUtil.newArrayListWithCapacity(maxBatchSize);
+
         public SinkEventRunner() {
             this.status = new AtomicReference<>(IDLE);
             this.sinkTaskQueue = new SpscUnboundedArrayQueue<>(1 << 4);
@@ -103,32 +193,96 @@ public class AsyncSink implements SinkLifeCycle {
             } finally {
                 this.status.set(IDLE);
             }
+            // a task submitted after the last poll failed to ready the runner while it was running, the producer
+            // may wait for its credits, so it must not stay in the queue
+            if (!this.sinkTaskQueue.isEmpty() && tryReady()) {
+                try {
+                    executor.accept(this);
+                } catch (RejectedExecutionException ex) {
+                    this.status.set(IDLE);
+                    log.warn("resubmit sink runner error: {}, {}", identity, ex.getMessage());
+                }
+            }
         }
 
         private void doSink() {
             SinkTask sinkTask;
-            Throwable endThrowable = null;
             while ((sinkTask = this.sinkTaskQueue.poll()) != null) {
-                try {
-                    sinkTask.doSink();
-                } catch (Throwable th) {
-                    if (sinkTask.endData()) {
-                        endThrowable = th;
-                    } else {
-                        asyncExceptions.add(th);
+                BatchSinker batchSinker = sinkTask.batchSinker();
+                if (null == batchSinker) {
+                    try {
+                        doSink(sinkTask);
+                    } finally {
+                        releaseCredits(sinkTask.size());
                     }
+                    continue;
+                }
+                // drain the queued tasks of the same file
+                List<SinkTask> batch = this.batch;
+                batch.add(sinkTask);
+                SinkTask next;
+                while (batch.size() < maxBatchSize && (next = this.sinkTaskQueue.peek()) != null
+                        && next.batchSinker() == batchSinker) {
+                    batch.add(this.sinkTaskQueue.poll());
+                }
+                long bytes = 0;
+                for (SinkTask task : batch) {
+                    bytes += task.size();
+                }
+                try {
+                    doSink(batchSinker, batch);
                 } finally {
-                    if (sinkTask.endData() && null != endThrowable) {
-                        sinkTask.completableFuture().completeExceptionally(endThrowable);
-                    } else {
-                        sinkTask.completableFuture().complete(null);
-                    }
+                    batch.clear();
+                    releaseCredits(bytes);
+                }
+            }
+        }
+
+        private void doSink(SinkTask sinkTask) {
+            Throwable endThrowable = null;
+            try {
+                sinkTask.doSink();
+            } catch (Throwable th) {
+                if (sinkTask.endData()) {
+                    endThrowable = th;
+                } else {
+                    asyncExceptions.add(th);
+                }
+            } finally {
+                if (sinkTask.endData() && null != endThrowable) {
+                    sinkTask.completableFuture().completeExceptionally(endThrowable);
+                } else {
+                    sinkTask.completableFuture().complete(null);
+                }
+            }
+        }
+
+        private void doSink(BatchSinker batchSinker, List<SinkTask> batch) {
+            Throwable throwable = null;
+            try {
+                batchSinker.doSink(batch);
+            } catch (Throwable th) {
+                throwable = th;
+            }
+            // the end one is the last of batch if present
+            SinkTask last = batch.get(batch.size() - 1);
+            if (null != throwable && !last.endData()) {
+                asyncExceptions.add(throwable);
+            }
+            for (SinkTask sinkTask : batch) {
+                if (sinkTask.endData() && null != throwable) {
+                    sinkTask.completableFuture().completeExceptionally(throwable);
+                } else {
+                    sinkTask.completableFuture().complete(null);
                 }
             }
         }
 
         public void clearEvent() {
-            this.sinkTaskQueue.clear();
+            SinkTask sinkTask;
+            while ((sinkTask = this.sinkTaskQueue.poll()) != null) {
+                pendingBytes.addAndGet(-sinkTask.size());
+            }
         }
 
         public boolean tryReady() {
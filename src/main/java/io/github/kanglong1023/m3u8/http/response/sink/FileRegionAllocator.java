@@ -0,0 +1,22 @@
+package io.github.kanglong1023.m3u8.http.response.sink;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * allocates a region of a shared file for a response once its length is known, e.g. ts appended into a pack file
+ */
+public interface FileRegionAllocator {
+
+    /**
+     * the file which regions are allocated in
+     */
+    Path getFilePath();
+
+    /**
+     * @param length max bytes written into the region
+     * @return position of the region
+     */
+    long allocate(long length) throws IOException;
+
+}
@@ -9,10 +9,45 @@ public interface SinkHandler {
 
     void init(List<CompletableFuture<Void>> sinkFutures, boolean reInit) throws IOException;
 
+    /**
+     * @param contentLength Content-Length of the response, -1 if unknown
+     */
+    default void init(List<CompletableFuture<Void>> sinkFutures, boolean reInit, long contentLength) throws IOException {
+        init(sinkFutures, reInit);
+    }
+
     void doSink(ByteBuffer data, boolean endData) throws IOException;
 
     void dispose() throws IOException;
 
+    /**
+     * bytes could be sunk before written ones are drained, non-positive if the producer should stop reading
+     */
+    default long freeCapacity() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * callback is called once as capacity is freed, at once if it is not bounded
+     */
+    default void onCapacityFreed(Runnable callback) {
+        callback.run();
+    }
+
+    /**
+     * bytes written into the file, -1 if unsupported
+     */
+    default long getWrittenBytes() {
+        return -1;
+    }
+
+    /**
+     * crc32 of the bytes written into the file, -1 if unsupported
+     */
+    default long getChecksum() {
+        return -1;
+    }
+
 }
 
 
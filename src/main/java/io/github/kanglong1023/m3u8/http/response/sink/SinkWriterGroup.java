@@ -0,0 +1,123 @@
+package io.github.kanglong1023.m3u8.http.response.sink;
+
+import io.github.kanglong1023.m3u8.util.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkPositive;
+
+/**
+ * dedicated threads writing {@link AsyncSink}s, each of them drains its own queue. a sink is bound to one writer
+ * by its file, so writes to the same file are in order on one thread, and a slow disk does not hold the threads
+ * of unrelated work.
+ */
+@Slf4j
+public final class SinkWriterGroup {
+
+    private final SinkWriter[] writers;
+
+    public SinkWriterGroup(String namePrefix, int threads) {
+        checkNotNull(namePrefix);
+        checkPositive(threads, "threads");
+        ThreadFactory threadFactory = ThreadUtil.getThreadFactory(namePrefix, true);
+        this.writers = new SinkWriter[threads];
+        for (int i = 0; i < threads; i++) {
+            SinkWriter writer = new SinkWriter();
+            writer.thread = threadFactory.newThread(writer);
+            writers[i] = writer;
+            writer.thread.start();
+        }
+    }
+
+    /**
+     * @return executor of the writer which the file is bound to
+     */
+    public Consumer<Runnable> executor(Path filePath) {
+        int hash = null == filePath ? 0 : filePath.toAbsolutePath().normalize().hashCode();
+        // spread the hash, file names of ts differ in the low bits only
+        hash ^= hash >>> 16;
+        return writers[Math.floorMod(hash, writers.length)];
+    }
+
+    /**
+     * the queued runners are still executed before writers exit, runners are rejected from now on
+     */
+    public void shutdown() {
+        for (SinkWriter writer : writers) {
+            writer.shutdown = true;
+            LockSupport.unpark(writer.thread);
+        }
+    }
+
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (SinkWriter writer : writers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return;
+            }
+            writer.thread.join(remaining);
+        }
+    }
+
+    private static class SinkWriter implements Runnable, Consumer<Runnable> {
+
+        // multiple producers, the writer thread is the only consumer
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean parked;
+
+        private volatile boolean shutdown;
+
+        private Thread thread;
+
+        @Override
+        public void accept(Runnable runnable) {
+            if (shutdown) {
+                throw new RejectedExecutionException("sink writer is shutdown");
+            }
+            queue.offer(checkNotNull(runnable));
+            // the writer may have exited after the check, it is left to the writer if removed already
+            if (shutdown && queue.remove(runnable)) {
+                throw new RejectedExecutionException("sink writer is shutdown");
+            }
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable runnable = queue.poll();
+                if (null == runnable) {
+                    if (shutdown) {
+                        return;
+                    }
+                    parked = true;
+                    // re-check after parked is published, a runner offered before it would be missed otherwise
+                    if (queue.isEmpty() && !shutdown) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+                try {
+                    runnable.run();
+                } catch (Throwable th) {
+                    log.error(th.getMessage(), th);
+                }
+            }
+        }
+    }
+
+}
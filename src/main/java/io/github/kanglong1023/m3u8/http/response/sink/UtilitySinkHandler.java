@@ -1,5 +1,6 @@
 package io.github.kanglong1023.m3u8.http.response.sink;
 
+import io.github.kanglong1023.m3u8.http.response.sink.AsyncSink.BatchSinker;
 import io.github.kanglong1023.m3u8.http.response.sink.AsyncSink.SinkTask;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
@@ -11,12 +12,16 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
+import static io.github.kanglong1023.m3u8.util.Preconditions.checkNonNegative;
 import static io.github.kanglong1023.m3u8.util.Preconditions.checkNotNull;
 import static io.github.kanglong1023.m3u8.util.Utils.EMPTY_BIN;
 import static io.github.kanglong1023.m3u8.util.Utils.mapToNullable;
@@ -35,16 +40,61 @@ public class UtilitySinkHandler implements SinkHandler {
 
     private final List<SinkLifeCycle> sinkLifeCycles;
 
+    // nullable, allocates sinkRegion once the length of response is known
+    private final FileRegionAllocator regionAllocator;
+
+    // nullable, the region of file written into
+    private SinkRegion sinkRegion;
+
+    private final SinkDigest sinkDigest = new SinkDigest();
+
     // non-final
     private FileChannel fileChannel;
 
     private BufferWrapper bufferWrapper;
 
+    // nullable, null if decipherable, whose output buffer is reused by each task
+    private GatheringSinker gatheringSinker;
+
     private List<CompletableFuture<Void>> sinkFutures;
 
     public UtilitySinkHandler(Path filePath, BufferProvider bufferProvider,
                               AsyncSink asyncSink, Decipherable decipherable) {
+        this(filePath, null, null, bufferProvider, asyncSink, decipherable);
+    }
+
+    /**
+     * write into the region [position, position + length) of filePath by positional writes, the other bytes
+     * of the file are kept, and exactly length bytes must be written
+     */
+    public UtilitySinkHandler(Path filePath, long position, long length,
+                              BufferProvider bufferProvider, AsyncSink asyncSink) {
+        this(filePath, position, fixedLength(checkNonNegative(length, "length")), bufferProvider, asyncSink);
+    }
+
+    /**
+     * same as {@link #UtilitySinkHandler(Path, long, long, BufferProvider, AsyncSink)}, except the length may be
+     * known while writing, e.g. by the response. the region is unbounded while the length is -1
+     */
+    public UtilitySinkHandler(Path filePath, long position, LongSupplier length,
+                              BufferProvider bufferProvider, AsyncSink asyncSink) {
+        this(filePath, new SinkRegion(position, length, true), null, bufferProvider, asyncSink, null);
+    }
+
+    /**
+     * write into a region allocated by regionAllocator once the length of response is known, at most that length
+     * is written, the response of unknown length is written into filePath instead
+     */
+    public UtilitySinkHandler(Path filePath, FileRegionAllocator regionAllocator, BufferProvider bufferProvider,
+                              AsyncSink asyncSink, Decipherable decipherable) {
+        this(filePath, null, checkNotNull(regionAllocator), bufferProvider, asyncSink, decipherable);
+    }
+
+    private UtilitySinkHandler(Path filePath, SinkRegion sinkRegion, FileRegionAllocator regionAllocator,
+                               BufferProvider bufferProvider, AsyncSink asyncSink, Decipherable decipherable) {
         this.filePath = filePath;
+        this.sinkRegion = sinkRegion;
+        this.regionAllocator = regionAllocator;
         this.asyncSink = asyncSink;
         this.decipherable = decipherable;
         this.bufferProvider = checkNotNull(bufferProvider);
@@ -54,6 +104,11 @@ public class UtilitySinkHandler implements SinkHandler {
 
     @Override
     public void init(List<CompletableFuture<Void>> sinkFutures, boolean reInit) throws IOException {
+        init(sinkFutures, reInit, -1);
+    }
+
+    @Override
+    public void init(List<CompletableFuture<Void>> sinkFutures, boolean reInit, long contentLength) throws IOException {
         for (SinkLifeCycle sinkLifeCycle : this.sinkLifeCycles) {
             sinkLifeCycle.init(reInit);
         }
@@ -64,7 +119,11 @@ public class UtilitySinkHandler implements SinkHandler {
                 } catch (Exception ignored) {
                 }
             }
-            Files.deleteIfExists(this.filePath);
+            // the bytes out of the fixed region are not owned by it
+            if (null == this.sinkRegion || null != this.regionAllocator) {
+                Files.deleteIfExists(this.filePath);
+            }
+            this.sinkDigest.reset();
             if (null != bufferWrapper) {
                 bufferWrapper.unWrap().clear();
             }
@@ -74,7 +133,22 @@ public class UtilitySinkHandler implements SinkHandler {
             }
         }
         this.sinkFutures = sinkFutures;
-        this.fileChannel = FileChannel.open(this.filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        Path channelFilePath = this.filePath;
+        if (null != this.regionAllocator) {
+            // a new region is allocated for the response of retry
+            this.sinkRegion = null;
+            if (contentLength >= 0) {
+                // filePath exists only if the response is written into it
+                Files.deleteIfExists(this.filePath);
+                this.sinkRegion = new SinkRegion(this.regionAllocator.allocate(contentLength), fixedLength(contentLength), false);
+                channelFilePath = this.regionAllocator.getFilePath();
+            }
+        }
+        this.fileChannel = FileChannel.open(channelFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (null != this.asyncSink && null == this.decipherable) {
+            this.gatheringSinker = new GatheringSinker(this.fileChannel, this.sinkRegion, this.sinkDigest);
+        }
     }
 
     @Override
@@ -120,13 +194,14 @@ public class UtilitySinkHandler implements SinkHandler {
             CompletableFuture<Void> future = new CompletableFuture<>();
             sinkFutures.add(future);
             asyncSink.submitAsyncSinkTask(new AsyncSinkTask(channel, bufferWrapper, future,
-                    mapToNullable(decipherable, Decipherable::getCipher), endData, decipherable));
+                    mapToNullable(decipherable, Decipherable::getCipher), endData, decipherable, sinkRegion, sinkDigest,
+                    gatheringSinker));
             return;
         }
 
         try {
             doWrite(channel, bufferWrapper.unWrap(),
-                    mapToNullable(decipherable, Decipherable::getCipher), endData, decipherable);
+                    mapToNullable(decipherable, Decipherable::getCipher), endData, decipherable, sinkRegion, sinkDigest);
         } finally {
             bufferWrapper.unWrap().clear();
         }
@@ -146,6 +221,30 @@ public class UtilitySinkHandler implements SinkHandler {
         return bufferWrapper;
     }
 
+    @Override
+    public long freeCapacity() {
+        return null == asyncSink ? Long.MAX_VALUE : asyncSink.freeCredits();
+    }
+
+    @Override
+    public void onCapacityFreed(Runnable callback) {
+        if (null == asyncSink) {
+            callback.run();
+            return;
+        }
+        asyncSink.onCreditsFreed(callback);
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return this.sinkDigest.bytes;
+    }
+
+    @Override
+    public long getChecksum() {
+        return this.sinkDigest.crc32.getValue();
+    }
+
     @Override
     public void dispose() throws IOException {
         try {
@@ -180,16 +279,29 @@ public class UtilitySinkHandler implements SinkHandler {
 
         private final CompletableFuture<Void> future;
 
+        private final SinkRegion sinkRegion;
+
+        private final SinkDigest sinkDigest;
+
+        private final GatheringSinker gatheringSinker;
+
+        private final int size;
+
         public AsyncSinkTask(FileChannel channel,
                              BufferWrapper bufferWrapper,
                              CompletableFuture<Void> future,
-                             Cipher cipher, boolean endData, Decipherable decipherable) {
+                             Cipher cipher, boolean endData, Decipherable decipherable,
+                             SinkRegion sinkRegion, SinkDigest sinkDigest, GatheringSinker gatheringSinker) {
             this.cipher = cipher;
+            this.gatheringSinker = gatheringSinker;
+            this.sinkRegion = sinkRegion;
+            this.sinkDigest = sinkDigest;
             this.endData = endData;
             this.decipherable = decipherable;
             this.future = checkNotNull(future);
             this.channel = checkNotNull(channel);
             this.bufferWrapper = checkNotNull(bufferWrapper);
+            this.size = bufferWrapper.unWrap().remaining();
         }
 
         @Override
@@ -200,7 +312,7 @@ public class UtilitySinkHandler implements SinkHandler {
         @Override
         public void doSink() throws IOException {
             try {
-                doWrite(channel, bufferWrapper.unWrap(), cipher, endData, decipherable);
+                doWrite(channel, bufferWrapper.unWrap(), cipher, endData, decipherable, sinkRegion, sinkDigest);
             } finally {
                 bufferWrapper.release();
             }
@@ -210,11 +322,92 @@ public class UtilitySinkHandler implements SinkHandler {
         public CompletableFuture<Void> completableFuture() {
             return this.future;
         }
+
+        @Override
+        public BatchSinker batchSinker() {
+            return this.gatheringSinker;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+    }
+
+    /**
+     * writes the buffers of adjacent tasks by a single gathering write, and releases them afterwards
+     */
+    private static class GatheringSinker implements BatchSinker {
+
+        private final FileChannel channel;
+
+        private final SinkRegion sinkRegion;
+
+        private final SinkDigest sinkDigest;
+
+        private ByteBuffer[] buffers = new ByteBuffer[16];
+
+        GatheringSinker(FileChannel channel, SinkRegion sinkRegion, SinkDigest sinkDigest) {
+            this.sinkRegion = sinkRegion;
+            this.sinkDigest = sinkDigest;
+            this.channel = checkNotNull(channel);
+        }
+
+        @Override
+        public void doSink(List<SinkTask> sinkTasks) throws IOException {
+            if (buffers.length < sinkTasks.size()) {
+                buffers = new ByteBuffer[sinkTasks.size()];
+            }
+            int count = 0;
+            long size = 0;
+            boolean endData = false;
+            try {
+                for (SinkTask sinkTask : sinkTasks) {
+                    ByteBuffer buffer = ((AsyncSinkTask) sinkTask).bufferWrapper.unWrap();
+                    endData |= sinkTask.endData();
+                    if (buffer.hasRemaining()) {
+                        buffers[count++] = buffer;
+                        size += buffer.remaining();
+                    }
+                }
+                write(count, size, endData);
+            } finally {
+                Arrays.fill(buffers, 0, count, null);
+                for (SinkTask sinkTask : sinkTasks) {
+                    ((AsyncSinkTask) sinkTask).bufferWrapper.release();
+                }
+            }
+        }
+
+        private void write(int count, long size, boolean endData) throws IOException {
+            if (null != sinkRegion) {
+                sinkRegion.checkOverflow(sinkDigest.bytes, size);
+                // the channel is not shared with other sinks, so it is positioned at the end of written bytes
+                channel.position(sinkRegion.position + sinkDigest.bytes);
+            }
+            for (int i = 0; i < count; i++) {
+                sinkDigest.update(buffers[i]);
+            }
+            int offset = 0, spin = 1, maxSpin = 20;
+            while (offset < count && channel.isOpen()) {
+                long written = channel.write(buffers, offset, count - offset);
+                while (offset < count && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+                if (written == 0 && ++spin > maxSpin) {
+                    throw new IOException(format("write incomplete, spin=%d", maxSpin));
+                }
+            }
+            if (endData && null != sinkRegion) {
+                sinkRegion.checkComplete(sinkDigest.bytes);
+            }
+        }
     }
 
     private static void doWrite(FileChannel channel,
                                 ByteBuffer byteBuffer,
-                                Cipher cipher, boolean endData, Decipherable decipherable) throws IOException {
+                                Cipher cipher, boolean endData, Decipherable decipherable,
+                                SinkRegion sinkRegion, SinkDigest sinkDigest) throws IOException {
         checkNotNull(channel);
         checkNotNull(byteBuffer);
 
@@ -222,9 +415,14 @@ public class UtilitySinkHandler implements SinkHandler {
         if (null != decipherable && null != cipher) {
             buffer = decipherable.decrypt(cipher, endData, byteBuffer);
         }
+        if (null != sinkRegion) {
+            sinkRegion.write(channel, buffer, endData, sinkDigest);
+            return;
+        }
         if (!buffer.hasRemaining()) {
             return;
         }
+        sinkDigest.update(buffer);
         int spin = 1, maxSpin = 20;
         while (true) {
             if (!channel.isOpen()) {
@@ -244,4 +442,80 @@ public class UtilitySinkHandler implements SinkHandler {
         }
     }
 
+    private static LongSupplier fixedLength(long length) {
+        return () -> length;
+    }
+
+    private static class SinkRegion {
+
+        private final long position;
+
+        // -1 if unknown yet, the region is unbounded then
+        private final LongSupplier length;
+
+        // whether exactly length bytes must be written
+        private final boolean exact;
+
+        SinkRegion(long position, LongSupplier length, boolean exact) {
+            this.exact = exact;
+            this.length = checkNotNull(length);
+            this.position = checkNonNegative(position, "position");
+        }
+
+        void write(FileChannel channel, ByteBuffer buffer, boolean endData, SinkDigest sinkDigest) throws IOException {
+            long written = sinkDigest.bytes;
+            checkOverflow(written, buffer.remaining());
+            if (buffer.hasRemaining()) {
+                sinkDigest.update(buffer);
+                long offset = position + written;
+                int spin = 1, maxSpin = 20;
+                while (buffer.hasRemaining() && channel.isOpen()) {
+                    int size = channel.write(buffer, offset);
+                    offset += size;
+                    if (size == 0 && ++spin > maxSpin) {
+                        throw new IOException(format("write incomplete, spin=%d", maxSpin));
+                    }
+                }
+            }
+            if (endData) {
+                checkComplete(sinkDigest.bytes);
+            }
+        }
+
+        void checkOverflow(long written, long remaining) throws IOException {
+            long length = this.length.getAsLong();
+            if (length >= 0 && written + remaining > length) {
+                throw new IOException(format("region overflow, length=%d, written=%d, remaining=%d",
+                        length, written, remaining));
+            }
+        }
+
+        void checkComplete(long written) throws IOException {
+            long length = this.length.getAsLong();
+            if (exact && length >= 0 && written != length) {
+                throw new IOException(format("region incomplete, length=%d, written=%d", length, written));
+            }
+        }
+    }
+
+    /**
+     * digest of the bytes written into file, updated by one thread at a time in order of writing
+     */
+    private static class SinkDigest {
+
+        private final CRC32 crc32 = new CRC32();
+
+        private long bytes;
+
+        void update(ByteBuffer buffer) {
+            this.bytes += buffer.remaining();
+            this.crc32.update(buffer.duplicate());
+        }
+
+        void reset() {
+            this.bytes = 0;
+            this.crc32.reset();
+        }
+    }
+
 }
@@ -3,6 +3,7 @@ package io.github.kanglong1023.m3u8.util;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static io.github.kanglong1023.m3u8.util.FutureUtil.CombineFutureResult.*;
@@ -25,6 +26,34 @@ public final class FutureUtil {
         return f;
     }
 
+    public static <T> CompletableFuture<T> failed(Throwable ex) {
+        Objects.requireNonNull(ex);
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(ex);
+        return f;
+    }
+
+    /**
+     * Waits for the future, different from {@link CompletableFuture#join()}, the cause of exceptional
+     * completion is thrown as is rather than wrapped in CompletionException.
+     */
+    public static <T> T getUnwrapped(CompletableFuture<T> future) {
+        Objects.requireNonNull(future);
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            return Utils.sneakyThrow(unwrap(ex));
+        }
+    }
+
+    public static Throwable unwrap(Throwable ex) {
+        Throwable th = ex;
+        while (th instanceof CompletionException && null != th.getCause()) {
+            th = th.getCause();
+        }
+        return th;
+    }
+
     /**
      * Returns a new CompletableFuture that is completed when all the given CompletableFutures complete.
      * Different from {@link CompletableFuture#allOf(CompletableFuture[])}, if all the given CompletableFutures
@@ -63,25 +63,53 @@ public final class VideoUtil {
     }
 
     public static boolean convertToMp4(Path destVideoPath, List<Path> sourceVideoPaths) {
+        Preconditions.checkNotEmpty(sourceVideoPaths);
+        if (sourceVideoPaths.size() == 1) {
+            return convertToMp4(destVideoPath, sourceVideoPaths.get(0), null);
+        }
+        List<String> sources = CollUtil.newArrayListWithCapacity(sourceVideoPaths.size());
+        for (Path path : sourceVideoPaths) {
+            sources.add(path.toString());
+        }
+        return convertToMp4(destVideoPath, sourceVideoPaths.get(0).resolveSibling("all.ts"), sources);
+    }
+
+    /**
+     * regions [offsets[i], offsets[i] + lengths[i]) of packFile are concatenated in order
+     */
+    public static boolean convertToMp4(Path destVideoPath, Path packFile, long[] offsets, long[] lengths) {
+        Preconditions.checkNotNull(packFile);
+        Preconditions.checkArgument(offsets.length == lengths.length, "size of offsets and lengths differs");
+        Preconditions.checkArgument(offsets.length > 0, "empty regions");
+
+        List<String> sources = CollUtil.newArrayListWithCapacity(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            // end is exclusive
+            sources.add(String.format("subfile,,start,%d,end,%d,,:%s", offsets[i], offsets[i] + lengths[i], packFile));
+        }
+        return convertToMp4(destVideoPath, packFile.resolveSibling("all.ts"), sources);
+    }
+
+    /**
+     * @param concatSources nullable, urls concatenated into allTsFile first if present, otherwise allTsFile is the source
+     */
+    private static boolean convertToMp4(Path destVideoPath, Path allTsFile, List<String> concatSources) {
         String ffmpegPath = FfmpegPathHolder.ffmpegPath;
 
         Preconditions.checkNotBlank(ffmpegPath, "ffmpeg path");
-        Preconditions.checkNotEmpty(sourceVideoPaths);
         Preconditions.checkArgument(destVideoPath.isAbsolute());
         Preconditions.checkArgument(Files.notExists(destVideoPath));
 
         long startTime = System.currentTimeMillis();
         log.info("convert to ({}) start", destVideoPath.getFileName());
 
-        Path allTsFile;
-        if (sourceVideoPaths.size() > 1) {
+        if (null != concatSources) {
 
-            allTsFile = sourceVideoPaths.get(0).resolveSibling("all.ts");
-            Path listFile = sourceVideoPaths.get(0).resolveSibling("list.txt");
+            Path listFile = allTsFile.resolveSibling("list.txt");
 
-            List<String> contents = CollUtil.newArrayListWithCapacity(sourceVideoPaths.size());
-            for (Path path : sourceVideoPaths) {
-                String content = String.format("file '%s'", path.toString());
+            List<String> contents = CollUtil.newArrayListWithCapacity(concatSources.size());
+            for (String source : concatSources) {
+                String content = String.format("file '%s'", source);
                 contents.add(content);
             }
             try {
@@ -96,7 +124,7 @@ public final class VideoUtil {
             command.add(ffmpegPath);
 
             command.add("-protocol_whitelist");
-            command.add("concat,file,http,https,tcp,tls,crypto");
+            command.add("concat,file,subfile,http,https,tcp,tls,crypto");
 
             command.add("-f");
             command.add("concat");
@@ -117,9 +145,6 @@ public final class VideoUtil {
                 log.error("convert failed when concat to {}", allTsFile.getFileName());
                 return false;
             }
-
-        } else {
-            allTsFile = sourceVideoPaths.get(0);
         }
 
         List<String> command = new ArrayList<>();